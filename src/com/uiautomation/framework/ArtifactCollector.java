@@ -0,0 +1,354 @@
+package com.uiautomation.framework;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.uiautomator.core.UiDevice;
+import com.uiautomation.framework.engine.ITestEngine;
+import com.uiautomation.framework.engine.TestEngine;
+import com.uiautomation.framework.engine.pixel.ScreenCapture;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Saves what a failed test left on screen without holding up the next test.
+ *
+ * Capturing has to happen before the screen changes, so
+ * {@link #capture(ITestEngine, File, String, List)} grabs the screenshot and
+ * dumps the window hierarchy in parallel and returns once both are in
+ * memory or on disk. Encoding the PNG, gzipping the hierarchy and the logcat
+ * tail and writing them out run afterwards on background threads.
+ *
+ * Pending writes sit in a bounded queue; when it is full the caller does the
+ * write itself, which bounds the memory held by queued bitmaps. Call
+ * {@link #flush(long)} before the process exits, see
+ * {@link #flushOnExit(long)}.
+ */
+public class ArtifactCollector {
+
+	public static final int DEFAULT_QUEUE_SIZE = 8;
+
+	// Longest wait for the hierarchy dump run alongside the screenshot.
+	private static final long DUMP_TIMEOUT = 10000;
+
+	private final ThreadPoolExecutor writers;
+
+	private final ExecutorService capturer;
+
+	private final ScreenCapture screenCapture = new ScreenCapture(TestEngine.STORAGE_PATH);
+
+	private float scale = 0.5f;
+
+	private int pending;
+
+	public ArtifactCollector() {
+		this(1, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param threads   background writer threads
+	 * @param queueSize writes that may be pending before callers write
+	 *                  themselves
+	 */
+	public ArtifactCollector(int threads, int queueSize) {
+		writers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), daemon("artifact-writer"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		writers.allowCoreThreadTimeOut(true);
+		capturer = Executors.newCachedThreadPool(daemon("artifact-capture"));
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + ++count);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * @param scale screenshot scale, 0.5 by default
+	 */
+	public ArtifactCollector scale(float scale) {
+		this.scale = scale;
+		return this;
+	}
+
+	/**
+	 * Capture the screen, the window hierarchy and a logcat tail as
+	 * dir/name.png, dir/name_hierarchy.xml.gz and dir/name_logcat.txt.gz.
+	 * Returns once the screen state is captured; the files are written in
+	 * the background.
+	 * @param logcat lines to save, null for none
+	 */
+	public void capture(ITestEngine engine, File dir, String name, List<String> logcat) {
+		mkdirs(dir);
+		String dumpName = name + "_hierarchy.xml";
+		HierarchyDump dump = new HierarchyDump(engine, dumpName, new File(dir, dumpName + ".gz"));
+		Future<String> future = capturer.submit(dump);
+		screenshot(new File(dir, name + ".png"));
+		try {
+			dump.save(future.get(DUMP_TIMEOUT, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) {
+			dump.abandon(future);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(Constant.LOG_TAG, "Hierarchy dump failed: " + e.getCause());
+		} catch (TimeoutException e) {
+			Log.e(Constant.LOG_TAG, "Hierarchy dump timed out");
+			dump.abandon(future);
+		}
+		if (logcat != null) {
+			write(logcat, new File(dir, name + "_logcat.txt.gz"));
+		}
+	}
+
+	/**
+	 * Dumps the window hierarchy into the engine's storage. A dump that
+	 * completes after {@link #capture(ITestEngine, File, String, List)} gave
+	 * up on it is still gzipped to the target, so no raw dump is left behind.
+	 */
+	private class HierarchyDump implements Callable<String> {
+
+		private final ITestEngine engine;
+
+		private final String name;
+
+		private final File target;
+
+		private boolean abandoned;
+
+		private String path;
+
+		HierarchyDump(ITestEngine engine, String name, File target) {
+			this.engine = engine;
+			this.name = name;
+			this.target = target;
+		}
+
+		@Override
+		public String call() {
+			String dumped = engine.dumpWindow(name, false);
+			synchronized (this) {
+				if (!abandoned) {
+					path = dumped;
+					return dumped;
+				}
+			}
+			save(dumped);
+			return null;
+		}
+
+		/**
+		 * Stop waiting for the dump. If it already completed, save it now,
+		 * otherwise it saves itself when it does.
+		 */
+		void abandon(Future<String> future) {
+			String dumped;
+			synchronized (this) {
+				abandoned = true;
+				dumped = path;
+			}
+			future.cancel(true);
+			save(dumped);
+		}
+
+		void save(String dumped) {
+			if (dumped != null) {
+				gzip(new File(dumped), target);
+			}
+		}
+	}
+
+	/**
+	 * Capture the screen now and write it as a PNG in the background. Without
+	 * an in-memory capture (below API 18) the screenshot is written before
+	 * returning.
+	 */
+	public void screenshot(final File png) {
+		mkdirs(png.getParentFile());
+		final float scale = this.scale;
+		final Bitmap bitmap = screenCapture.captureBitmap();
+		if (bitmap == null) {
+			UiDevice.getInstance().takeScreenshot(png, scale, 80);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap scaled = bitmap;
+				try {
+					if (scale != 1.0f) {
+						scaled = Bitmap.createScaledBitmap(bitmap,
+								Math.max(1, (int) (bitmap.getWidth() * scale)),
+								Math.max(1, (int) (bitmap.getHeight() * scale)), true);
+					}
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(png));
+					try {
+						scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					Log.e(Constant.LOG_TAG, "Can't write " + png + ": " + e);
+				} finally {
+					if (scaled != bitmap) {
+						scaled.recycle();
+					}
+					bitmap.recycle();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gzip a file in the background, then delete it.
+	 */
+	public void gzip(final File source, final File target) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = new FileInputStream(source);
+					try {
+						OutputStream out = new GZIPOutputStream(new FileOutputStream(target));
+						try {
+							byte[] buffer = new byte[8192];
+							int len;
+							while ((len = in.read(buffer)) != -1) {
+								out.write(buffer, 0, len);
+							}
+						} finally {
+							out.close();
+						}
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					Log.e(Constant.LOG_TAG, "Can't write " + target + ": " + e);
+				} finally {
+					source.delete();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write lines to a gzipped text file in the background.
+	 */
+	public void write(final List<String> lines, final File target) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Writer out = new BufferedWriter(new OutputStreamWriter(
+							new GZIPOutputStream(new FileOutputStream(target)), "UTF-8"));
+					try {
+						for (String line : lines) {
+							out.write(line);
+							out.write('\n');
+						}
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					Log.e(Constant.LOG_TAG, "Can't write " + target + ": " + e);
+				}
+			}
+		});
+	}
+
+	private void execute(final Runnable write) {
+		synchronized (this) {
+			pending++;
+		}
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write.run();
+				} finally {
+					synchronized (ArtifactCollector.this) {
+						pending--;
+						ArtifactCollector.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for the pending writes.
+	 * @param timeout milliseconds to wait at most
+	 * @return true if every pending write finished
+	 */
+	public synchronized boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (pending > 0) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return writes queued or running
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Flush the pending writes when the process exits normally.
+	 * @param timeout milliseconds the exit may be delayed
+	 */
+	public void flushOnExit(final long timeout) {
+		Runtime.getRuntime().addShutdownHook(new Thread("artifact-flush") {
+			@Override
+			public void run() {
+				flush(timeout);
+			}
+		});
+	}
+
+	private static void mkdirs(File dir) {
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			Log.e(Constant.LOG_TAG, "Can't create " + dir);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.uiautomation.framework;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.AssertionFailedError;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.uiautomator.core.UiObjectNotFoundException;
+import com.uiautomation.framework.engine.ITestEngine;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Decides whether {@link UiAutoTestCase#runTest()} runs a failed test again,
+ * after how long, and how the device is brought back to a usable state first.
+ *
+ * <pre>
+ * new RetryPolicy().maxRetries(2).backoff(1000, 8000).budget(new RetryPolicy.Budget(10))
+ *         .transientOn(IllegalStateException.class)
+ *         .recovery(RetryPolicy.pressBack(3, 300))
+ * </pre>
+ *
+ * Only transient failures are retried: by default UiObjectNotFoundException,
+ * RemoteException, TimeoutException and IOException, and any failure that
+ * happened after a watcher fired, since a pop-up got in the way. Assertion
+ * failures are fatal, a test that asserted wrong state will assert it again.
+ * The cause chain is examined, fatal classes win over transient ones.
+ *
+ * The n-th retry waits initialDelay * 2^(n-1), at most maxDelay; without a
+ * backoff retries start right away. A budget can be shared by every test of
+ * a suite so a broken build stops retrying after a few failures instead of
+ * doubling its run time.
+ */
+public class RetryPolicy {
+
+	/**
+	 * Puts the device back in a state where the test can start over. Run
+	 * before setUp on every retry, in the order they were added.
+	 */
+	public interface RecoveryHook {
+		void recover(ITestEngine engine, Throwable failure) throws Exception;
+	}
+
+	/**
+	 * Retries left for a whole suite, shared by the policies of its tests.
+	 * Thread safe.
+	 */
+	public static class Budget {
+
+		private final AtomicInteger remaining;
+
+		public Budget(int retries) {
+			remaining = new AtomicInteger(retries);
+		}
+
+		/**
+		 * @return true if a retry was left, and take it
+		 */
+		public boolean tryAcquire() {
+			while (true) {
+				int r = remaining.get();
+				if (r <= 0) {
+					return false;
+				}
+				if (remaining.compareAndSet(r, r - 1)) {
+					return true;
+				}
+			}
+		}
+
+		public int getRemaining() {
+			return Math.max(0, remaining.get());
+		}
+	}
+
+	private final List<Class<? extends Throwable>> transients = new ArrayList<Class<? extends Throwable>>();
+
+	private final List<Class<? extends Throwable>> fatals = new ArrayList<Class<? extends Throwable>>();
+
+	private final List<RecoveryHook> hooks = new ArrayList<RecoveryHook>();
+
+	private int maxRetries;
+
+	private long initialDelay;
+
+	private long maxDelay = 10000;
+
+	private boolean retryAfterWatcher = true;
+
+	private Budget budget;
+
+	public RetryPolicy() {
+		transients.add(UiObjectNotFoundException.class);
+		transients.add(RemoteException.class);
+		transients.add(TimeoutException.class);
+		transients.add(IOException.class);
+		fatals.add(AssertionFailedError.class);
+		fatals.add(AssertionError.class);
+	}
+
+	/**
+	 * @param maxRetries runs after the first one, 0 (default) for none
+	 */
+	public RetryPolicy maxRetries(int maxRetries) {
+		this.maxRetries = Math.max(0, maxRetries);
+		return this;
+	}
+
+	/**
+	 * @param initialDelay milliseconds before the first retry, 0 (default) for
+	 *                     none
+	 * @param maxDelay     cap of the doubling delay
+	 */
+	public RetryPolicy backoff(long initialDelay, long maxDelay) {
+		this.initialDelay = Math.max(0, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+		return this;
+	}
+
+	/**
+	 * @param budget retries shared with other tests, null (default) for no
+	 *               limit beyond maxRetries
+	 */
+	public RetryPolicy budget(Budget budget) {
+		this.budget = budget;
+		return this;
+	}
+
+	/**
+	 * Also retry failures of these classes and their subclasses.
+	 */
+	@SafeVarargs
+	public final RetryPolicy transientOn(Class<? extends Throwable>... classes) {
+		for (Class<? extends Throwable> c : classes) {
+			transients.add(c);
+		}
+		return this;
+	}
+
+	/**
+	 * Never retry failures of these classes and their subclasses.
+	 */
+	@SafeVarargs
+	public final RetryPolicy fatalOn(Class<? extends Throwable>... classes) {
+		for (Class<? extends Throwable> c : classes) {
+			fatals.add(c);
+		}
+		return this;
+	}
+
+	/**
+	 * @param retry true (default) to treat a failure that is neither transient
+	 *              nor fatal as transient when a watcher fired during the run
+	 */
+	public RetryPolicy retryAfterWatcher(boolean retry) {
+		this.retryAfterWatcher = retry;
+		return this;
+	}
+
+	public RetryPolicy recovery(RecoveryHook hook) {
+		hooks.add(hook);
+		return this;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param failure         what the last run threw
+	 * @param watcherTriggered whether a watcher fired during that run
+	 * @return true if the failure is worth another run
+	 */
+	public boolean isTransient(Throwable failure, boolean watcherTriggered) {
+		boolean matched = false;
+		for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (isInstance(fatals, t)) {
+				return false;
+			}
+			matched |= isInstance(transients, t);
+		}
+		return matched || (retryAfterWatcher && watcherTriggered);
+	}
+
+	/**
+	 * Decide on a retry, taking it from the budget if granted.
+	 * @param retries retries already made for this test
+	 */
+	public boolean shouldRetry(Throwable failure, int retries, boolean watcherTriggered) {
+		return retries < maxRetries && isTransient(failure, watcherTriggered)
+				&& (budget == null || budget.tryAcquire());
+	}
+
+	/**
+	 * @param retry 1 for the first retry
+	 * @return milliseconds to wait before it
+	 */
+	public long getDelay(int retry) {
+		long delay = initialDelay;
+		for (int i = 1; i < retry && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxDelay);
+	}
+
+	/**
+	 * Run the recovery hooks. A failing hook is reported and the next one
+	 * still runs.
+	 */
+	public void recover(ITestEngine engine, Throwable failure) {
+		for (RecoveryHook hook : hooks) {
+			try {
+				hook.recover(engine, failure);
+			} catch (Exception e) {
+				Log.w(Constant.LOG_TAG, "Recovery hook failed", e);
+			}
+		}
+	}
+
+	private static boolean isInstance(List<Class<? extends Throwable>> classes, Throwable t) {
+		for (Class<? extends Throwable> c : classes) {
+			if (c.isInstance(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a hook pressing back times times, waiting interval milliseconds
+	 *         after each press for the screen to settle
+	 */
+	public static RecoveryHook pressBack(final int times, final long interval) {
+		return new RecoveryHook() {
+			@Override
+			public void recover(ITestEngine engine, Throwable failure) throws Exception {
+				for (int i = 0; i < times; i++) {
+					engine.pressKey("back");
+					Thread.sleep(interval);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a hook going back to the home screen
+	 */
+	public static RecoveryHook pressHome() {
+		return new RecoveryHook() {
+			@Override
+			public void recover(ITestEngine engine, Throwable failure) throws Exception {
+				engine.pressKey("home");
+			}
+		};
+	}
+
+	/**
+	 * @return a hook running the registered watchers, to dismiss what they
+	 *         know about
+	 */
+	public static RecoveryHook runWatchers() {
+		return new RecoveryHook() {
+			@Override
+			public void recover(ITestEngine engine, Throwable failure) {
+				engine.runWatchers();
+			}
+		};
+	}
+}
@@ -1,27 +1,58 @@
 package com.uiautomation.framework;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.graphics.Point;
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.uiautomator.core.Configurator;
-import com.android.uiautomator.core.UiDevice;
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiSelector;
 import com.android.uiautomator.testrunner.UiAutomatorTestCase;
 import com.uiautomation.framework.engine.DeviceInfo;
 import com.uiautomation.framework.engine.ITestEngine;
+import com.uiautomation.framework.engine.ObjInfo;
 import com.uiautomation.framework.engine.TestEngine;
+import com.uiautomation.framework.engine.hierarchy.HierarchyScanner;
+import com.uiautomation.framework.engine.hierarchy.HierarchySnapshot;
+import com.uiautomation.framework.engine.hierarchy.NodeSelector;
+import com.uiautomation.framework.engine.pixel.PixelSearchOptions;
+import com.uiautomation.framework.engine.watcher.WatcherMetrics;
+import com.uiautomation.framework.engine.watcher.WatcherOptions;
+import com.uiautomation.framework.engine.watcher.WatcherScheduler;
+import com.uiautomation.framework.runner.DurationHistory;
+import com.uiautomation.framework.utils.AsyncCommand;
 import com.uiautomation.framework.utils.CmdResult;
 import com.uiautomation.framework.utils.Constant;
+import com.uiautomation.framework.utils.LogcatCollector;
+import com.uiautomation.framework.utils.OutputMatcher;
+import com.uiautomation.framework.utils.ProcessResult;
 
 public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 
+	// Durations of each test method, under /data/local/tmp/LOGS_PATH.
+	private static final String DURATIONS_FILE = "durations.properties";
+
+	// One uiautomator run is one suite, its tests share the retry budget.
+	private static RetryPolicy.Budget suiteBudget;
+
+	// Longest the process exit waits for pending artifacts.
+	private static final long ARTIFACT_FLUSH_TIMEOUT = 30000;
+
+	private static ArtifactCollector artifacts;
+
+	private RetryPolicy retryPolicy;
+
+	private LogcatCollector logcat;
+
 	private ITestEngine te;
 
 	private boolean mDebug = false;
@@ -64,80 +95,239 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
     @Override
     protected void tearDown() throws Exception {
         logMessage("Case end");
+        stopWatcherScheduler();
+        if (getWatchers().length > 0) {
+            dumpWatcherMetrics(Constant.LOGS_PATH + File.separator + getName() + "_"
+                    + getCurrentTime() + "_watchers.json");
+        }
 
         String fileName = getName() + "_" + getCurrentTime() + ".png";
         if (getParams().getString("screenshot") != null)
             if (getParams().getString("screenshot").contentEquals("1")) {
-                screenshot(fileName, 0.5f, 80);
+                getArtifactCollector().screenshot(new File(TestEngine.STORAGE_PATH, fileName));
             }
         super.tearDown();
     }
 
+    /**
+     * Get the collector writing failure screenshots, hierarchy dumps and logcat in the background.
+     * It is shared by all the tests of the run and flushed when the process exits.
+     *
+     * @return the collector
+     */
+    public static synchronized ArtifactCollector getArtifactCollector() {
+        if (artifacts == null) {
+            artifacts = new ArtifactCollector();
+            artifacts.flushOnExit(ARTIFACT_FLUSH_TIMEOUT);
+        }
+        return artifacts;
+    }
+
     /**
      * Overide of runTest of testcase, to test try times a gain when failure
      * setUp and tearDown will don't run again after failure, so openApp should be in test
-     * This method also catch screenshot when failure.
-     * -e retrytimes 1
+     * This method also catch screenshot, window hierarchy and logcat when failure, written in the background by {@link ArtifactCollector}.
+     * Only transient failures are retried, after a growing delay and the recovery hooks, see {@link RetryPolicy}.
+     * -e retrytimes 1: retries per test
+     * -e retrydelay 1000: milliseconds before the first retry, doubling on each one, none by default
+     * -e retrybudget 10: retries for all the tests of the run
+     * The duration of the last attempt is printed and added to /data/local/tmp/uiAutoTest/durations.properties for ShardPlanner.
      * screenshot path is /data/local/tmp/TestClassName/testxxx.png
      */
     @Override
     protected void runTest() throws Throwable {
     	String testMethodName = getClass().getName() + "." + getName();
     	Log.v(mTag, "Begin to run " + testMethodName + ".");
-        int retryTimes = 0;
-        boolean firstTime = true;
-
-		String fileName = "/data/local/tmp/" + Constant.LOGS_PATH
-				+ File.separator + getName() + "_" + getCurrentTime();
-		String logFile = fileName + "_logcat.txt";
-		String pngFile = fileName + ".png";
-        Process process = null;
-        File f = new File(logFile);
+        RetryPolicy policy = getRetryPolicy();
+        int retries = 0;
+        Throwable lastFailure = null;
+
+		File logDir = new File("/data/local/tmp", Constant.LOGS_PATH);
+		String artifactName = getName() + "_" + getCurrentTime();
+        if (!logDir.exists() && !logDir.mkdirs()) {
+            Log.e(mTag, "Can't create " + logDir);
+        }
+
+        if("true".equals(getParams().getString("logcat"))){
+            logcat = createLogcatCollector();
+            try {
+                logcat.start();
+            } catch (IOException e) {
+                Log.e(mTag, "Can't start logcat: " + e.getMessage());
+                logcat = null;
+            }
+        }
+
+        // Triggers are kept by UiDevice across tests, only count this test's.
+        resetWatcherTriggers();
+        // Only the last attempt is timed, recovery and backoff are not part of the test.
+        long attemptStart = -1;
+        long duration = -1;
         try {
-            if (!f.getParentFile().exists()) {
-            	process = Runtime.getRuntime().exec("mkdir -p "+
-                        f.getParentFile().getAbsolutePath());
-                       process.waitFor();
-                if (process != null) {
-					process.destroy();
-				}
+            while(true){
+                try{
+                    if(lastFailure != null){
+                        policy.recover(this, lastFailure);
+                        resetWatcherTriggers();
+                        setUp();
+                    }
+                    attemptStart = System.currentTimeMillis();
+                    super.runTest();
+                    duration = System.currentTimeMillis() - attemptStart;
+                    break;
+                }catch (Throwable e){
+                    if (attemptStart >= 0) {
+                        duration = System.currentTimeMillis() - attemptStart;
+                        attemptStart = -1;
+                    }
+                    if(policy.shouldRetry(e, retries, hasAnyWatcherTriggered())){
+                        retries++;
+                        lastFailure = e;
+                        long delay = policy.getDelay(retries);
+                        System.out.println("fail...retrying in " + delay + "ms: " + e);
+                        Thread.sleep(delay);
+                    } else {
+                        System.out.println("runTest() throws an exception");
+                        getArtifactCollector().capture(this, logDir, artifactName,
+                                logcat != null ? logcat.getLines() : null);
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            if (duration >= 0) {
+                recordDuration(testMethodName, duration);
+            }
+            if (logcat != null) {
+                logcat.stop();
             }
-        } catch(Exception e) {
-            Log.e(mTag, "Unkown Exception, filename: " + logFile);
-            e.printStackTrace();
         }
+        Log.v(mTag, testMethodName + " run finished.");
+    }
+
+    /**
+     * Build the logcat collector started by runTest when the logcat parameter is "true".
+     * -e logcatlines 5000: lines kept in memory
+     * -e logcatfilter "ActivityManager:I MyApp:V": logcat filter specs, all tags by default
+     *
+     * @return a new collector, not started
+     */
+    protected LogcatCollector createLogcatCollector() {
+        String lines = getParams().getString("logcatlines");
+        LogcatCollector collector = new LogcatCollector(lines != null ? Integer.parseInt(lines)
+                : LogcatCollector.DEFAULT_CAPACITY);
+        String filter = getParams().getString("logcatfilter");
+        if (filter != null) {
+            collector.filters(filter);
+        }
+        return collector;
+    }
 
-        if(getParams().getString("logcat") == "true"){
-        	final String command=String.format("logcat -d -v time -f %s *:V -s", logFile);
-            Runtime.getRuntime().exec(command).waitFor();
+    /**
+     * Get the logcat of the current test, collected in memory when the logcat parameter is "true".
+     * Saved automatically when the test fails.
+     *
+     * @return the collector, null if logcat is not collected
+     */
+    public LogcatCollector getLogcatCollector() {
+        return logcat;
+    }
+
+    /**
+     * Save the logcat collected for the current test.
+     *
+     * @param fileName file name, relative to /data/local/tmp
+     * @return the absolute path of the file, null if logcat is not collected or could not be written
+     */
+    public String saveLogcat(String fileName) {
+        return saveLogcat(new File("/data/local/tmp", fileName));
+    }
+
+    private String saveLogcat(File f) {
+        if (logcat == null) {
+            return null;
         }
+        try {
+            logcat.save(f);
+            return f.getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(mTag, e.toString());
+            return null;
+        }
+    }
 
-        if(getParams().getString("retrytimes") != null){
-            retryTimes = Integer.parseInt(getParams().getString("retrytimes"));
+    /**
+     * Set the retry policy of this test, instead of the one built from the run parameters.
+     *
+     * @param policy the policy
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    /**
+     * Get the retry policy of this test.
+     *
+     * @return the policy set, else the one {@link #createRetryPolicy()} builds
+     */
+    public RetryPolicy getRetryPolicy() {
+        if (retryPolicy == null) {
+            retryPolicy = createRetryPolicy();
         }
+        return retryPolicy;
+    }
 
-        while(retryTimes >= 0){
-            try{
-                if(!firstTime){
-                    for(int i = 0; i < 5; i++) pressKey("back");
-                    setUp();
-                }
-                firstTime = false;
-                super.runTest();
-                break;
-            }catch (Throwable e){
-                if(retryTimes >= 1){
-                    retryTimes--;
-                    System.out.println("fail...retrying...");
-                    continue;
-                } else {
-                    System.out.println("runTest() throws an exception");
-                    UiDevice.getInstance().takeScreenshot(new File(pngFile), 0.5f, 80);
-                    throw e;
-                }
-            }
+    /**
+     * Build the default retry policy from the retrytimes, retrydelay and retrybudget parameters.
+     * Recovery runs the watchers, then presses back 5 times 200ms apart.
+     * Override to change the exceptions retried or the recovery hooks of a test class.
+     *
+     * @return a new policy
+     */
+    protected RetryPolicy createRetryPolicy() {
+        RetryPolicy policy = new RetryPolicy()
+                .recovery(RetryPolicy.runWatchers())
+                .recovery(RetryPolicy.pressBack(5, 200));
+        String retryTimes = getParams().getString("retrytimes");
+        if (retryTimes != null) {
+            policy.maxRetries(Integer.parseInt(retryTimes));
+        }
+        String retryDelay = getParams().getString("retrydelay");
+        if (retryDelay != null) {
+            long delay = Long.parseLong(retryDelay);
+            policy.backoff(delay, delay * 8);
+        }
+        RetryPolicy.Budget budget = getSuiteBudget(getParams().getString("retrybudget"));
+        if (budget != null) {
+            policy.budget(budget);
+        }
+        return policy;
+    }
+
+    /**
+     * @return the budget shared by all the tests of this run, null if unlimited
+     */
+    private static synchronized RetryPolicy.Budget getSuiteBudget(String retryBudget) {
+        if (suiteBudget == null && retryBudget != null) {
+            suiteBudget = new RetryPolicy.Budget(Integer.parseInt(retryBudget));
+        }
+        return suiteBudget;
+    }
+
+    /**
+     * Print the duration of a test for ParallelRunner and add it to the durations file, which the
+     * shell loops pull and merge with ShardPlanner -m.
+     */
+    private void recordDuration(String testMethodName, long duration) {
+        System.out.println(DurationHistory.REPORT_PREFIX + testMethodName + "=" + duration);
+        File file = new File("/data/local/tmp/" + Constant.LOGS_PATH, DURATIONS_FILE);
+        try {
+            DurationHistory history = DurationHistory.load(file);
+            history.record(testMethodName, duration);
+            history.save(file);
+        } catch (IOException e) {
+            Log.w(mTag, "Can't record duration of " + testMethodName + ": " + e.getMessage());
         }
-        Log.v(mTag, testMethodName + " run finished.");
     }
 
 
@@ -406,15 +596,28 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
     /**
      * Simulates a short press using key name.
      *
-     * @param key possible key name is home, back, left, right, up, down, center, menu, search, enter, delete(or del), recent(recent apps), volume_up, volume_down, volume_mute, camera, power
+     * @param key possible key name is home, back, left, right, up, down, center, menu, search, enter, delete(or del), recent(or recentapp), volume_up(or volumeup), volume_down(or volumedown), volume_mute(or mute), camera, power, play, pause
      * @return true if successful, else return false
      * @throws android.os.RemoteException
+     * @see com.uiautomation.framework.engine.KeyRegistry
      */
 	@Override
 	public boolean pressKey(String key) throws RemoteException {
 		return te.pressKey(key);
 	}
 
+    /**
+     * Simulates short presses of several keys, back to back.
+     *
+     * @param keys key names, see {@link #pressKey(String)}
+     * @return true if every key is known and was pressed, else return false
+     * @throws android.os.RemoteException
+     */
+	@Override
+	public boolean pressKeys(String... keys) throws RemoteException {
+		return te.pressKeys(keys);
+	}
+
 	/**
 	 * Execute command on shell
 	 * @param cmdString command to be executed
@@ -502,6 +705,64 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.dumpWindow(fileName, compressed);
 	}
 
+	/**
+	 * Dump the current window's layout hierarchy in the compact binary format,
+	 * about ten times smaller than the XML. Read it back with HierarchyReader or
+	 * convert it with HierarchyConverter. The file root location is /data/local/tmp
+	 * @param fileName   the filename to be stored.
+	 * @param compressed use compressed layout hierarchy or not. Ignore the parameter in case the API level lt 18.
+	 * @return the absolute path name of dumped file, null if the dump failed.
+	 */
+	@Override
+	public String dumpWindowBinary(String fileName, boolean compressed) {
+		return te.dumpWindowBinary(fileName, compressed);
+	}
+
+	/**
+	 * Dump the current window and pass its nodes to visitor as the dump is
+	 * parsed. The document is never loaded in memory and the scan ends as soon
+	 * as the visitor returns false.
+	 * @param visitor receives the nodes in document order
+	 * @return false if the visitor stopped the scan
+	 * @throws IOException if the window could not be dumped
+	 */
+	@Override
+	public boolean scanWindow(HierarchyScanner.Visitor visitor) throws IOException {
+		return te.scanWindow(visitor);
+	}
+
+	/**
+	 * Get a parsed snapshot of the current window hierarchy. The snapshot is
+	 * shared by every test case of the process and cached until one of them
+	 * injects input, a window opens or closes, or the cache timeout expires.
+	 * @return the window hierarchy
+	 * @throws IOException if the window could not be dumped
+	 */
+	@Override
+	public HierarchySnapshot getHierarchySnapshot() throws IOException {
+		return te.getHierarchySnapshot();
+	}
+
+	/**
+	 * Set how long a window hierarchy snapshot may be reused, for every test
+	 * case of the process. 1000 by default, 250 when window changes can't be
+	 * monitored, below API 18 for instance.
+	 * @param timeout in milliseconds, 0 to dump on every call
+	 */
+	@Override
+	public void setHierarchyCacheTimeout(long timeout) {
+		te.setHierarchyCacheTimeout(timeout);
+	}
+
+	/**
+	 * Drop the cached window hierarchy snapshot, e.g. after content changed
+	 * within the same window.
+	 */
+	@Override
+	public void invalidateHierarchy() {
+		te.invalidateHierarchy();
+	}
+
 	/**
      * Take a screenshot of current window and store it as PNG The screenshot is adjusted per screen rotation
      *
@@ -592,6 +853,42 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.waitForWindowUpdate(packageName, timeout);
 	}
 
+	/**
+	 * Wait until the subtree of a node changes, appears or disappears. The
+	 * window is dumped when the call starts, then repeatedly, and compared by
+	 * subtree hash with that first dump, so the wait ends with the first dump
+	 * showing a change made after the call.
+	 * @param selector the node to watch, null for the whole window
+	 * @param timeout  in milliseconds
+	 * @return true if a change was seen, false if timeout elapsed
+	 */
+	@Override
+	public boolean waitForChange(NodeSelector selector, long timeout) {
+		return te.waitForChange(selector, timeout);
+	}
+
+	/**
+	 * Wait until the subtree of a node differs from a snapshot taken earlier,
+	 * typically right before the action expected to change it, so a change
+	 * made before the wait starts is seen too.
+	 * <pre>
+	 * HierarchySnapshot before = getHierarchySnapshot();
+	 * click(new NodeSelector().text("Refresh"));
+	 * waitForChange(before, new NodeSelector().resourceId("android:id/list"), 5000);
+	 * </pre>
+	 * HierarchyDiff.compare(before, getHierarchySnapshot()) tells what
+	 * changed.
+	 * @param baseline the snapshot to compare with
+	 * @param selector the node to watch, null for the whole window
+	 * @param timeout  in milliseconds
+	 * @return true if a change was seen, false if timeout elapsed
+	 */
+	@Override
+	public boolean waitForChange(HierarchySnapshot baseline, NodeSelector selector,
+			long timeout) {
+		return te.waitForChange(baseline, selector, timeout);
+	}
+
 	/**
      * Waits a specified length of time for a view to become visible. This method waits until the view becomes visible on the display, or until the timeout has elapsed. You can use this method in situations where the content that you want to select is not immediately displayed.
      *
@@ -842,6 +1139,20 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		te.registerClickUiObjectWatcher(name, conditions, target);
 	}
 
+	/**
+     * Register a ClickUiObjectWatcher with a priority, a cooldown and a maximum number of fires
+     *
+     * @param name       Watcher name
+     * @param conditions If all UiObject in the conditions match, the watcher should be triggered.
+     * @param target     The target UiObject should be clicked if all conditions match.
+     * @param options    Priority, cooldown and max fires of the watcher
+     */
+	@Override
+	public void registerClickUiObjectWatcher(String name,
+			UiSelector[] conditions, UiSelector target, WatcherOptions options) {
+		te.registerClickUiObjectWatcher(name, conditions, target, options);
+	}
+
 	/**
      * Register a PressKeysWatcher
      *
@@ -855,6 +1166,20 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		te.registerPressKeyskWatcher(name, conditions, keys);
 	}
 
+	/**
+     * Register a PressKeysWatcher with a priority, a cooldown and a maximum number of fires
+     *
+     * @param name       Watcher name
+     * @param conditions If all UiObject in the conditions match, the watcher should be triggered.
+     * @param keys       All keys will be pressed in sequence.
+     * @param options    Priority, cooldown and max fires of the watcher
+     */
+	@Override
+	public void registerPressKeyskWatcher(String name, UiSelector[] conditions,
+			String[] keys, WatcherOptions options) {
+		te.registerPressKeyskWatcher(name, conditions, keys, options);
+	}
+
 	/**
      * Removes a previously registered UiWatcher.
      *
@@ -882,7 +1207,8 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 	}
 
 	/**
-     * Get all registered UiWatchers
+     * Get all registered UiWatchers. Like the ones registered in UiDevice, watchers stay registered
+     * after the test case that registered them ends, until removed.
      *
      * @return UiWatcher names
      */
@@ -891,6 +1217,65 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.getWatchers();
 	}
 
+	/**
+     * Get what each registered watcher has cost so far: number of checks and triggers, evaluation and action times.
+     *
+     * @return one snapshot per watcher, in registration order
+     */
+	@Override
+	public List<WatcherMetrics> getWatcherMetrics() {
+		return te.getWatcherMetrics();
+	}
+
+	/**
+     * Reset the metrics of all registered watchers.
+     */
+	@Override
+	public void resetWatcherMetrics() {
+		te.resetWatcherMetrics();
+	}
+
+	/**
+     * Write the watcher metrics as JSON. They are dumped at the end of each test that registered watchers.
+     *
+     * @param fileName file name, relative to /data/local/tmp
+     * @return the absolute path of the file, null if it could not be written
+     */
+	@Override
+	public String dumpWatcherMetrics(String fileName) {
+		return te.dumpWatcherMetrics(fileName);
+	}
+
+	/**
+     * Run the registered watchers on a background thread, instead of only when a selector lookup fails.
+     * The interval doubles while no watcher acts, and no check is made right after an input.
+     * The scheduler is stopped in tearDown.
+     *
+     * @param interval milliseconds between checks
+     */
+	@Override
+	public void startWatcherScheduler(long interval) {
+		te.startWatcherScheduler(interval);
+	}
+
+	/**
+     * Stop the background watcher thread, waiting for a check in progress.
+     */
+	@Override
+	public void stopWatcherScheduler() {
+		te.stopWatcherScheduler();
+	}
+
+	/**
+     * Get the background watcher scheduler, to tune its backoff, jitter and quiet period or read its cycle times.
+     *
+     * @return the scheduler
+     */
+	@Override
+	public WatcherScheduler getWatcherScheduler() {
+		return te.getWatcherScheduler();
+	}
+
     /**
      * Reads the text property of the UI element
      *
@@ -1056,6 +1441,52 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 	public boolean exists(UiSelector obj) {
 		return te.exists(obj);
 	}
+	/**
+	 * Check a node exists in the cached window snapshot, without querying the device
+	 * @param selector the node to check
+	 * @return true is existing
+	 */
+	@Override
+	public boolean exists(NodeSelector selector) {
+		return te.exists(selector);
+	}
+
+	/**
+	 * Read the text of a node from the cached window snapshot
+	 * @param selector the node to read
+	 * @return text of the node
+	 * @throws com.android.uiautomator.core.UiObjectNotFoundException
+	 */
+	@Override
+	public String getText(NodeSelector selector)
+			throws UiObjectNotFoundException {
+		return te.getText(selector);
+	}
+
+	/**
+	 * Click the centre of a node found in the cached window snapshot. Only the
+	 * click itself goes to the device.
+	 * @param selector the node to click
+	 * @return true if the click succeeded
+	 * @throws com.android.uiautomator.core.UiObjectNotFoundException
+	 */
+	@Override
+	public boolean click(NodeSelector selector) throws UiObjectNotFoundException {
+		return te.click(selector);
+	}
+
+	/**
+	 * Get the properties of a node from the cached window snapshot
+	 * @param selector the node to read
+	 * @return properties of the node
+	 * @throws com.android.uiautomator.core.UiObjectNotFoundException
+	 */
+	@Override
+	public ObjInfo getObjInfo(NodeSelector selector)
+			throws UiObjectNotFoundException {
+		return te.getObjInfo(selector);
+	}
+
 	/**
 	 * Click uiseletor if it's available in timeout
 	 */
@@ -1074,6 +1505,49 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.runCommand(cmd);
 	}
 
+	/**
+	 * Run command under shell in a new process, with a deadline
+	 * @param cmd     command string
+	 * @param timeout milliseconds before the command is killed, 0 for none
+	 * @return exit code, the last lines of stdout and stderr, whether the
+	 *         command timed out and how long it took
+	 */
+	@Override
+	public ProcessResult runCommand(String cmd, long timeout) {
+		return te.runCommand(cmd, timeout);
+	}
+
+	/**
+	 * Run a list of commands under shell in one go, e.g. the settings and pm
+	 * calls of a setup phase
+	 * @param cmds       commands to run
+	 * @param concurrent true to run the commands in parallel on several shells,
+	 *                   only if they don't depend on each other
+	 * @return return value and output of each command, in order; a command
+	 *         that timed out, or follows one that timed out or exited the
+	 *         shell, has return value -1
+	 */
+	@Override
+	public List<CmdResult> runCommands(List<String> cmds, boolean concurrent) {
+		return te.runCommands(cmds, concurrent);
+	}
+
+	/**
+	 * Start a command under shell in the background, e.g. a "top" or "dumpsys"
+	 * probe running while the test drives the UI.
+	 * @param cmd      command string
+	 * @param listener receives each output line as it arrives, null to collect
+	 *                 the lines in the result
+	 * @param timeout  milliseconds before the command is killed, 0 for none
+	 * @return handle to wait for, or cancel, the command
+	 * @throws IOException if the command could not be started
+	 */
+	@Override
+	public AsyncCommand runCommandAsync(String cmd, AsyncCommand.LineListener listener,
+			long timeout) throws IOException {
+		return te.runCommandAsync(cmd, listener, timeout);
+	}
+
 	/***
 	 *  Run command and verify string in outputs
 	 * @param cmd    -- command to run in adb shell
@@ -1085,6 +1559,19 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.runCmdAndVerify(cmd, strToVerify);
 	}
 
+	/**
+	 * Run command until a line of its output matches, then kill it
+	 * @param cmd     command to run in adb shell, e.g. "logcat -v brief"
+	 * @param matcher the literal or regular expression patterns to look for and
+	 *                the timeout
+	 * @return the first matching line, null if the output ended or the timeout
+	 *         expired first
+	 */
+	@Override
+	public OutputMatcher.Match runCmdAndMatch(String cmd, OutputMatcher matcher) {
+		return te.runCmdAndMatch(cmd, matcher);
+	}
+
 
 	/***
 	 * Open application with package name
@@ -1128,4 +1615,28 @@ public class UiAutoTestCase extends UiAutomatorTestCase implements ITestEngine{
 		return te.getCoordinatesWithPixelsChecksum(checkSum);
 	}
 
+	/**
+	 * Locate a pixel checksum within a region of the screen.
+	 * Example: {@code getCoordinatesWithPixelsChecksum(sum, new PixelSearchOptions().region(rect).nearest(x, y))}
+	 * @param checkSum checksum as returned by getPixelsChecksum
+	 * @param options  search region, scan order and stride, null for the whole screen
+	 * @return {x, y}, {-1, -1} if the checksum was not found
+	 */
+	@Override
+	public int[] getCoordinatesWithPixelsChecksum(long checkSum,
+			PixelSearchOptions options) throws Exception {
+		return te.getCoordinatesWithPixelsChecksum(checkSum, options);
+	}
+
+	/**
+	 * Locate several pixel checksums with a single screenshot and a single scan.
+	 * @param checkSums checksums as returned by getPixelsChecksum
+	 * @return map of checksum to {x, y}, {-1, -1} if the checksum was not found
+	 */
+	@Override
+	public Map<Long, int[]> getCoordinatesWithPixelsChecksums(Set<Long> checkSums)
+			throws Exception {
+		return te.getCoordinatesWithPixelsChecksums(checkSums);
+	}
+
 }
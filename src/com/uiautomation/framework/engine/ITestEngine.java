@@ -1,5 +1,9 @@
 package com.uiautomation.framework.engine;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.graphics.Point;
 import android.os.RemoteException;
@@ -7,7 +11,17 @@ import android.os.RemoteException;
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiSelector;
+import com.uiautomation.framework.engine.hierarchy.HierarchyScanner;
+import com.uiautomation.framework.engine.hierarchy.HierarchySnapshot;
+import com.uiautomation.framework.engine.hierarchy.NodeSelector;
+import com.uiautomation.framework.engine.pixel.PixelSearchOptions;
+import com.uiautomation.framework.engine.watcher.WatcherMetrics;
+import com.uiautomation.framework.engine.watcher.WatcherOptions;
+import com.uiautomation.framework.engine.watcher.WatcherScheduler;
+import com.uiautomation.framework.utils.AsyncCommand;
 import com.uiautomation.framework.utils.CmdResult;
+import com.uiautomation.framework.utils.OutputMatcher;
+import com.uiautomation.framework.utils.ProcessResult;
 
 public interface ITestEngine {
 
@@ -55,6 +69,8 @@ public interface ITestEngine {
 
 	boolean pressKey(String key) throws RemoteException;
 
+	boolean pressKeys(String... keys) throws RemoteException;
+
 	int executeCmd(String cmdString);
 
 	boolean drag(int startX, int startY, int endX, int endY, int steps);
@@ -68,6 +84,16 @@ public interface ITestEngine {
 
 	String dumpWindow(String fileName, boolean compressed);
 
+	String dumpWindowBinary(String fileName, boolean compressed);
+
+	boolean scanWindow(HierarchyScanner.Visitor visitor) throws IOException;
+
+	HierarchySnapshot getHierarchySnapshot() throws IOException;
+
+	void setHierarchyCacheTimeout(long timeout);
+
+	void invalidateHierarchy();
+
 	String screenshot(String fileName, float scale, int quality);
 
 	void freezeRotation(boolean freeze) throws RemoteException;
@@ -84,6 +110,10 @@ public interface ITestEngine {
 
 	boolean waitForWindowUpdate(String packageName, long timeout);
 
+	boolean waitForChange(NodeSelector selector, long timeout);
+
+	boolean waitForChange(HierarchySnapshot baseline, NodeSelector selector, long timeout);
+
 	boolean waitForExists(UiSelector uiSelector, long timeout);
 
 	boolean waitUntilGone(UiSelector obj, long timeout);
@@ -126,8 +156,14 @@ public interface ITestEngine {
 
 	void registerClickUiObjectWatcher(String name, UiSelector[] conditions, UiSelector target);
 
+	void registerClickUiObjectWatcher(String name, UiSelector[] conditions, UiSelector target,
+			WatcherOptions options);
+
 	void registerPressKeyskWatcher(String name, UiSelector[] conditions, String[] keys);
 
+	void registerPressKeyskWatcher(String name, UiSelector[] conditions, String[] keys,
+			WatcherOptions options);
+
 	void removeWatcher(String name);
 	void resetWatcherTriggers();
 
@@ -135,6 +171,18 @@ public interface ITestEngine {
 
 	String[] getWatchers();
 
+	List<WatcherMetrics> getWatcherMetrics();
+
+	void resetWatcherMetrics();
+
+	String dumpWatcherMetrics(String fileName);
+
+	void startWatcherScheduler(long interval);
+
+	void stopWatcherScheduler();
+
+	WatcherScheduler getWatcherScheduler();
+
 	String getText(UiSelector uiSelector) throws UiObjectNotFoundException;
 
 	String getText(String resourceId) throws UiObjectNotFoundException;
@@ -164,12 +212,29 @@ public interface ITestEngine {
 
 	boolean exists(UiSelector obj);
 
+	boolean exists(NodeSelector selector);
+
+	String getText(NodeSelector selector) throws UiObjectNotFoundException;
+
+	boolean click(NodeSelector selector) throws UiObjectNotFoundException;
+
+	ObjInfo getObjInfo(NodeSelector selector) throws UiObjectNotFoundException;
+
 	boolean clickIfAvailable(UiSelector uiSelector, long timeout) throws UiObjectNotFoundException;
 
 	CmdResult runCommand(String cmd);
 
+	ProcessResult runCommand(String cmd, long timeout);
+
+	List<CmdResult> runCommands(List<String> cmds, boolean concurrent);
+
+	AsyncCommand runCommandAsync(String cmd, AsyncCommand.LineListener listener,
+			long timeout) throws IOException;
+
 	String  runCmdAndVerify(String cmd, String containString);
 
+	OutputMatcher.Match runCmdAndMatch(String cmd, OutputMatcher matcher);
+
 	UiObject waitObject(UiSelector uiSelector, long timeout);
 
 	boolean longClick(int x, int y, int time);
@@ -178,4 +243,8 @@ public interface ITestEngine {
 
 	int[] getCoordinatesWithPixelsChecksum(long checkSum) throws Exception;
 
+	int[] getCoordinatesWithPixelsChecksum(long checkSum, PixelSearchOptions options) throws Exception;
+
+	Map<Long, int[]> getCoordinatesWithPixelsChecksums(Set<Long> checkSums) throws Exception;
+
 }
\ No newline at end of file
@@ -0,0 +1,212 @@
+package com.uiautomation.framework.engine;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.RemoteException;
+import android.view.KeyEvent;
+
+import com.android.uiautomator.core.UiDevice;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Maps key names to the actions pressing them, for
+ * {@link TestEngine#pressKey(String)} and the PressKeysWatcher.
+ *
+ * <pre>
+ * KeyRegistry.Key[] keys = KeyRegistry.resolve("back", "back", "home");
+ * KeyRegistry.press(keys);
+ * </pre>
+ *
+ * Names are case insensitive. Both the names documented on pressKey and the
+ * {@link Constant} ones (recentapp, volumeup...) are known; more can be
+ * added with {@link #register(String, Key)} and {@link #alias(String, String)}.
+ * Resolving a sequence once and pressing the resulting keys skips the name
+ * lookups on every later press.
+ */
+public class KeyRegistry {
+
+	/**
+	 * Presses one key.
+	 */
+	public interface Key {
+		/**
+		 * @return true if the key event was injected
+		 */
+		boolean press(UiDevice device) throws RemoteException;
+	}
+
+	private static final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+
+	static {
+		register(Constant.HOME, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressHome();
+			}
+		});
+		register(Constant.BACK, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressBack();
+			}
+		});
+		register(Constant.LEFT, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDPadLeft();
+			}
+		});
+		register(Constant.RIGHT, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDPadRight();
+			}
+		});
+		register(Constant.UP, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDPadUp();
+			}
+		});
+		register(Constant.DOWN, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDPadDown();
+			}
+		});
+		register(Constant.CENTER, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDPadCenter();
+			}
+		});
+		register(Constant.MENU, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressMenu();
+			}
+		});
+		register(Constant.SEARCH, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressSearch();
+			}
+		});
+		register(Constant.ENTER, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressEnter();
+			}
+		});
+		register(Constant.DELETE, new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressDelete();
+			}
+		});
+		register("recent", new Key() {
+			@Override
+			public boolean press(UiDevice device) throws RemoteException {
+				return device.pressRecentApps();
+			}
+		});
+		register("volume_up", keyCode(KeyEvent.KEYCODE_VOLUME_UP));
+		register("volume_down", keyCode(KeyEvent.KEYCODE_VOLUME_DOWN));
+		register("volume_mute", keyCode(KeyEvent.KEYCODE_VOLUME_MUTE));
+		register(Constant.CAMERA, keyCode(KeyEvent.KEYCODE_CAMERA));
+		register(Constant.POWER, keyCode(KeyEvent.KEYCODE_POWER));
+		register(Constant.PLAY, keyCode(KeyEvent.KEYCODE_MEDIA_PLAY));
+		register(Constant.PAUSE, keyCode(KeyEvent.KEYCODE_MEDIA_PAUSE));
+
+		alias("del", Constant.DELETE);
+		alias(Constant.RECENTAPP, "recent");
+		alias(Constant.VOLUMEUP, "volume_up");
+		alias(Constant.VOLUMEDOWN, "volume_down");
+		alias(Constant.MUTE, "volume_mute");
+	}
+
+	private KeyRegistry() {
+	}
+
+	/**
+	 * @return a key pressing keyCode
+	 */
+	public static Key keyCode(final int keyCode) {
+		return new Key() {
+			@Override
+			public boolean press(UiDevice device) {
+				return device.pressKeyCode(keyCode);
+			}
+		};
+	}
+
+	/**
+	 * Add a key, replacing any key with the same name.
+	 */
+	public static void register(String name, Key key) {
+		keys.put(normalize(name), key);
+	}
+
+	/**
+	 * Make alias press the same key as name.
+	 * @throws IllegalArgumentException if name is unknown
+	 */
+	public static void alias(String alias, String name) {
+		Key key = get(name);
+		if (key == null) {
+			throw new IllegalArgumentException("Unknown key: " + name);
+		}
+		register(alias, key);
+	}
+
+	/**
+	 * @return the key, null if the name is unknown
+	 */
+	public static Key get(String name) {
+		return name == null ? null : keys.get(normalize(name));
+	}
+
+	/**
+	 * Look a sequence of names up once, to press it any number of times.
+	 * @return the keys in the same order, null for unknown names
+	 */
+	public static Key[] resolve(String... names) {
+		Key[] resolved = new Key[names.length];
+		for (int i = 0; i < names.length; i++) {
+			resolved[i] = get(names[i]);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Press a key by name.
+	 * @return false if the name is unknown or the key event failed
+	 */
+	public static boolean press(String name) throws RemoteException {
+		Key key = get(name);
+		return key != null && key.press(UiDevice.getInstance());
+	}
+
+	/**
+	 * Press resolved keys back to back. Unknown (null) keys are skipped and a
+	 * failed press does not stop the sequence.
+	 * @return true if every key was known and pressed
+	 */
+	public static boolean press(Key[] sequence) throws RemoteException {
+		UiDevice device = UiDevice.getInstance();
+		boolean all = true;
+		for (Key key : sequence) {
+			if (key == null) {
+				all = false;
+			} else if (!key.press(device)) {
+				all = false;
+			}
+		}
+		return all;
+	}
+
+	private static String normalize(String name) {
+		return name.toLowerCase(Locale.US);
+	}
+}
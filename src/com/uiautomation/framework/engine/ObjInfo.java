@@ -4,6 +4,7 @@ package com.uiautomation.framework.engine;
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiSelector;
+import com.uiautomation.framework.engine.hierarchy.HierarchySnapshot;
 
 public class ObjInfo {
 
@@ -15,6 +16,39 @@ public class ObjInfo {
         return new ObjInfo(new UiObject(selector));
     }
 
+	/**
+	 * Copy a node of a snapshot. The dump has no visible bounds, so they are
+	 * set to the bounds.
+	 */
+	public static final ObjInfo getObjInfo(HierarchySnapshot snapshot, int node) {
+		ObjInfo info = new ObjInfo();
+		Rect rect = new Rect();
+		rect.setLeft(snapshot.getLeft(node));
+		rect.setTop(snapshot.getTop(node));
+		rect.setRight(snapshot.getRight(node));
+		rect.setBottom(snapshot.getBottom(node));
+		info.setBounds(rect);
+		info.setVisibleBounds(rect);
+		info.setChildCount(snapshot.getChildCount(node));
+		info.setClassName(snapshot.getClassName(node));
+		info.setContentDescription(snapshot.getContentDescription(node));
+		info.setPackageName(snapshot.getPackageName(node));
+		info.setText(snapshot.getText(node));
+		info.setCheckable(snapshot.is(node, HierarchySnapshot.CHECKABLE));
+		info.setChecked(snapshot.is(node, HierarchySnapshot.CHECKED));
+		info.setClickable(snapshot.is(node, HierarchySnapshot.CLICKABLE));
+		info.setEnabled(snapshot.is(node, HierarchySnapshot.ENABLED));
+		info.setFocusable(snapshot.is(node, HierarchySnapshot.FOCUSABLE));
+		info.setFocused(snapshot.is(node, HierarchySnapshot.FOCUSED));
+		info.setLongClickable(snapshot.is(node, HierarchySnapshot.LONG_CLICKABLE));
+		info.setScrollable(snapshot.is(node, HierarchySnapshot.SCROLLABLE));
+		info.setSelected(snapshot.is(node, HierarchySnapshot.SELECTED));
+		return info;
+	}
+
+	public ObjInfo() {
+	}
+
 	private ObjInfo(UiObject obj) throws UiObjectNotFoundException {
 		this._bounds = Rect.from(obj.getBounds());
 		this._checkable = obj.isCheckable();
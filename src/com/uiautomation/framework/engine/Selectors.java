@@ -0,0 +1,130 @@
+package com.uiautomation.framework.engine;
+
+import java.lang.reflect.Field;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.uiautomator.core.UiSelector;
+import com.uiautomation.framework.engine.hierarchy.NodeSelector;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Converts between UiSelector and {@link NodeSelector}.
+ */
+public class Selectors {
+
+	private static Field attributesField;
+
+	private static int textKey = -1;
+
+	private static int containsTextKey = -1;
+
+	private static int classKey = -1;
+
+	private static int descriptionKey = -1;
+
+	private static int instanceKey = -1;
+
+	private static int resourceIdKey = -1;
+
+	private static int resourceIdRegexKey = -1;
+
+	private static boolean reflectionFailed = false;
+
+	private Selectors() {
+	}
+
+	/**
+	 * Build the UiSelector used to reach the live object.
+	 */
+	public static UiSelector toUiSelector(NodeSelector selector) {
+		UiSelector s = new UiSelector();
+		if (selector.getText() != null)
+			s = s.text(selector.getText());
+		if (selector.getTextContains() != null)
+			s = s.textContains(selector.getTextContains());
+		if (selector.getResourceId() != null)
+			s = s.resourceId(selector.getResourceId());
+		if (selector.getResourceIdMatches() != null)
+			s = s.resourceIdMatches(selector.getResourceIdMatches().pattern());
+		if (selector.getClassName() != null)
+			s = s.className(selector.getClassName());
+		if (selector.getDescription() != null)
+			s = s.description(selector.getDescription());
+		if (selector.getInstance() != 0)
+			s = s.instance(selector.getInstance());
+		return s;
+	}
+
+	/**
+	 * Walk around to read the attributes of a UiSelector, which are not
+	 * exposed by uiautomator.
+	 * @return the equivalent NodeSelector, or null if the selector uses an
+	 *         attribute NodeSelector doesn't support (child, parent, index,
+	 *         boolean states...) or the attributes can't be read
+	 */
+	public static NodeSelector fromUiSelector(UiSelector uiSelector) {
+		SparseArray<?> attributes = attributes(uiSelector);
+		if (attributes == null) {
+			return null;
+		}
+		NodeSelector selector = new NodeSelector();
+		for (int i = 0; i < attributes.size(); i++) {
+			int key = attributes.keyAt(i);
+			Object value = attributes.valueAt(i);
+			if (key == textKey)
+				selector.text((String) value);
+			else if (key == containsTextKey)
+				selector.textContains((String) value);
+			else if (key == classKey)
+				selector.className((String) value);
+			else if (key == descriptionKey)
+				selector.description((String) value);
+			else if (key == instanceKey)
+				selector.instance((Integer) value);
+			else if (key == resourceIdKey)
+				selector.resourceId((String) value);
+			else if (key == resourceIdRegexKey)
+				selector.resourceIdMatches((Pattern) value);
+			else
+				return null;
+		}
+		return selector;
+	}
+
+	private static synchronized SparseArray<?> attributes(UiSelector uiSelector) {
+		if (reflectionFailed) {
+			return null;
+		}
+		try {
+			if (attributesField == null) {
+				textKey = key("SELECTOR_TEXT");
+				containsTextKey = key("SELECTOR_CONTAINS_TEXT");
+				classKey = key("SELECTOR_CLASS");
+				descriptionKey = key("SELECTOR_DESCRIPTION");
+				instanceKey = key("SELECTOR_INSTANCE");
+				resourceIdKey = key("SELECTOR_RESOURCE_ID");
+				resourceIdRegexKey = key("SELECTOR_RESOURCE_ID_REGEX");
+				Field f = UiSelector.class.getDeclaredField("mSelectorAttributes");
+				f.setAccessible(true);
+				attributesField = f;
+			}
+			return (SparseArray<?>) attributesField.get(uiSelector);
+		} catch (NoSuchFieldException e) {
+			Log.d(Constant.LOG_TAG, e.getMessage());
+		} catch (IllegalAccessException e) {
+			Log.d(Constant.LOG_TAG, e.getMessage());
+		}
+		reflectionFailed = true;
+		return null;
+	}
+
+	private static int key(String name) throws NoSuchFieldException,
+			IllegalAccessException {
+		Field f = UiSelector.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return f.getInt(null);
+	}
+}
@@ -2,25 +2,26 @@ package com.uiautomation.framework.engine;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.os.Build;
 import android.os.Environment;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
-import android.view.KeyEvent;
 
 import com.android.uiautomator.core.Configurator;
 import com.android.uiautomator.core.UiCollection;
@@ -29,21 +30,115 @@ import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiScrollable;
 import com.android.uiautomator.core.UiSelector;
+import com.uiautomation.framework.engine.hierarchy.HierarchyCache;
+import com.uiautomation.framework.engine.hierarchy.HierarchyConverter;
+import com.uiautomation.framework.engine.hierarchy.HierarchyParser;
+import com.uiautomation.framework.engine.hierarchy.HierarchyScanner;
+import com.uiautomation.framework.engine.hierarchy.HierarchySnapshot;
+import com.uiautomation.framework.engine.hierarchy.NodeSelector;
+import com.uiautomation.framework.engine.pixel.PixelChecksumSearcher;
+import com.uiautomation.framework.engine.pixel.PixelSearchOptions;
+import com.uiautomation.framework.engine.pixel.ScreenCapture;
 import com.uiautomation.framework.engine.watcher.ClickUiObjectWatcher;
 import com.uiautomation.framework.engine.watcher.PressKeysWatcher;
+import com.uiautomation.framework.engine.watcher.SelectorWatcher;
+import com.uiautomation.framework.engine.watcher.WatcherEngine;
+import com.uiautomation.framework.engine.watcher.WatcherMetrics;
+import com.uiautomation.framework.engine.watcher.WatcherOptions;
+import com.uiautomation.framework.engine.watcher.WatcherScheduler;
+import com.uiautomation.framework.utils.AsyncCommand;
 import com.uiautomation.framework.utils.CmdResult;
 import com.uiautomation.framework.utils.Constant;
+import com.uiautomation.framework.utils.OutputMatcher;
+import com.uiautomation.framework.utils.ProcessExecutor;
+import com.uiautomation.framework.utils.ProcessResult;
+import com.uiautomation.framework.utils.ShellSessionPool;
 
 public class TestEngine implements ITestEngine {
 
 	final public static String STORAGE_PATH = "/data/local/tmp/";
 
-	private final HashSet<String> watchers = new HashSet<String>();
+	// Registered watcher names. Like the watchers uiautomator keeps in
+	// UiDevice, they outlive the test case that registered them.
+	private static final LinkedHashSet<String> watchers = new LinkedHashSet<String>();
 
-	private static final int DEVIATION = 10; // PIXEL DIVIATION
+	private static final String WATCHER_ENGINE = "WatcherEngine";
+
+	private static final String SNAPSHOT_FILE = "snapshot.xml";
+
+	private static final String SCAN_FILE = "scan.xml";
+
+	private static final String BINARY_DUMP_SOURCE = "dump_binary.xml";
+
+	private static final long HIERARCHY_CACHE_TIMEOUT = 1000;
+
+	// Without window change events, a change the app makes by itself is only
+	// seen once the snapshot expires; keep that short enough for a polling
+	// assertion.
+	private static final long UNMONITORED_CACHE_TIMEOUT = 250;
+
+	private static boolean windowMonitorInstalled;
+
+	// Shared by every engine of the process, they all look at the same window:
+	// input injected by one invalidates the snapshot for all, and the watcher
+	// engine below sees it.
+	private static final HierarchyCache hierarchyCache = new HierarchyCache(
+			new HierarchyCache.Loader() {
+				@Override
+				public HierarchySnapshot load() throws IOException {
+					File f = dumpWindowFile(SNAPSHOT_FILE);
+					if (f == null) {
+						throw new IOException("Could not dump window hierarchy");
+					}
+					return HierarchyParser.parse(f);
+				}
+			}, HIERARCHY_CACHE_TIMEOUT);
+
+	private static final long CHANGE_POLL_INTERVAL = 50;
+
+	private static final long SHELL_TIMEOUT = 60000;
+
+	// Shells start on first use, so unused sessions cost nothing.
+	private static final int SHELL_SESSIONS = 4;
+
+	// One pool for the process: uiautomator keeps every engine until the run
+	// ends, a pool per engine would keep up to SHELL_SESSIONS shells per test.
+	private static final ShellSessionPool shellPool = new ShellSessionPool(Constant.SHELL,
+			SHELL_SESSIONS);
+
+	// One watcher engine per process, registered with UiDevice under a fixed
+	// name while it has watchers; an engine per test would replace the
+	// previous test's engine in UiDevice and drop its watchers.
+	private static final WatcherEngine watcherEngine = new WatcherEngine(hierarchyCache);
+
+	private final WatcherScheduler watcherScheduler = new WatcherScheduler(watcherEngine);
+
+	// Shared for the same reason as the searcher below: the full-screen pixel
+	// buffer is kept once per process, not once per test. Captures lock it.
+	private static final ScreenCapture screenCapture = new ScreenCapture(STORAGE_PATH);
+
+	// uiautomator keeps every test case, and so every engine, until the run
+	// ends; one searcher per process keeps its threads and its integral image
+	// from piling up. Searches are serialized by the searcher.
+	private static final PixelChecksumSearcher pixelSearcher = new PixelChecksumSearcher(
+			Runtime.getRuntime().availableProcessors());
 
 	public TestEngine(long waitTimeout) {
 		Configurator.getInstance().setWaitForSelectorTimeout(waitTimeout);
+		monitorWindowChanges();
+	}
+
+	/**
+	 * Invalidate the shared snapshot on window changes, once per process.
+	 */
+	private static synchronized void monitorWindowChanges() {
+		if (windowMonitorInstalled) {
+			return;
+		}
+		windowMonitorInstalled = true;
+		if (!WindowChangeMonitor.install(hierarchyCache)) {
+			hierarchyCache.setTimeToLive(UNMONITORED_CACHE_TIMEOUT);
+		}
 	}
 
 
@@ -54,296 +149,355 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public boolean openApplication(String pkg, String cls) {
-		String cmd = "am start -a android.intent.action.MAIN -W -n " + pkg
-				+ "/" + cls;
-		return executeCmd(cmd) == 0;
+		beginInput();
+		try {
+			String cmd = "am start -a android.intent.action.MAIN -W -n " + pkg
+					+ "/" + cls;
+			return executeCmd(cmd) == 0;
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean enterText(String text, UiSelector uiSelector)
 			throws UiObjectNotFoundException {
-		return new UiObject(uiSelector).setText(text);
+		beginInput();
+		try {
+			return new UiObject(uiSelector).setText(text);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickText(String text) throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().text(text)).click();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().text(text)).click();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickResourceIdMatches(String id)
 			throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().resourceIdMatches(".*" + id))
-				.click();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().resourceIdMatches(".*" + id))
+					.click();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickResourceId(String id) throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().resourceId(id)).click();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().resourceId(id)).click();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickClass(String clzName, int instance)
 			throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().className(clzName).instance(
-				instance)).click();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().className(clzName).instance(
+					instance)).click();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickDescription(String discription)
 			throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().description(discription))
-				.clickAndWaitForNewWindow();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().description(discription))
+					.clickAndWaitForNewWindow();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickTextContains(String text)
 			throws UiObjectNotFoundException {
-		return new UiObject(new UiSelector().textContains(text))
-				.clickAndWaitForNewWindow();
+		beginInput();
+		try {
+			return new UiObject(new UiSelector().textContains(text))
+					.clickAndWaitForNewWindow();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean click(UiSelector uiSelector)
 			throws UiObjectNotFoundException {
-		return new UiObject(uiSelector).clickAndWaitForNewWindow();
+		beginInput();
+		try {
+			return new UiObject(uiSelector).clickAndWaitForNewWindow();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean click(UiObject obj) throws UiObjectNotFoundException {
-		return obj.clickAndWaitForNewWindow();
+		beginInput();
+		try {
+			return obj.clickAndWaitForNewWindow();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean click(UiSelector uiSelector, String corner)
 			throws UiObjectNotFoundException {
-
-		if (corner == null) {
-			corner = "center";
-		}
-		corner = corner.toLowerCase();
-		if ("br".equals(corner) || "bottomright".equals(corner)) {
-			return new UiObject(uiSelector).clickBottomRight();
-		} else if (("tl".equals(corner) || "topleft".equals(corner))) {
-			return new UiObject(uiSelector).clickTopLeft();
-		} else if ("c".equals(corner) || "center".equals(corner)) {
-			return new UiObject(uiSelector).click();
+		beginInput();
+		try {
+			if (corner == null) {
+				corner = "center";
+			}
+			corner = corner.toLowerCase();
+			if ("br".equals(corner) || "bottomright".equals(corner)) {
+				return new UiObject(uiSelector).clickBottomRight();
+			} else if (("tl".equals(corner) || "topleft".equals(corner))) {
+				return new UiObject(uiSelector).clickTopLeft();
+			} else if ("c".equals(corner) || "center".equals(corner)) {
+				return new UiObject(uiSelector).click();
+			}
+			return false;
+		} finally {
+			endInput();
 		}
-		return false;
 	}
 
 	@Override
 	public boolean click(int x, int y) {
-		return UiDevice.getInstance().click(x, y);
+		beginInput();
+		try {
+			return UiDevice.getInstance().click(x, y);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean longClick(int x, int y) {
-		return UiDevice.getInstance().swipe(x, y, x , y , 300);
+		beginInput();
+		try {
+			return UiDevice.getInstance().swipe(x, y, x , y , 300);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean longClick(UiSelector uiSelector)
 			throws UiObjectNotFoundException {
-		//return new UiObject(uiSelector).longClick(); // this method doesn't work
-		UiObject obj = new UiObject(uiSelector);
-		return longClick(obj.getBounds().centerX(), obj.getBounds().centerY());
+		beginInput();
+		try {
+			//return new UiObject(uiSelector).longClick(); // this method doesn't work
+			UiObject obj = new UiObject(uiSelector);
+			return longClick(obj.getBounds().centerX(), obj.getBounds().centerY());
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean longClick(UiSelector uiSelector, String corner)
 			throws UiObjectNotFoundException {
-
-		if (corner == null) {
-			corner = "center";
-		}
-		corner = corner.toLowerCase();
-		if ("br".equals(corner) || "bottomright".equals(corner)) {
-			return new UiObject(uiSelector).longClickBottomRight();
-		} else if (("tl".equals(corner) || "topleft".equals(corner))) {
-			return new UiObject(uiSelector).longClickTopLeft();
-		} else if ("c".equals(corner) || "center".equals(corner)) {
-			return new UiObject(uiSelector).longClick();
+		beginInput();
+		try {
+			if (corner == null) {
+				corner = "center";
+			}
+			corner = corner.toLowerCase();
+			if ("br".equals(corner) || "bottomright".equals(corner)) {
+				return new UiObject(uiSelector).longClickBottomRight();
+			} else if (("tl".equals(corner) || "topleft".equals(corner))) {
+				return new UiObject(uiSelector).longClickTopLeft();
+			} else if ("c".equals(corner) || "center".equals(corner)) {
+				return new UiObject(uiSelector).longClick();
+			}
+			return false;
+		} finally {
+			endInput();
 		}
-		return false;
 	}
 
 	@Override
 	public boolean openNotification() {
-		return UiDevice.getInstance().openNotification();
+		beginInput();
+		try {
+			return UiDevice.getInstance().openNotification();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean openQuickSettings() {
-		return UiDevice.getInstance().openQuickSettings();
+		beginInput();
+		try {
+			return UiDevice.getInstance().openQuickSettings();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean pressKeyCode(int keyCode) {
-		return UiDevice.getInstance().pressKeyCode(keyCode);
+		beginInput();
+		try {
+			return UiDevice.getInstance().pressKeyCode(keyCode);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean pressKeyCode(int keyCode, int metaState) {
-		return UiDevice.getInstance().pressKeyCode(keyCode, metaState);
+		beginInput();
+		try {
+			return UiDevice.getInstance().pressKeyCode(keyCode, metaState);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean pressKey(String key) throws RemoteException {
-		boolean result;
-		key = key.toLowerCase();
-		if ("home".equals(key))
-			result = UiDevice.getInstance().pressHome();
-		else if ("back".equals(key))
-			result = UiDevice.getInstance().pressBack();
-		else if ("left".equals(key))
-			result = UiDevice.getInstance().pressDPadLeft();
-		else if ("right".equals(key))
-			result = UiDevice.getInstance().pressDPadRight();
-		else if ("up".equals(key))
-			result = UiDevice.getInstance().pressDPadUp();
-		else if ("down".equals(key))
-			result = UiDevice.getInstance().pressDPadDown();
-		else if ("center".equals(key))
-			result = UiDevice.getInstance().pressDPadCenter();
-		else if ("menu".equals(key))
-			result = UiDevice.getInstance().pressMenu();
-		else if ("search".equals(key))
-			result = UiDevice.getInstance().pressSearch();
-		else if ("enter".equals(key))
-			result = UiDevice.getInstance().pressEnter();
-		else if ("delete".equals(key) || "del".equals(key))
-			result = UiDevice.getInstance().pressDelete();
-		else if ("recent".equals(key))
-			result = UiDevice.getInstance().pressRecentApps();
-		else if ("volume_up".equals(key))
-			result = UiDevice.getInstance().pressKeyCode(
-					KeyEvent.KEYCODE_VOLUME_UP);
-		else if ("volume_down".equals(key))
-			result = UiDevice.getInstance().pressKeyCode(
-					KeyEvent.KEYCODE_VOLUME_DOWN);
-		else if ("volume_mute".equals(key))
-			result = UiDevice.getInstance().pressKeyCode(
-					KeyEvent.KEYCODE_VOLUME_MUTE);
-		else if ("camera".equals(key))
-			result = UiDevice.getInstance().pressKeyCode(
-					KeyEvent.KEYCODE_CAMERA);
-		else
-			result = "power".equals(key)
-					&& UiDevice.getInstance().pressKeyCode(
-							KeyEvent.KEYCODE_POWER);
+		beginInput();
+		try {
+			return KeyRegistry.press(key);
+		} finally {
+			endInput();
+		}
+	}
 
-		return result;
+	@Override
+	public boolean pressKeys(String... keys) throws RemoteException {
+		beginInput();
+		try {
+			return KeyRegistry.press(KeyRegistry.resolve(keys));
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public int executeCmd(String cmdString) {
-
-		Process proc = null;
-		int returncode = -1;
-		try {
-			proc = Runtime.getRuntime().exec(cmdString);
-			// the following is to prevent subprocess locked
-			InputStream stderr = proc.getErrorStream();
-			InputStreamReader isr = new InputStreamReader(stderr);
-			BufferedReader br = new BufferedReader(isr);
-			String line = null;
-			while ((line = br.readLine()) != null)  {
-				Log.v(Constant.LOG_TAG, line);
-			}
-			synchronized (proc) {
-				try {
-					proc.wait(1000);
-				} catch (Exception e) {
+		hierarchyCache.invalidate();
+		try {
+			CmdResult result = runOnShell(cmdString);
+			if (result != null) {
+				for (String line : result.errors) {
+					Log.v(Constant.LOG_TAG, line);
 				}
+				return result.returnValue;
 			}
-			returncode = proc.exitValue();
-			if (proc != null) {
-				proc.destroy();
-			}
-		} catch (Exception e) {
-			Log.e(Constant.LOG_TAG,
-					"Could not save because we were interrupted");
-			if (proc != null) {
-				proc.destroy();
-			}
-			e.printStackTrace();
+		} catch (TimeoutException e) {
+			Log.e(Constant.LOG_TAG, "Command timed out: " + cmdString);
+			return -1;
 		}
-		return returncode;
+
+		ProcessResult result = executeProcess(cmdString);
+		if (result.timedOut) {
+			Log.e(Constant.LOG_TAG, "Command timed out: " + cmdString);
+		}
+		for (String line : result.errors) {
+			Log.v(Constant.LOG_TAG, line);
+		}
+		return result.returnValue;
 	}
 
 	@Override
 	public boolean drag(int startX, int startY, int endX, int endY, int steps) {
-		return UiDevice.getInstance().drag(startX, startY, endX, endY, steps);
+		beginInput();
+		try {
+			return UiDevice.getInstance().drag(startX, startY, endX, endY, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean dragTo(UiSelector from, UiSelector to, int steps)
 			throws UiObjectNotFoundException {
-		return new UiObject(from).dragTo(new UiObject(to), steps);
+		beginInput();
+		try {
+			return new UiObject(from).dragTo(new UiObject(to), steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean swipe(int startX, int startY, int endX, int endY, int steps) {
-		return UiDevice.getInstance().swipe(startX, startY, endX, endY, steps);
+		beginInput();
+		try {
+			return UiDevice.getInstance().swipe(startX, startY, endX, endY, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean swipe(UiSelector uiSelector, String dir, int steps)
 			throws UiObjectNotFoundException {
-		dir = dir.toLowerCase();
-		boolean result = false;
-		if ("u".equals(dir) || "up".equals(dir)) {
-			result = new UiObject(uiSelector).swipeUp(steps);
-		} else if ("d".equals(dir) || "down".equals(dir)) {
-			result = new UiObject(uiSelector).swipeDown(steps);
-		} else if ("l".equals(dir) || "left".equals(dir)) {
-			result = new UiObject(uiSelector).swipeLeft(steps);
-		} else if ("r".equals(dir) || "right".equals(dir)) {
-			result = new UiObject(uiSelector).swipeRight(steps);
-		}
+		beginInput();
+		try {
+			dir = dir.toLowerCase();
+			boolean result = false;
+			if ("u".equals(dir) || "up".equals(dir)) {
+				result = new UiObject(uiSelector).swipeUp(steps);
+			} else if ("d".equals(dir) || "down".equals(dir)) {
+				result = new UiObject(uiSelector).swipeDown(steps);
+			} else if ("l".equals(dir) || "left".equals(dir)) {
+				result = new UiObject(uiSelector).swipeLeft(steps);
+			} else if ("r".equals(dir) || "right".equals(dir)) {
+				result = new UiObject(uiSelector).swipeRight(steps);
+			}
 
-		return result;
+			return result;
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public String dumpWindow(String fileName, boolean compressed) {
 		if (Build.VERSION.SDK_INT >= 18)
 			UiDevice.getInstance().setCompressedLayoutHeirarchy(compressed);
-		File parent = new File(Environment.getDataDirectory(), "local/tmp"); // Environment.getDataDirectory()
-																				// return
-																				// /data/local/tmp
-																				// in
-																				// android
-																				// 4.3
-																				// but
-																				// not
-																				// expected
-																				// /data
-		if (!parent.exists())
-			parent.mkdirs();
 		boolean return_value = false;
 		if (fileName == null || fileName == "") {
 			fileName = "dump.xml";
 			return_value = true;
 		}
-		File dumpFile = new File(parent, fileName).getAbsoluteFile();
-		UiDevice.getInstance().dumpWindowHierarchy(fileName);
-		File f = new File(STORAGE_PATH, fileName); // It should be this one, but
-													// in Android4.3, it is
-													// "/data/local/tmp/local/tmp"......
-		if (!f.exists())
-			f = dumpFile;
-		if (f.exists()) {
+		File f = dumpWindowFile(fileName);
+		if (f != null) {
 			if (return_value) {
 				BufferedReader reader = null;
 				try {
-					StringBuilder sb = new StringBuilder();
+					// Dumps are mostly ASCII, so the byte length is a good capacity.
+					StringBuilder sb = new StringBuilder((int) Math.min(f.length(),
+							Integer.MAX_VALUE - 8));
 					reader = new BufferedReader(new FileReader(f));
 					char[] buffer = new char[4096];
 					int len = 0;
 					while ((len = reader.read(buffer)) != -1) {
-						sb.append(new String(buffer, 0, len));
+						sb.append(buffer, 0, len);
 					}
 					reader.close();
 					reader = null;
@@ -366,6 +520,102 @@ public class TestEngine implements ITestEngine {
 			return null;
 	}
 
+	@Override
+	public boolean scanWindow(HierarchyScanner.Visitor visitor) throws IOException {
+		File f = dumpWindowFile(SCAN_FILE);
+		if (f == null) {
+			throw new IOException("Could not dump window hierarchy");
+		}
+		try {
+			return HierarchyScanner.scan(f, visitor);
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Override
+	public String dumpWindowBinary(String fileName, boolean compressed) {
+		if (Build.VERSION.SDK_INT >= 18)
+			UiDevice.getInstance().setCompressedLayoutHeirarchy(compressed);
+		File xml = dumpWindowFile(BINARY_DUMP_SOURCE);
+		if (xml == null)
+			return null;
+		File f = new File(STORAGE_PATH, fileName);
+		try {
+			HierarchyConverter.xmlToBinary(xml, f);
+			return f.getAbsolutePath();
+		} catch (IOException e) {
+			Log.e(Constant.LOG_TAG, e.toString());
+			f.delete();
+			return null;
+		} finally {
+			xml.delete();
+		}
+	}
+
+	/**
+	 * Dump the window hierarchy to fileName.
+	 * @return the dumped file, null if the dump failed
+	 */
+	private static File dumpWindowFile(String fileName) {
+		File parent = new File(Environment.getDataDirectory(), "local/tmp"); // Environment.getDataDirectory()
+																				// return
+																				// /data/local/tmp
+																				// in
+																				// android
+																				// 4.3
+																				// but
+																				// not
+																				// expected
+																				// /data
+		if (!parent.exists())
+			parent.mkdirs();
+		File dumpFile = new File(parent, fileName).getAbsoluteFile();
+		File f = new File(STORAGE_PATH, fileName); // It should be this one, but
+													// in Android4.3, it is
+													// "/data/local/tmp/local/tmp"......
+		// Remove the previous dump so a failed dump isn't mistaken for a new one.
+		dumpFile.delete();
+		f.delete();
+		UiDevice.getInstance().dumpWindowHierarchy(fileName);
+		if (!f.exists())
+			f = dumpFile;
+		return f.exists() ? f : null;
+	}
+
+	@Override
+	public HierarchySnapshot getHierarchySnapshot() throws IOException {
+		return hierarchyCache.get();
+	}
+
+	@Override
+	public void setHierarchyCacheTimeout(long timeout) {
+		hierarchyCache.setTimeToLive(timeout);
+	}
+
+	@Override
+	public void invalidateHierarchy() {
+		hierarchyCache.invalidate();
+	}
+
+	/**
+	 * Called before injecting input: the window is about to change, and the
+	 * background watchers hold off until {@link #endInput()} and the quiet
+	 * period after it.
+	 */
+	private void beginInput() {
+		hierarchyCache.invalidate();
+		watcherScheduler.beginInput();
+	}
+
+	/**
+	 * Called once the input is injected, in a finally block.
+	 */
+	private void endInput() {
+		hierarchyCache.invalidate();
+		watcherScheduler.endInput();
+	}
+
 	@Override
 	public String screenshot(String filename, float scale, int quality) {
 		File f = new File(STORAGE_PATH, filename);
@@ -386,23 +636,38 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public void setOrientation(String dir) throws RemoteException {
-		dir = dir.toLowerCase();
-		if ("left".equals(dir) || "l".equals(dir))
-			UiDevice.getInstance().setOrientationLeft();
-		else if ("right".equals(dir) || "r".equals(dir))
-			UiDevice.getInstance().setOrientationRight();
-		else if ("natural".equals(dir) || "n".equals(dir))
-			UiDevice.getInstance().setOrientationNatural();
+		beginInput();
+		try {
+			dir = dir.toLowerCase();
+			if ("left".equals(dir) || "l".equals(dir))
+				UiDevice.getInstance().setOrientationLeft();
+			else if ("right".equals(dir) || "r".equals(dir))
+				UiDevice.getInstance().setOrientationRight();
+			else if ("natural".equals(dir) || "n".equals(dir))
+				UiDevice.getInstance().setOrientationNatural();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public void wakeUp() throws RemoteException {
-		UiDevice.getInstance().wakeUp();
+		beginInput();
+		try {
+			UiDevice.getInstance().wakeUp();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public void sleep() throws RemoteException {
-		UiDevice.getInstance().sleep();
+		beginInput();
+		try {
+			UiDevice.getInstance().sleep();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
@@ -420,6 +685,60 @@ public class TestEngine implements ITestEngine {
 		return UiDevice.getInstance().waitForWindowUpdate(packageName, timeout);
 	}
 
+	@Override
+	public boolean waitForChange(NodeSelector selector, long timeout) {
+		HierarchySnapshot baseline;
+		try {
+			// The cached snapshot may be from an earlier step or a watcher
+			// cycle, a change before the call must not end the wait.
+			hierarchyCache.invalidate();
+			baseline = hierarchyCache.get();
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Could not wait for change: " + e.getMessage());
+			return false;
+		}
+		return waitForChange(baseline, selector, timeout);
+	}
+
+	@Override
+	public boolean waitForChange(HierarchySnapshot baseline, NodeSelector selector,
+			long timeout) {
+		long state = stateOf(baseline, selector);
+		long deadline = SystemClock.uptimeMillis() + timeout;
+		try {
+			while (true) {
+				hierarchyCache.invalidate();
+				if (stateOf(hierarchyCache.get(), selector) != state) {
+					return true;
+				}
+				if (SystemClock.uptimeMillis() + CHANGE_POLL_INTERVAL > deadline) {
+					return false;
+				}
+				SystemClock.sleep(CHANGE_POLL_INTERVAL);
+			}
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Could not wait for change: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * The subtree hash covers the attributes, flags and bounds of every node
+	 * of the subtree and their order, so it differs exactly when
+	 * HierarchyDiff would report something; comparing hashes answers
+	 * the wait without walking both trees on every poll. Callers wanting the
+	 * details diff the baseline with {@link #getHierarchySnapshot()}.
+	 * @return the subtree hash of the selected node, of the whole window if
+	 *         selector is null, or 0 if the node is absent
+	 */
+	private static long stateOf(HierarchySnapshot snapshot, NodeSelector selector) {
+		if (selector == null) {
+			return snapshot.getHash();
+		}
+		int node = snapshot.find(selector);
+		return node < 0 ? 0 : snapshot.getSubtreeHash(node);
+	}
+
 	@Override
 	public boolean waitForExists(UiSelector uiSelector, long timeout) {
 		return new UiObject(uiSelector).waitForExists(timeout);
@@ -480,108 +799,157 @@ public class TestEngine implements ITestEngine {
 	@Override
 	public boolean flingBackward(UiSelector obj, boolean isVertical)
 			throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.flingBackward();
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.flingBackward();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean flingForward(UiSelector obj, boolean isVertical)
 			throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.flingForward();
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.flingForward();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean flingToBeginning(UiSelector obj, boolean isVertical,
 			int maxSwipes) throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.flingToBeginning(maxSwipes);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.flingToBeginning(maxSwipes);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean flingToEnd(UiSelector obj, boolean isVertical, int maxSwipes)
 			throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.flingToEnd(maxSwipes);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.flingToEnd(maxSwipes);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean gesture(UiSelector obj, Point startPoint1,
 			Point startPoint2, Point endPoint1, Point endPoint2, int steps) {
-		return new UiObject(obj).performTwoPointerGesture(startPoint1,
-				startPoint2, endPoint1, endPoint2, steps);
+		beginInput();
+		try {
+			return new UiObject(obj).performTwoPointerGesture(startPoint1,
+					startPoint2, endPoint1, endPoint2, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean scrollTo(UiSelector fromUiSelector, UiSelector toUiSelector,
 			boolean isVertical) throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(fromUiSelector);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.scrollIntoView(toUiSelector);
-
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(fromUiSelector);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.scrollIntoView(toUiSelector);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean scrollBackward(UiSelector obj, boolean isVertical, int steps)
 			throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.scrollBackward(steps);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.scrollBackward(steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean scrollForward(UiSelector obj, boolean isVertical, int steps)
 			throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.scrollForward(steps);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.scrollForward(steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean scrollToBeginning(UiSelector obj, boolean isVertical,
 			int maxSwipes, int steps) throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.scrollToBeginning(maxSwipes, steps);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.scrollToBeginning(maxSwipes, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean scrollToEnd(UiSelector obj, boolean isVertical,
 			int maxSwipes, int steps) throws UiObjectNotFoundException {
-		UiScrollable scrollable = new UiScrollable(obj);
-		if (isVertical)
-			setAsVerticalList(scrollable);
-		else
-			setAsHorizontalList(scrollable);
-		return scrollable.scrollToEnd(maxSwipes, steps);
+		beginInput();
+		try {
+			UiScrollable scrollable = new UiScrollable(obj);
+			if (isVertical)
+				setAsVerticalList(scrollable);
+			else
+				setAsHorizontalList(scrollable);
+			return scrollable.scrollToEnd(maxSwipes, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
@@ -596,49 +964,53 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public boolean hasWatcherTriggered(String watcherName) {
+		if (watcherEngine.contains(watcherName)) {
+			return watcherEngine.hasTriggered(watcherName);
+		}
 		return UiDevice.getInstance().hasWatcherTriggered(watcherName);
 	}
 
 	@Override
 	public boolean hasAnyWatcherTriggered() {
-		return UiDevice.getInstance().hasAnyWatcherTriggered();
+		return watcherEngine.hasAnyTriggered()
+				|| UiDevice.getInstance().hasAnyWatcherTriggered();
 	}
 
 	@Override
 	public void registerClickUiObjectWatcher(String name,
 			UiSelector[] conditions, UiSelector target) {
-		synchronized (watchers) {
-			if (watchers.contains(name)) {
-				UiDevice.getInstance().removeWatcher(name);
-				watchers.remove(name);
-			}
-
-			UiSelector[] selectors = new UiSelector[conditions.length];
-			for (int i = 0; i < conditions.length; i++) {
-				selectors[i] = conditions[i];
-			}
-			UiDevice.getInstance().registerWatcher(name,
-					new ClickUiObjectWatcher(selectors, target));
-			watchers.add(name);
-		}
+		registerClickUiObjectWatcher(name, conditions, target, new WatcherOptions());
+	}
 
+	@Override
+	public void registerClickUiObjectWatcher(String name,
+			UiSelector[] conditions, UiSelector target, WatcherOptions options) {
+		registerWatcher(name, new ClickUiObjectWatcher(conditions.clone(), target), options);
 	}
 
 	@Override
 	public void registerPressKeyskWatcher(String name, UiSelector[] conditions,
 			String[] keys) {
-		synchronized (watchers) {
-			if (watchers.contains(name)) {
-				UiDevice.getInstance().removeWatcher(name);
-				watchers.remove(name);
-			}
+		registerPressKeyskWatcher(name, conditions, keys, new WatcherOptions());
+	}
+
+	@Override
+	public void registerPressKeyskWatcher(String name, UiSelector[] conditions,
+			String[] keys, WatcherOptions options) {
+		registerWatcher(name, new PressKeysWatcher(conditions.clone(), keys), options);
+	}
 
-			UiSelector[] selectors = new UiSelector[conditions.length];
-			for (int i = 0; i < conditions.length; i++) {
-				selectors[i] = conditions[i];
+	/**
+	 * Watchers all run inside the watcher engine, which is itself the only
+	 * watcher registered with uiautomator.
+	 */
+	private void registerWatcher(String name, SelectorWatcher watcher,
+			WatcherOptions options) {
+		synchronized (watchers) {
+			if (watchers.isEmpty()) {
+				UiDevice.getInstance().registerWatcher(WATCHER_ENGINE, watcherEngine);
 			}
-			UiDevice.getInstance().registerWatcher(name,
-					new PressKeysWatcher(selectors, keys));
+			watcherEngine.register(name, watcher, options);
 			watchers.add(name);
 		}
 	}
@@ -646,20 +1018,24 @@ public class TestEngine implements ITestEngine {
 	@Override
 	public void removeWatcher(String name) {
 		synchronized (watchers) {
-			if (watchers.contains(name)) {
-				UiDevice.getInstance().removeWatcher(name);
-				watchers.remove(name);
+			if (watchers.remove(name)) {
+				watcherEngine.remove(name);
+				if (watchers.isEmpty()) {
+					UiDevice.getInstance().removeWatcher(WATCHER_ENGINE);
+				}
 			}
 		}
 	}
 
 	@Override
 	public void resetWatcherTriggers() {
+		watcherEngine.resetTriggers();
 		UiDevice.getInstance().resetWatcherTriggers();
 	}
 
 	@Override
 	public void runWatchers() {
+		hierarchyCache.invalidate();
 		UiDevice.getInstance().runWatchers();
 	}
 
@@ -670,6 +1046,53 @@ public class TestEngine implements ITestEngine {
 		}
 	}
 
+	@Override
+	public List<WatcherMetrics> getWatcherMetrics() {
+		return watcherEngine.getMetrics();
+	}
+
+	@Override
+	public void resetWatcherMetrics() {
+		watcherEngine.resetMetrics();
+	}
+
+	@Override
+	public String dumpWatcherMetrics(String fileName) {
+		File f = new File(STORAGE_PATH, fileName);
+		File parent = f.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+			try {
+				out.write(WatcherMetrics.toJson(watcherEngine.getMetrics()));
+			} finally {
+				out.close();
+			}
+			return f.getAbsolutePath();
+		} catch (IOException e) {
+			Log.e(Constant.LOG_TAG, e.toString());
+			return null;
+		}
+	}
+
+	@Override
+	public void startWatcherScheduler(long interval) {
+		watcherScheduler.setInterval(interval);
+		watcherScheduler.start();
+	}
+
+	@Override
+	public void stopWatcherScheduler() {
+		watcherScheduler.stop();
+	}
+
+	@Override
+	public WatcherScheduler getWatcherScheduler() {
+		return watcherScheduler;
+	}
+
 	@Override
 	public String getText(UiSelector uiSelector)
 			throws UiObjectNotFoundException {
@@ -684,84 +1107,128 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public void clearTextField(UiSelector obj) throws UiObjectNotFoundException {
-		new UiObject(obj).clearTextField();
+		beginInput();
+		try {
+			new UiObject(obj).clearTextField();
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean clickAndWaitForNewWindow(UiSelector uiSelector, long timeout)
 			throws UiObjectNotFoundException {
-		return new UiObject(uiSelector).clickAndWaitForNewWindow(timeout);
+		beginInput();
+		try {
+			return new UiObject(uiSelector).clickAndWaitForNewWindow(timeout);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean pinchIn(UiSelector uiSelector, int percent, int steps)
 			throws UiObjectNotFoundException {
-		return new UiObject(uiSelector).pinchIn(percent, steps);
+		beginInput();
+		try {
+			return new UiObject(uiSelector).pinchIn(percent, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public boolean pinchOut(UiSelector uiSelector, int percent, int steps)
 			throws UiObjectNotFoundException {
-		return new UiObject(uiSelector).pinchOut(percent, steps);
+		beginInput();
+		try {
+			return new UiObject(uiSelector).pinchOut(percent, steps);
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public UiObject childByText(UiSelector collection, UiSelector child,
 			String text) throws UiObjectNotFoundException {
-		UiObject obj;
-		if (exists(collection) && new UiObject(collection).isScrollable()) {
-			obj = new UiScrollable(collection).getChildByText(child, text);
-		} else {
-			obj = new UiCollection(collection).getChildByText(child, text);
+		beginInput();
+		try {
+			UiObject obj;
+			if (exists(collection) && new UiObject(collection).isScrollable()) {
+				obj = new UiScrollable(collection).getChildByText(child, text);
+			} else {
+				obj = new UiCollection(collection).getChildByText(child, text);
+			}
+			return obj;
+		} finally {
+			endInput();
 		}
-		return obj;
 	}
 
 	@Override
 	public UiObject childByText(UiSelector collection, UiSelector child,
 			String text, boolean allowScrollSearch)
 			throws UiObjectNotFoundException {
-		UiObject obj = new UiScrollable(collection).getChildByText(child, text,
-				allowScrollSearch);
-		return obj;
+		beginInput();
+		try {
+			UiObject obj = new UiScrollable(collection).getChildByText(child, text,
+					allowScrollSearch);
+			return obj;
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public UiObject childByDescription(UiSelector collection, UiSelector child,
 			String text) throws UiObjectNotFoundException {
-		UiObject obj;
-		if (exists(collection) && new UiObject(collection).isScrollable()) {
-			obj = new UiScrollable(collection).getChildByDescription(child,
-					text);
-		} else {
-			obj = new UiCollection(collection).getChildByDescription(child,
-					text);
+		beginInput();
+		try {
+			UiObject obj;
+			if (exists(collection) && new UiObject(collection).isScrollable()) {
+				obj = new UiScrollable(collection).getChildByDescription(child,
+						text);
+			} else {
+				obj = new UiCollection(collection).getChildByDescription(child,
+						text);
+			}
+			return obj;
+		} finally {
+			endInput();
 		}
-		return obj;
 	}
 
 	@Override
 	public UiObject childByDescription(UiSelector collection, UiSelector child,
 			String text, boolean allowScrollSearch)
 			throws UiObjectNotFoundException {
-		UiObject obj = new UiScrollable(collection).getChildByDescription(
-				child, text, allowScrollSearch);
-		return obj;
+		beginInput();
+		try {
+			UiObject obj = new UiScrollable(collection).getChildByDescription(
+					child, text, allowScrollSearch);
+			return obj;
+		} finally {
+			endInput();
+		}
 	}
 
 	@Override
 	public UiObject childByInstance(UiSelector collection, UiSelector child,
 			int instance) throws UiObjectNotFoundException {
-		UiObject obj;
-		if (exists(collection) && new UiObject(collection).isScrollable()) {
-			obj = new UiScrollable(collection).getChildByInstance(child,
-					instance);
-		} else {
-			obj = new UiCollection(collection).getChildByInstance(child,
-					instance);
+		beginInput();
+		try {
+			UiObject obj;
+			if (exists(collection) && new UiObject(collection).isScrollable()) {
+				obj = new UiScrollable(collection).getChildByInstance(child,
+						instance);
+			} else {
+				obj = new UiCollection(collection).getChildByInstance(child,
+						instance);
+			}
+			return obj;
+		} finally {
+			endInput();
 		}
-		return obj;
-
 	}
 
 	@Override
@@ -775,6 +1242,67 @@ public class TestEngine implements ITestEngine {
 		return new UiObject(obj).exists();
 	}
 
+	@Override
+	public boolean exists(NodeSelector selector) {
+		HierarchySnapshot snapshot = snapshotOrNull();
+		if (snapshot == null) {
+			return new UiObject(Selectors.toUiSelector(selector)).exists();
+		}
+		return snapshot.exists(selector);
+	}
+
+	@Override
+	public String getText(NodeSelector selector)
+			throws UiObjectNotFoundException {
+		HierarchySnapshot snapshot = snapshotOrNull();
+		if (snapshot == null) {
+			return new UiObject(Selectors.toUiSelector(selector)).getText();
+		}
+		return snapshot.getText(findNode(snapshot, selector));
+	}
+
+	@Override
+	public boolean click(NodeSelector selector) throws UiObjectNotFoundException {
+		HierarchySnapshot snapshot = snapshotOrNull();
+		if (snapshot == null) {
+			return click(Selectors.toUiSelector(selector));
+		}
+		int node = findNode(snapshot, selector);
+		return click(snapshot.getCenterX(node), snapshot.getCenterY(node));
+	}
+
+	@Override
+	public ObjInfo getObjInfo(NodeSelector selector)
+			throws UiObjectNotFoundException {
+		HierarchySnapshot snapshot = snapshotOrNull();
+		if (snapshot == null) {
+			return ObjInfo.getObjInfo(Selectors.toUiSelector(selector));
+		}
+		return ObjInfo.getObjInfo(snapshot, findNode(snapshot, selector));
+	}
+
+	/**
+	 * @return the cached window snapshot, null if the window could not be
+	 *         dumped and the caller should query the live device instead
+	 */
+	private HierarchySnapshot snapshotOrNull() {
+		try {
+			return hierarchyCache.get();
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Falling back to live lookup: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static int findNode(HierarchySnapshot snapshot, NodeSelector selector)
+			throws UiObjectNotFoundException {
+		int node = snapshot.find(selector);
+		if (node < 0) {
+			throw new UiObjectNotFoundException(selector.toString());
+		}
+		return node;
+	}
+
 	@Override
 	public boolean clickIfAvailable(UiSelector uiSelector, long timeout) throws UiObjectNotFoundException{
 		if (waitForExists(uiSelector, timeout)) {
@@ -786,53 +1314,121 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public CmdResult runCommand(String cmd) {
-		CmdResult cmdResult = new CmdResult();
-		cmdResult.returnValue = 255;
-		cmdResult.outPuts = new ArrayList<String>();
-		try {
-			Runtime rt = Runtime.getRuntime();
-			Process proc = rt.exec(cmd);
-			InputStream fis = proc.getInputStream();
-			InputStreamReader isr = new InputStreamReader(fis);
-			BufferedReader br = new BufferedReader(isr);
-			String line = null;
-			while ((line = br.readLine()) != null)
-				cmdResult.outPuts.add(line);
-			cmdResult.returnValue = proc.waitFor();
-			if (proc!=null) {
-				proc.destroy();
+		hierarchyCache.invalidate();
+		try {
+			CmdResult result = runOnShell(cmd);
+			if (result != null) {
+				return result;
 			}
-			return cmdResult;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return cmdResult;
+		} catch (TimeoutException e) {
+			Log.e(Constant.LOG_TAG, "Command timed out: " + cmd);
+		}
+		CmdResult result = executeProcess(cmd);
+		if (result.returnValue == -1) {
+			result.returnValue = 255;
 		}
+		return result;
 	}
 
 	@Override
-	public String runCmdAndVerify(String cmd, String strToVerify) {
+	public List<CmdResult> runCommands(List<String> cmds, boolean concurrent) {
+		hierarchyCache.invalidate();
+		List<CmdResult> results;
 		try {
-			Process proc = Runtime.getRuntime().exec(cmd);
-			InputStream is = proc.getInputStream();
-			InputStreamReader isr = new InputStreamReader(is);
-			BufferedReader br = new BufferedReader(isr);
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				if (line.indexOf(strToVerify) != -1)
-					return line;
+			results = new ArrayList<CmdResult>(shellPool.runAll(cmds, SHELL_TIMEOUT,
+					concurrent));
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Shell session failed: " + e.getMessage());
+			results = new ArrayList<CmdResult>(Collections.<CmdResult> nCopies(
+					cmds.size(), null));
+		}
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i) == null) {
+				results.set(i, executeProcess(cmds.get(i)));
 			}
-			return null;
-		} catch (Exception e) {
-			e.printStackTrace();
+		}
+		return results;
+	}
+
+	@Override
+	public ProcessResult runCommand(String cmd, long timeout) {
+		hierarchyCache.invalidate();
+		try {
+			return new ProcessExecutor().timeout(timeout).executeShell(cmd);
+		} catch (IOException e) {
+			Log.e(Constant.LOG_TAG, e.toString());
+			return failedProcess();
+		}
+	}
+
+	/**
+	 * Run cmd as a process, without a shell.
+	 */
+	private static ProcessResult executeProcess(String cmd) {
+		try {
+			return new ProcessExecutor().timeout(SHELL_TIMEOUT).execute(cmd);
+		} catch (IOException e) {
+			Log.e(Constant.LOG_TAG, e.toString());
+			return failedProcess();
+		}
+	}
+
+	private static ProcessResult failedProcess() {
+		ProcessResult result = new ProcessResult();
+		result.returnValue = -1;
+		result.outPuts = new ArrayList<String>();
+		result.errors = new ArrayList<String>();
+		return result;
+	}
+
+	@Override
+	public AsyncCommand runCommandAsync(String cmd, AsyncCommand.LineListener listener,
+			long timeout) throws IOException {
+		hierarchyCache.invalidate();
+		return AsyncCommand.start(cmd, listener, timeout);
+	}
+
+	/**
+	 * Run cmd on a pooled shell.
+	 * @return the result, null if no shell could be used and the caller should
+	 *         start a process instead
+	 */
+	private CmdResult runOnShell(String cmd) throws TimeoutException {
+		try {
+			return shellPool.run(cmd, SHELL_TIMEOUT);
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Shell session failed, starting a process: "
+					+ e.getMessage());
 			return null;
 		}
+	}
+
+	@Override
+	public String runCmdAndVerify(String cmd, String strToVerify) {
+		OutputMatcher.Match match = runCmdAndMatch(cmd,
+				new OutputMatcher().contains(strToVerify).timeout(SHELL_TIMEOUT));
+		return match == null ? null : match.getLine();
+	}
 
+	@Override
+	public OutputMatcher.Match runCmdAndMatch(String cmd, OutputMatcher matcher) {
+		try {
+			return matcher.find(cmd);
+		} catch (IOException e) {
+			Log.e(Constant.LOG_TAG, e.toString());
+			return null;
+		}
 	}
 
 	@Override
 	public boolean openApplication(String pkgName) {
-		String cmd = "am start -a android.intent.action.MAIN  -c android.intent.category.LAUNCHER " + pkgName;
-		return executeCmd(cmd) == 0;
+		beginInput();
+		try {
+			String cmd = "am start -a android.intent.action.MAIN  -c android.intent.category.LAUNCHER " + pkgName;
+			return executeCmd(cmd) == 0;
+		} finally {
+			endInput();
+		}
 	}
 
 
@@ -848,94 +1444,57 @@ public class TestEngine implements ITestEngine {
 
 	@Override
 	public boolean longClick(int x, int y, int time) {
-		return UiDevice.getInstance().swipe(x, y, x , y , time/5);
+		beginInput();
+		try {
+			return UiDevice.getInstance().swipe(x, y, x , y , time/5);
+		} finally {
+			endInput();
+		}
 	}
 
 
-	private Bitmap getScreenShotBitmap() throws FileNotFoundException {
-		File file = new File("/sdcard/screenshot.png");
-		UiDevice.getInstance().takeScreenshot(file, 1.0f, 100);
-		SystemClock.sleep(3000);
-		FileInputStream fis = new FileInputStream("/sdcard/screenshot.png");
-		Bitmap bitmap  = BitmapFactory.decodeStream(fis);
-		return bitmap;
+	@Override
+	public long getPixelsChecksum(int x, int y) throws Exception {
+		synchronized (screenCapture) {
+			screenCapture.capture();
+			return PixelChecksumSearcher.checksum(screenCapture.getPixels(),
+					screenCapture.getWidth(), x, y);
+		}
 	}
 
-	private int[] getPixels(Bitmap bm) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        int[] pixels = new int[width * height];
-        bm.getPixels(pixels, 0, width, 0, 0, width, height);
-        return pixels;
-    }
+	@Override
+	public int[] getCoordinatesWithPixelsChecksum(long checkSum) throws Exception {
+		int[] coordinates;
+		synchronized (screenCapture) {
+			screenCapture.capture();
+			coordinates = pixelSearcher.find(screenCapture.getPixels(),
+					screenCapture.getWidth(), screenCapture.getHeight(), checkSum);
+		}
+		if (coordinates[0] >= 0) {
+			Log.d(Constant.LOG_TAG, "FIND " + checkSum + " x=" + coordinates[0]
+					+ ",y=" + coordinates[1]);
+		}
+		return coordinates;
+	}
 
 	@Override
-	public long getPixelsChecksum(int x, int y) throws Exception {
-		Bitmap bitmap = getScreenShotBitmap();
-		int width = bitmap.getWidth();
-        int[] pixels = this.getPixels(bitmap);
-        int index = y * width + x;
-        long sum = 0;
-        int from = index - DEVIATION - width;
-        int to = index + DEVIATION - width;
-        for (int i = from; i <= to; i++) {
-            sum += pixels[i];
-        }
-        from = from + width;
-        to = to + width;
-        for (int i = from; i <= to; i++) {
-            sum += pixels[i];
-        }
-        from = from + width;
-        to = to + width;
-        for (int i = from; i <= to; i++) {
-            sum += pixels[i];
-        }
-        return sum;
+	public int[] getCoordinatesWithPixelsChecksum(long checkSum,
+			PixelSearchOptions options) throws Exception {
+		synchronized (screenCapture) {
+			screenCapture.capture();
+			return pixelSearcher.find(screenCapture.getPixels(),
+					screenCapture.getWidth(), screenCapture.getHeight(), checkSum,
+					options);
+		}
 	}
 
 	@Override
-	public int[] getCoordinatesWithPixelsChecksum(long checkSum) throws Exception {
-		Bitmap bm = this.getScreenShotBitmap();
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        int[] pixels = this.getPixels(bm);
-        int x = 0;
-        int y = 0;
-        int index = DEVIATION + width;
-        int sum = 0;
-        for (y = 1; y < height - 1; y++) {
-            for (x = DEVIATION; x < width - DEVIATION; x++) {
-                sum = 0;
-                int from = index - DEVIATION - width;
-                int to = index + DEVIATION - width;
-                for (int i = from; i <= to; i++) {
-                    sum += pixels[i];
-                }
-                from = from + width;
-                to = to + width;
-                for (int i = from; i <= to; i++) {
-                    sum += pixels[i];
-                }
-                from = from + width;
-                to = to + width;
-                for (int i = from; i <= to; i++) {
-                    sum += pixels[i];
-                }
-                if (sum == checkSum) {
-                    Log.d(Constant.LOG_TAG, "FIND " + pixels + " x=" + x + ",y=" + y);
-                    return new int[] {
-                            x, y
-                    };
-                }
-                if (x == width - DEVIATION - 1) {
-                    index = index + 2 * DEVIATION;
-                }
-                index++;
-            }
-        }
-        return new int[] {
-                -1, -1
-        };
+	public Map<Long, int[]> getCoordinatesWithPixelsChecksums(Set<Long> checkSums)
+			throws Exception {
+		synchronized (screenCapture) {
+			screenCapture.capture();
+			return pixelSearcher.find(screenCapture.getPixels(),
+					screenCapture.getWidth(), screenCapture.getHeight(), checkSums);
+		}
 	}
 }
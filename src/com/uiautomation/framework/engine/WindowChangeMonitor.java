@@ -0,0 +1,110 @@
+package com.uiautomation.framework.engine;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import android.os.Build;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.android.uiautomator.core.UiDevice;
+import com.uiautomation.framework.engine.hierarchy.HierarchyCache;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Invalidates a {@link HierarchyCache} when the window changes by itself: a
+ * dialog opens, the app starts an activity, a pop-up shows up. Input the
+ * engine injects invalidates the cache already; this covers what the app
+ * does on its own.
+ *
+ * On API 18+ uiautomator receives accessibility events through the
+ * UiAutomation instance held by its bridge. The monitor installs its
+ * listener there, reached by reflection like {@link
+ * com.uiautomation.framework.engine.pixel.ScreenCapture}, and passes every
+ * event on to the listener uiautomator had set, which tracks scrolled text.
+ */
+class WindowChangeMonitor {
+
+	// AccessibilityEvent.TYPE_WINDOWS_CHANGED, API 21.
+	private static final int TYPE_WINDOWS_CHANGED = 0x00400000;
+
+	private static final int WINDOW_EVENTS = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+			| TYPE_WINDOWS_CHANGED;
+
+	private WindowChangeMonitor() {
+	}
+
+	/**
+	 * Invalidate the cache on every window change from now on.
+	 * @return false below API 18 or if this uiautomator doesn't have what the
+	 *         monitor looks for
+	 */
+	static boolean install(final HierarchyCache cache) {
+		if (Build.VERSION.SDK_INT < 18) {
+			return false;
+		}
+		try {
+			Method getBridge = UiDevice.class.getDeclaredMethod("getAutomatorBridge");
+			getBridge.setAccessible(true);
+			Object bridge = getBridge.invoke(UiDevice.getInstance());
+			Field automationField = findField(bridge.getClass(), "mUiAutomation");
+			automationField.setAccessible(true);
+			Object uiAutomation = automationField.get(bridge);
+			Field listenerField = findField(uiAutomation.getClass(),
+					"mOnAccessibilityEventListener");
+			listenerField.setAccessible(true);
+			final Object previous = listenerField.get(uiAutomation);
+
+			Class<?> listenerClass = Class.forName(
+					"android.app.UiAutomation$OnAccessibilityEventListener");
+			final Method onEvent = listenerClass.getMethod("onAccessibilityEvent",
+					AccessibilityEvent.class);
+			Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(),
+					new Class<?>[] { listenerClass }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args)
+								throws Throwable {
+							if (method.equals(onEvent)) {
+								AccessibilityEvent event = (AccessibilityEvent) args[0];
+								if ((event.getEventType() & WINDOW_EVENTS) != 0) {
+									cache.invalidate();
+								}
+								if (previous != null) {
+									try {
+										onEvent.invoke(previous, args);
+									} catch (InvocationTargetException e) {
+										throw e.getCause();
+									}
+								}
+								return null;
+							} else if ("equals".equals(method.getName())) {
+								return proxy == args[0];
+							} else if ("hashCode".equals(method.getName())) {
+								return System.identityHashCode(proxy);
+							}
+							return "WindowChangeMonitor";
+						}
+					});
+			uiAutomation.getClass().getMethod("setOnAccessibilityEventListener", listenerClass)
+					.invoke(uiAutomation, listener);
+			return true;
+		} catch (Exception e) {
+			Log.d(Constant.LOG_TAG, "Window change events unavailable: " + e);
+			return false;
+		}
+	}
+
+	private static Field findField(Class<?> clz, String name) throws NoSuchFieldException {
+		for (Class<?> c = clz; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				// Try the superclass.
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+}
@@ -0,0 +1,99 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last {@link HierarchySnapshot} until the window changes or a time
+ * to live expires, so repeated queries on a static screen share one dump.
+ *
+ * The owner calls {@link #invalidate()} whenever it does something that can
+ * change the window, and when it learns the window changed, from accessibility
+ * events for instance. The time to live covers changes nobody reported, such
+ * as content updating within the same window. A snapshot whose load started
+ * before an invalidation is never served.
+ */
+public class HierarchyCache {
+
+	/**
+	 * Produces a fresh snapshot, typically by dumping the window.
+	 */
+	public interface Loader {
+		HierarchySnapshot load() throws IOException;
+	}
+
+	private final Loader loader;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile long timeToLive;
+
+	private HierarchySnapshot snapshot;
+
+	private long snapshotGeneration;
+
+	private long loadedAt;
+
+	/**
+	 * @param loader     loads a fresh snapshot
+	 * @param timeToLive milliseconds a snapshot stays valid, 0 disables caching
+	 */
+	public HierarchyCache(Loader loader, long timeToLive) {
+		this.loader = loader;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @return the cached snapshot if still valid, else a freshly loaded one
+	 */
+	public synchronized HierarchySnapshot get() throws IOException {
+		long gen = generation.get();
+		if (snapshot != null && snapshotGeneration == gen
+				&& now() - loadedAt < timeToLive) {
+			return snapshot;
+		}
+		HierarchySnapshot fresh = loader.load();
+		snapshot = fresh;
+		snapshotGeneration = gen;
+		loadedAt = now();
+		return fresh;
+	}
+
+	/**
+	 * @return the cached snapshot if still valid, else null; never loads
+	 */
+	public synchronized HierarchySnapshot peek() {
+		if (snapshot != null && snapshotGeneration == generation.get()
+				&& now() - loadedAt < timeToLive) {
+			return snapshot;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the most recently loaded snapshot even if no longer valid, or
+	 *         null if nothing was loaded yet; never loads
+	 */
+	public synchronized HierarchySnapshot last() {
+		return snapshot;
+	}
+
+	/**
+	 * Drop the cached snapshot. Does not wait for a load in progress.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
@@ -0,0 +1,226 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Converts window dumps between uiautomator XML and the binary format of
+ * {@link HierarchyWriter}. Both directions stream node by node.
+ */
+public class HierarchyConverter {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private HierarchyConverter() {
+	}
+
+	public static void xmlToBinary(File xml, File binary) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(xml), BUFFER_SIZE);
+		try {
+			OutputStream out = new FileOutputStream(binary);
+			try {
+				xmlToBinary(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void binaryToXml(File binary, File xml) throws IOException {
+		InputStream in = new FileInputStream(binary);
+		try {
+			OutputStream out = new FileOutputStream(xml);
+			try {
+				binaryToXml(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Convert an XML dump to the binary format. Neither stream is closed.
+	 */
+	public static void xmlToBinary(InputStream xml, OutputStream binary)
+			throws IOException {
+		XmlHandler handler = new XmlHandler(binary);
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(false);
+			factory.setValidating(false);
+			factory.newSAXParser().parse(new InputSource(xml), handler);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.toString());
+		} catch (SAXException e) {
+			if (e.getException() instanceof IOException) {
+				throw (IOException) e.getException();
+			}
+			throw new IOException("Malformed window dump: " + e.getMessage());
+		}
+		if (handler.writer == null) {
+			throw new IOException("Malformed window dump: no hierarchy element");
+		}
+		handler.writer.finish();
+	}
+
+	/**
+	 * Convert a binary dump back to uiautomator XML. Neither stream is closed.
+	 * Null attributes are left out.
+	 */
+	public static void binaryToXml(InputStream binary, OutputStream xml)
+			throws IOException {
+		HierarchyReader reader = new HierarchyReader(binary);
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new BufferedOutputStream(xml, BUFFER_SIZE), HierarchyWriter.UTF8));
+		out.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+		out.write("<hierarchy rotation=\"");
+		out.write(String.valueOf(reader.getRotation()));
+		out.write("\">");
+		int event;
+		while ((event = reader.next()) != HierarchyReader.END_DOCUMENT) {
+			if (event == HierarchyReader.END_NODE) {
+				out.write("</node>");
+				continue;
+			}
+			out.write("<node index=\"");
+			out.write(String.valueOf(reader.getIndex()));
+			out.write('"');
+			attribute(out, "text", reader.getText());
+			attribute(out, "resource-id", reader.getResourceId());
+			attribute(out, "class", reader.getClassName());
+			attribute(out, "package", reader.getPackageName());
+			attribute(out, "content-desc", reader.getContentDescription());
+			flag(out, "checkable", reader.is(HierarchySnapshot.CHECKABLE));
+			flag(out, "checked", reader.is(HierarchySnapshot.CHECKED));
+			flag(out, "clickable", reader.is(HierarchySnapshot.CLICKABLE));
+			flag(out, "enabled", reader.is(HierarchySnapshot.ENABLED));
+			flag(out, "focusable", reader.is(HierarchySnapshot.FOCUSABLE));
+			flag(out, "focused", reader.is(HierarchySnapshot.FOCUSED));
+			flag(out, "scrollable", reader.is(HierarchySnapshot.SCROLLABLE));
+			flag(out, "long-clickable", reader.is(HierarchySnapshot.LONG_CLICKABLE));
+			flag(out, "password", reader.is(HierarchySnapshot.PASSWORD));
+			flag(out, "selected", reader.is(HierarchySnapshot.SELECTED));
+			out.write(" bounds=\"[");
+			out.write(reader.getLeft() + "," + reader.getTop() + "][" + reader.getRight()
+					+ "," + reader.getBottom());
+			out.write("]\">");
+		}
+		out.write("</hierarchy>");
+		out.flush();
+	}
+
+	private static void attribute(Writer out, String name, String value)
+			throws IOException {
+		if (value == null) {
+			return;
+		}
+		out.write(' ');
+		out.write(name);
+		out.write("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				out.write("&amp;");
+				break;
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				out.write("&gt;");
+				break;
+			case '"':
+				out.write("&quot;");
+				break;
+			case '\n':
+				out.write("&#10;");
+				break;
+			case '\r':
+				out.write("&#13;");
+				break;
+			case '\t':
+				out.write("&#9;");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private static void flag(Writer out, String name, boolean value) throws IOException {
+		out.write(' ');
+		out.write(name);
+		out.write(value ? "=\"true\"" : "=\"false\"");
+	}
+
+	private static class XmlHandler extends DefaultHandler {
+
+		private final OutputStream out;
+
+		private HierarchyWriter writer;
+
+		XmlHandler(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes) throws SAXException {
+			String name = qName != null && qName.length() > 0 ? qName : localName;
+			try {
+				if ("node".equals(name) && writer != null) {
+					int[] b = HierarchyParser.parseBounds(attributes.getValue("bounds"));
+					writer.startNode(
+							HierarchyParser.parseInt(attributes.getValue("index"), 0),
+							attributes.getValue("text"),
+							attributes.getValue("resource-id"),
+							attributes.getValue("class"),
+							attributes.getValue("package"),
+							attributes.getValue("content-desc"),
+							HierarchyParser.parseFlags(attributes), b[0], b[1], b[2],
+							b[3]);
+				} else if ("hierarchy".equals(name) && writer == null) {
+					writer = new HierarchyWriter(out, HierarchyParser.parseInt(
+							attributes.getValue("rotation"), 0));
+				}
+			} catch (IOException e) {
+				throw new SAXException(e);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName)
+				throws SAXException {
+			String name = qName != null && qName.length() > 0 ? qName : localName;
+			try {
+				if ("node".equals(name) && writer != null) {
+					writer.endNode();
+				}
+			} catch (IOException e) {
+				throw new SAXException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Differences between two snapshots of the same window.
+ *
+ * The trees are walked together from the roots. Two subtrees with the same
+ * {@link HierarchySnapshot#getSubtreeHash(int) subtree hash} are unchanged and
+ * skipped without being visited. Among the children of a changed node:
+ * <ol>
+ * <li>children with identical subtrees are paired first, even if they moved;</li>
+ * <li>the rest are paired in order by class name and resource id, and
+ * compared recursively;</li>
+ * <li>whatever is left over was removed from the old tree or added to the
+ * new one.</li>
+ * </ol>
+ * Added and removed subtrees are reported by their root only.
+ */
+public class HierarchyDiff {
+
+	private final HierarchySnapshot before;
+
+	private final HierarchySnapshot after;
+
+	private int[] added = new int[8];
+
+	private int addedCount;
+
+	private int[] removed = new int[8];
+
+	private int removedCount;
+
+	private int[] changed = new int[16];
+
+	private int changedCount;
+
+	private HierarchyDiff(HierarchySnapshot before, HierarchySnapshot after) {
+		this.before = before;
+		this.after = after;
+	}
+
+	/**
+	 * Compare two snapshots.
+	 * @param before the older snapshot
+	 * @param after  the newer snapshot
+	 */
+	public static HierarchyDiff compare(HierarchySnapshot before, HierarchySnapshot after) {
+		HierarchyDiff diff = new HierarchyDiff(before, after);
+		diff.compareChildren(roots(before), roots(after));
+		return diff;
+	}
+
+	/**
+	 * Compare the subtree of node in before with the subtree of node in after.
+	 */
+	public static HierarchyDiff compare(HierarchySnapshot before, int beforeNode,
+			HierarchySnapshot after, int afterNode) {
+		HierarchyDiff diff = new HierarchyDiff(before, after);
+		diff.compareNodes(beforeNode, afterNode);
+		return diff;
+	}
+
+	public HierarchySnapshot getBefore() {
+		return before;
+	}
+
+	public HierarchySnapshot getAfter() {
+		return after;
+	}
+
+	/** True if nothing was added, removed or changed. */
+	public boolean isEmpty() {
+		return addedCount == 0 && removedCount == 0 && changedCount == 0;
+	}
+
+	/** Roots of the subtrees only present in the new snapshot. */
+	public int[] getAdded() {
+		return Arrays.copyOf(added, addedCount);
+	}
+
+	/** Roots of the subtrees only present in the old snapshot. */
+	public int[] getRemoved() {
+		return Arrays.copyOf(removed, removedCount);
+	}
+
+	/**
+	 * Nodes present in both snapshots whose own attributes or bounds changed.
+	 * @return {old node, new node} pairs
+	 */
+	public int[][] getChanged() {
+		int[][] pairs = new int[changedCount / 2][];
+		for (int i = 0; i < pairs.length; i++) {
+			pairs[i] = new int[] { changed[i * 2], changed[i * 2 + 1] };
+		}
+		return pairs;
+	}
+
+	private void compareNodes(int a, int b) {
+		if (before.getSubtreeHash(a) == after.getSubtreeHash(b)) {
+			return;
+		}
+		if (before.getNodeHash(a) != after.getNodeHash(b)) {
+			changed = push(changed, changedCount++, a);
+			changed = push(changed, changedCount++, b);
+		}
+		compareChildren(children(before, a), children(after, b));
+	}
+
+	private void compareChildren(List<Integer> oldChildren, List<Integer> newChildren) {
+		// Pair identical subtrees first, wherever they are.
+		HashMap<Long, LinkedList<Integer>> unchanged = new HashMap<Long, LinkedList<Integer>>();
+		for (Integer b : newChildren) {
+			Long h = after.getSubtreeHash(b);
+			LinkedList<Integer> same = unchanged.get(h);
+			if (same == null) {
+				same = new LinkedList<Integer>();
+				unchanged.put(h, same);
+			}
+			same.add(b);
+		}
+		boolean[] newPaired = new boolean[newChildren.size()];
+		List<Integer> oldLeft = new ArrayList<Integer>();
+		for (Integer a : oldChildren) {
+			LinkedList<Integer> same = unchanged.get(before.getSubtreeHash(a));
+			if (same != null && !same.isEmpty()) {
+				newPaired[newChildren.indexOf(same.removeFirst())] = true;
+			} else {
+				oldLeft.add(a);
+			}
+		}
+
+		// Then pair the rest in order by class and resource id.
+		int from = 0;
+		for (Integer a : oldLeft) {
+			int match = -1;
+			for (int j = from; j < newChildren.size(); j++) {
+				if (!newPaired[j] && sameKind(a, newChildren.get(j))) {
+					match = j;
+					break;
+				}
+			}
+			if (match < 0) {
+				removed = push(removed, removedCount++, a);
+				continue;
+			}
+			newPaired[match] = true;
+			from = match + 1;
+			compareNodes(a, newChildren.get(match));
+		}
+		for (int j = 0; j < newChildren.size(); j++) {
+			if (!newPaired[j]) {
+				added = push(added, addedCount++, newChildren.get(j));
+			}
+		}
+	}
+
+	private boolean sameKind(int a, int b) {
+		return equal(before.getClassName(a), after.getClassName(b))
+				&& equal(before.getResourceId(a), after.getResourceId(b));
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static List<Integer> roots(HierarchySnapshot snapshot) {
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int node = 0; node < snapshot.size(); node = snapshot.getSubtreeEnd(node)) {
+			roots.add(node);
+		}
+		return roots;
+	}
+
+	private static List<Integer> children(HierarchySnapshot snapshot, int node) {
+		List<Integer> children = new ArrayList<Integer>(snapshot.getChildCount(node));
+		for (int child = snapshot.getFirstChild(node); child >= 0; child = snapshot
+				.getNextSibling(child)) {
+			children.add(child);
+		}
+		return children;
+	}
+
+	private static int[] push(int[] array, int position, int value) {
+		if (position == array.length) {
+			array = Arrays.copyOf(array, array.length * 2);
+		}
+		array[position] = value;
+		return array;
+	}
+}
@@ -0,0 +1,246 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup structures over a {@link HierarchySnapshot}, each built on first use.
+ *
+ * Attribute indexes map a resource id, text, content description or class
+ * name to its nodes in document order. The spatial index is a uniform grid of
+ * CELL_SIZE pixel cells stored as one offsets array and one node array; every
+ * node is listed in each cell its bounds overlap.
+ */
+final class HierarchyIndex {
+
+	static final int RESOURCE_ID = 0;
+
+	static final int TEXT = 1;
+
+	static final int DESCRIPTION = 2;
+
+	static final int CLASS = 3;
+
+	private static final int CELL_SIZE = 128;
+
+	private static final int[] EMPTY = new int[0];
+
+	private final HierarchySnapshot snapshot;
+
+	// One index per attribute, null until first looked up.
+	private final List<Map<String, int[]>> attributes;
+
+	private int gridLeft;
+
+	private int gridTop;
+
+	private int columns;
+
+	private int rows;
+
+	private int[] cellStart;
+
+	private int[] cellNodes;
+
+	HierarchyIndex(HierarchySnapshot snapshot) {
+		this.snapshot = snapshot;
+		this.attributes = new ArrayList<Map<String, int[]>>(
+				Collections.<Map<String, int[]>> nCopies(CLASS + 1, null));
+	}
+
+	/**
+	 * @return nodes whose attribute equals value, in document order
+	 */
+	synchronized int[] lookup(int attribute, String value) {
+		Map<String, int[]> index = attributes.get(attribute);
+		if (index == null) {
+			index = buildAttribute(attribute);
+			attributes.set(attribute, index);
+		}
+		int[] nodes = index.get(value);
+		return nodes != null ? nodes : EMPTY;
+	}
+
+	private Map<String, int[]> buildAttribute(int attribute) {
+		// Lists are grown in place with their length kept in slot 0, then trimmed.
+		HashMap<String, int[]> index = new HashMap<String, int[]>();
+		for (int node = 0; node < snapshot.size(); node++) {
+			String value = attribute(attribute, node);
+			if (value == null) {
+				continue;
+			}
+			int[] list = index.get(value);
+			if (list == null) {
+				list = new int[4];
+				index.put(value, list);
+			} else if (list[0] + 1 == list.length) {
+				list = Arrays.copyOf(list, list.length * 2);
+				index.put(value, list);
+			}
+			list[++list[0]] = node;
+		}
+		for (Map.Entry<String, int[]> e : index.entrySet()) {
+			int[] list = e.getValue();
+			e.setValue(Arrays.copyOfRange(list, 1, list[0] + 1));
+		}
+		return index;
+	}
+
+	private String attribute(int attribute, int node) {
+		switch (attribute) {
+		case RESOURCE_ID:
+			return snapshot.getResourceId(node);
+		case TEXT:
+			return snapshot.getText(node);
+		case DESCRIPTION:
+			return snapshot.getContentDescription(node);
+		default:
+			return snapshot.getClassName(node);
+		}
+	}
+
+	/**
+	 * @return the deepest node containing (x, y), the last one in document
+	 *         order on a tie, or -1
+	 */
+	synchronized int nodeAt(int x, int y) {
+		buildGrid();
+		int cell = cell(x, y);
+		if (cell < 0) {
+			return -1;
+		}
+		int best = -1;
+		for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+			int node = cellNodes[i];
+			if (snapshot.contains(node, x, y)
+					&& (best < 0 || snapshot.getDepth(node) >= snapshot.getDepth(best))) {
+				best = node;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return nodes whose bounds lie entirely within the rectangle, in
+	 *         document order
+	 */
+	synchronized int[] nodesInside(int left, int top, int right, int bottom) {
+		buildGrid();
+		if (columns == 0 || right <= left || bottom <= top) {
+			return EMPTY;
+		}
+		int c0 = Math.max(0, (left - gridLeft) / CELL_SIZE);
+		int r0 = Math.max(0, (top - gridTop) / CELL_SIZE);
+		int c1 = Math.min(columns - 1, (right - 1 - gridLeft) / CELL_SIZE);
+		int r1 = Math.min(rows - 1, (bottom - 1 - gridTop) / CELL_SIZE);
+		int[] found = new int[16];
+		int count = 0;
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				int cell = r * columns + c;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					int node = cellNodes[i];
+					// A node is reported from its top-left cell only, so it is
+					// never reported twice.
+					if (cell(snapshot.getLeft(node), snapshot.getTop(node)) != cell
+							|| snapshot.getLeft(node) < left
+							|| snapshot.getTop(node) < top
+							|| snapshot.getRight(node) > right
+							|| snapshot.getBottom(node) > bottom) {
+						continue;
+					}
+					if (count == found.length) {
+						found = Arrays.copyOf(found, count * 2);
+					}
+					found[count++] = node;
+				}
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	private int cell(int x, int y) {
+		int c = (x - gridLeft) / CELL_SIZE;
+		int r = (y - gridTop) / CELL_SIZE;
+		if (x < gridLeft || y < gridTop || c >= columns || r >= rows) {
+			return -1;
+		}
+		return r * columns + c;
+	}
+
+	private void buildGrid() {
+		if (cellStart != null) {
+			return;
+		}
+		int size = snapshot.size();
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (int node = 0; node < size; node++) {
+			if (isEmpty(node)) {
+				continue;
+			}
+			left = Math.min(left, snapshot.getLeft(node));
+			top = Math.min(top, snapshot.getTop(node));
+			right = Math.max(right, snapshot.getRight(node));
+			bottom = Math.max(bottom, snapshot.getBottom(node));
+		}
+		if (right <= left || bottom <= top) {
+			columns = 0;
+			rows = 0;
+			cellStart = new int[1];
+			cellNodes = EMPTY;
+			return;
+		}
+		gridLeft = left;
+		gridTop = top;
+		columns = (right - left + CELL_SIZE - 1) / CELL_SIZE;
+		rows = (bottom - top + CELL_SIZE - 1) / CELL_SIZE;
+
+		// Count, prefix-sum into offsets, then fill.
+		int[] start = new int[columns * rows + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int[] fill = pass == 1 ? Arrays.copyOf(start, start.length) : null;
+			int[] nodes = pass == 1 ? new int[start[start.length - 1]] : null;
+			for (int node = 0; node < size; node++) {
+				if (isEmpty(node)) {
+					continue;
+				}
+				int c0 = (snapshot.getLeft(node) - left) / CELL_SIZE;
+				int r0 = (snapshot.getTop(node) - top) / CELL_SIZE;
+				int c1 = (snapshot.getRight(node) - 1 - left) / CELL_SIZE;
+				int r1 = (snapshot.getBottom(node) - 1 - top) / CELL_SIZE;
+				for (int r = r0; r <= r1; r++) {
+					for (int c = c0; c <= c1; c++) {
+						int cell = r * columns + c;
+						if (pass == 0) {
+							start[cell + 1]++;
+						} else {
+							nodes[fill[cell]++] = node;
+						}
+					}
+				}
+			}
+			if (pass == 0) {
+				for (int i = 1; i < start.length; i++) {
+					start[i] += start[i - 1];
+				}
+			} else {
+				cellNodes = nodes;
+			}
+		}
+		cellStart = start;
+	}
+
+	private boolean isEmpty(int node) {
+		return snapshot.getRight(node) <= snapshot.getLeft(node)
+				|| snapshot.getBottom(node) <= snapshot.getTop(node);
+	}
+}
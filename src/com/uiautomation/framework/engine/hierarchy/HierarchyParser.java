@@ -0,0 +1,187 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streams a uiautomator window dump into a {@link HierarchySnapshot}.
+ *
+ * The document is never held in memory: SAX events are turned straight into
+ * snapshot nodes, and repeated strings such as class and package names are
+ * shared between nodes.
+ *
+ * Only depends on the JDK, so recorded dumps can be parsed on a desktop JVM.
+ */
+public class HierarchyParser extends DefaultHandler {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final HashMap<String, String> strings = new HashMap<String, String>();
+
+	private HierarchySnapshot snapshot;
+
+	private HierarchyParser(int capacity) {
+		snapshot = new HierarchySnapshot(capacity);
+	}
+
+	public static HierarchySnapshot parse(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			// Dumps run at roughly 250 bytes per node.
+			return parse(in, (int) Math.min(file.length() / 250, 1 << 16));
+		} finally {
+			in.close();
+		}
+	}
+
+	public static HierarchySnapshot parse(String xml) throws IOException {
+		try {
+			return parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), xml.length() / 250);
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	public static HierarchySnapshot parse(InputStream in) throws IOException {
+		return parse(in, 0);
+	}
+
+	private static HierarchySnapshot parse(InputStream in, int capacity) throws IOException {
+		HierarchyParser handler = new HierarchyParser(capacity);
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(false);
+			factory.setValidating(false);
+			factory.newSAXParser().parse(new InputSource(in), handler);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.toString());
+		} catch (SAXException e) {
+			throw new IOException("Malformed window dump: " + e.getMessage());
+		}
+		return handler.snapshot;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attributes) {
+		String name = elementName(localName, qName);
+		if ("node".equals(name)) {
+			int[] b = parseBounds(attributes.getValue("bounds"));
+			snapshot.openNode(parseInt(attributes.getValue("index"), 0),
+					attributes.getValue("text"),
+					shared(attributes.getValue("resource-id")),
+					shared(attributes.getValue("class")),
+					shared(attributes.getValue("package")),
+					attributes.getValue("content-desc"),
+					parseFlags(attributes), b[0], b[1], b[2], b[3]);
+		} else if ("hierarchy".equals(name)) {
+			snapshot.setRotation(parseInt(attributes.getValue("rotation"), 0));
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		if ("node".equals(elementName(localName, qName))) {
+			snapshot.closeNode();
+		}
+	}
+
+	private static String elementName(String localName, String qName) {
+		return qName != null && qName.length() > 0 ? qName : localName;
+	}
+
+	private String shared(String value) {
+		if (value == null) {
+			return null;
+		}
+		String s = strings.get(value);
+		if (s == null) {
+			strings.put(value, value);
+			s = value;
+		}
+		return s;
+	}
+
+	static int parseFlags(Attributes attributes) {
+		int flags = 0;
+		if ("true".equals(attributes.getValue("checkable")))
+			flags |= HierarchySnapshot.CHECKABLE;
+		if ("true".equals(attributes.getValue("checked")))
+			flags |= HierarchySnapshot.CHECKED;
+		if ("true".equals(attributes.getValue("clickable")))
+			flags |= HierarchySnapshot.CLICKABLE;
+		if ("true".equals(attributes.getValue("enabled")))
+			flags |= HierarchySnapshot.ENABLED;
+		if ("true".equals(attributes.getValue("focusable")))
+			flags |= HierarchySnapshot.FOCUSABLE;
+		if ("true".equals(attributes.getValue("focused")))
+			flags |= HierarchySnapshot.FOCUSED;
+		if ("true".equals(attributes.getValue("scrollable")))
+			flags |= HierarchySnapshot.SCROLLABLE;
+		if ("true".equals(attributes.getValue("long-clickable")))
+			flags |= HierarchySnapshot.LONG_CLICKABLE;
+		if ("true".equals(attributes.getValue("password")))
+			flags |= HierarchySnapshot.PASSWORD;
+		if ("true".equals(attributes.getValue("selected")))
+			flags |= HierarchySnapshot.SELECTED;
+		return flags;
+	}
+
+	/**
+	 * Parse "[left,top][right,bottom]" without regular expressions.
+	 * @return {left, top, right, bottom}, zeros if the value is malformed
+	 */
+	static int[] parseBounds(String value) {
+		int[] b = new int[4];
+		if (value == null) {
+			return b;
+		}
+		int n = 0;
+		int v = 0;
+		boolean negative = false;
+		boolean inNumber = false;
+		for (int i = 0; i < value.length() && n < 4; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				v = v * 10 + (c - '0');
+				inNumber = true;
+			} else if (c == '-' && !inNumber) {
+				negative = true;
+			} else if (inNumber) {
+				b[n++] = negative ? -v : v;
+				v = 0;
+				negative = false;
+				inNumber = false;
+			}
+		}
+		if (inNumber && n < 4) {
+			b[n] = negative ? -v : v;
+		}
+		return b;
+	}
+
+	static int parseInt(String value, int defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
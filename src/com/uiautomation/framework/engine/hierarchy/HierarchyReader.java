@@ -0,0 +1,315 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Pull reader for the binary hierarchy format written by
+ * {@link HierarchyWriter}.
+ *
+ * <pre>
+ * HierarchyReader r = new HierarchyReader(in);
+ * int event;
+ * while ((event = r.next()) != HierarchyReader.END_DOCUMENT) {
+ *     if (event == HierarchyReader.START_NODE &amp;&amp; "OK".equals(r.getText()))
+ *         ...
+ * }
+ * </pre>
+ *
+ * Node attributes are valid from a START_NODE event until the next call to
+ * {@link #next()}.
+ */
+public class HierarchyReader {
+
+	public static final int END_DOCUMENT = HierarchyWriter.END_DOCUMENT;
+
+	public static final int START_NODE = HierarchyWriter.START_NODE;
+
+	public static final int END_NODE = HierarchyWriter.END_NODE;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final InputStream in;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	private final int rotation;
+
+	private String[] strings = new String[256];
+
+	private int stringCount;
+
+	private int[] origins = new int[64];
+
+	private int depth;
+
+	private boolean done;
+
+	private int index;
+
+	private int flags;
+
+	private String text;
+
+	private String resourceId;
+
+	private String className;
+
+	private String packageName;
+
+	private String contentDescription;
+
+	private int left;
+
+	private int top;
+
+	private int right;
+
+	private int bottom;
+
+	/**
+	 * Read the header. The stream is not closed by this reader.
+	 * @throws IOException if the stream is not a binary hierarchy
+	 */
+	public HierarchyReader(InputStream in) throws IOException {
+		this.in = in;
+		for (byte b : HierarchyWriter.MAGIC) {
+			if (readByte() != b) {
+				throw new IOException("Not a binary window hierarchy");
+			}
+		}
+		int version = readByte();
+		if (version != HierarchyWriter.VERSION) {
+			throw new IOException("Unsupported hierarchy version " + version);
+		}
+		rotation = readVarint();
+	}
+
+	public static HierarchySnapshot read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			// Binary dumps run at roughly 25 bytes per node.
+			return read(in, (int) Math.min(file.length() / 25, 1 << 16));
+		} finally {
+			in.close();
+		}
+	}
+
+	public static HierarchySnapshot read(InputStream in) throws IOException {
+		return read(in, 0);
+	}
+
+	private static HierarchySnapshot read(InputStream in, int capacity) throws IOException {
+		HierarchyReader reader = new HierarchyReader(in);
+		HierarchySnapshot snapshot = new HierarchySnapshot(capacity);
+		snapshot.setRotation(reader.getRotation());
+		int event;
+		while ((event = reader.next()) != END_DOCUMENT) {
+			if (event == START_NODE) {
+				snapshot.openNode(reader.index, reader.text, reader.resourceId,
+						reader.className, reader.packageName,
+						reader.contentDescription, reader.flags, reader.left,
+						reader.top, reader.right, reader.bottom);
+			} else {
+				snapshot.closeNode();
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Advance to the next event.
+	 * @return START_NODE, END_NODE or END_DOCUMENT
+	 */
+	public int next() throws IOException {
+		if (done) {
+			return END_DOCUMENT;
+		}
+		int event = readByte();
+		switch (event) {
+		case START_NODE:
+			readNode();
+			break;
+		case END_NODE:
+			if (depth == 0) {
+				throw new IOException("Unbalanced end of node");
+			}
+			depth--;
+			break;
+		case END_DOCUMENT:
+			done = true;
+			break;
+		default:
+			throw new IOException("Corrupt window hierarchy, record " + event);
+		}
+		return event;
+	}
+
+	private void readNode() throws IOException {
+		int originX = depth == 0 ? 0 : origins[depth * 2 - 2];
+		int originY = depth == 0 ? 0 : origins[depth * 2 - 1];
+		index = readVarint();
+		flags = readVarint();
+		text = readString();
+		resourceId = readString();
+		className = readString();
+		packageName = readString();
+		contentDescription = readString();
+		left = originX + unzigzag(readVarint());
+		top = originY + unzigzag(readVarint());
+		right = left + unzigzag(readVarint());
+		bottom = top + unzigzag(readVarint());
+		if (depth * 2 + 2 > origins.length) {
+			origins = Arrays.copyOf(origins, origins.length * 2);
+		}
+		origins[depth * 2] = left;
+		origins[depth * 2 + 1] = top;
+		depth++;
+	}
+
+	public int getRotation() {
+		return rotation;
+	}
+
+	/** Depth of the node just started, the roots are at 0. */
+	public int getDepth() {
+		return depth - 1;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean is(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getPackageName() {
+		return packageName;
+	}
+
+	public String getContentDescription() {
+		return contentDescription;
+	}
+
+	public int getLeft() {
+		return left;
+	}
+
+	public int getTop() {
+		return top;
+	}
+
+	public int getRight() {
+		return right;
+	}
+
+	public int getBottom() {
+		return bottom;
+	}
+
+	private String readString() throws IOException {
+		int ref = readVarint();
+		if (ref == 0) {
+			return null;
+		}
+		if (ref > 1) {
+			if (ref - 2 >= stringCount) {
+				throw new IOException("Corrupt window hierarchy, string " + (ref - 2));
+			}
+			return strings[ref - 2];
+		}
+		int length = readVarint();
+		String s;
+		if (length <= buffer.length) {
+			if (limit - position < length) {
+				compactAndFill(length);
+			}
+			s = new String(buffer, position, length, HierarchyWriter.UTF8);
+			position += length;
+		} else {
+			byte[] bytes = new byte[length];
+			int n = Math.min(limit - position, length);
+			System.arraycopy(buffer, position, bytes, 0, n);
+			position += n;
+			while (n < length) {
+				int read = in.read(bytes, n, length - n);
+				if (read < 0) {
+					throw new EOFException();
+				}
+				n += read;
+			}
+			s = new String(bytes, HierarchyWriter.UTF8);
+		}
+		if (stringCount == strings.length) {
+			strings = Arrays.copyOf(strings, stringCount * 2);
+		}
+		strings[stringCount++] = s;
+		return s;
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private int readVarint() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Corrupt window hierarchy, varint too long");
+	}
+
+	private int readByte() throws IOException {
+		if (position == limit) {
+			compactAndFill(1);
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Move the unread bytes to the start of the buffer and read until at least
+	 * count bytes are available.
+	 */
+	private void compactAndFill(int count) throws IOException {
+		int remaining = limit - position;
+		System.arraycopy(buffer, position, buffer, 0, remaining);
+		position = 0;
+		limit = remaining;
+		while (limit < count) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				throw new EOFException("Truncated window hierarchy");
+			}
+			limit += read;
+		}
+	}
+}
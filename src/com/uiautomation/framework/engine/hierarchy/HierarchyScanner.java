@@ -0,0 +1,261 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Visits the nodes of a uiautomator window dump as they are parsed, without
+ * building a {@link HierarchySnapshot} or keeping the document in memory.
+ * The visitor can stop the scan at any node, so looking for one node in a
+ * large dump only reads the file up to that node.
+ *
+ * <pre>
+ * HierarchyScanner.Node n = HierarchyScanner.find(dump,
+ *         new NodeSelector().text("Bluetooth"));
+ * </pre>
+ *
+ * Like {@link HierarchyParser}, only depends on the JDK.
+ */
+public class HierarchyScanner {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Receives the nodes in document order.
+	 */
+	public interface Visitor {
+		/**
+		 * @param node the node just opened, only valid during the call; use
+		 *             {@link Node#copy()} to keep it
+		 * @return true to continue, false to stop the scan
+		 */
+		boolean visit(Node node);
+	}
+
+	/**
+	 * A node of the dump. Attributes are decoded when first read.
+	 */
+	public static class Node {
+
+		private Attributes attributes;
+
+		private int depth;
+
+		private int[] bounds;
+
+		private int flags = -1;
+
+		private String text;
+
+		private String resourceId;
+
+		private String className;
+
+		private String packageName;
+
+		private String contentDescription;
+
+		private int index;
+
+		private Node() {
+		}
+
+		private void reset(Attributes attributes, int depth) {
+			this.attributes = attributes;
+			this.depth = depth;
+			this.bounds = null;
+			this.flags = -1;
+		}
+
+		/**
+		 * @return a copy that stays valid after the visit
+		 */
+		public Node copy() {
+			Node n = new Node();
+			n.depth = depth;
+			n.index = getIndex();
+			n.text = getText();
+			n.resourceId = getResourceId();
+			n.className = getClassName();
+			n.packageName = getPackageName();
+			n.contentDescription = getContentDescription();
+			n.flags = getFlags();
+			n.bounds = getBounds();
+			return n;
+		}
+
+		/** Depth in the tree, the roots are at 0. */
+		public int getDepth() {
+			return depth;
+		}
+
+		public int getIndex() {
+			return attributes == null ? index : HierarchyParser.parseInt(
+					attributes.getValue("index"), 0);
+		}
+
+		public String getText() {
+			return attributes == null ? text : attributes.getValue("text");
+		}
+
+		public String getResourceId() {
+			return attributes == null ? resourceId : attributes.getValue("resource-id");
+		}
+
+		public String getClassName() {
+			return attributes == null ? className : attributes.getValue("class");
+		}
+
+		public String getPackageName() {
+			return attributes == null ? packageName : attributes.getValue("package");
+		}
+
+		public String getContentDescription() {
+			return attributes == null ? contentDescription : attributes
+					.getValue("content-desc");
+		}
+
+		/** The {@link HierarchySnapshot} flag bits. */
+		public int getFlags() {
+			if (flags < 0) {
+				flags = HierarchyParser.parseFlags(attributes);
+			}
+			return flags;
+		}
+
+		public boolean is(int flag) {
+			return (getFlags() & flag) != 0;
+		}
+
+		/**
+		 * @return {left, top, right, bottom}
+		 */
+		public int[] getBounds() {
+			if (bounds == null) {
+				bounds = HierarchyParser.parseBounds(attributes.getValue("bounds"));
+			}
+			return bounds.clone();
+		}
+
+		public int getCenterX() {
+			int[] b = getBounds();
+			return (b[0] + b[2]) / 2;
+		}
+
+		public int getCenterY() {
+			int[] b = getBounds();
+			return (b[1] + b[3]) / 2;
+		}
+	}
+
+	private HierarchyScanner() {
+	}
+
+	/**
+	 * Scan a dump file.
+	 * @return false if the visitor stopped the scan
+	 */
+	public static boolean scan(File file, Visitor visitor) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			return scan(in, visitor);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Scan a dump. The stream is not closed.
+	 * @return false if the visitor stopped the scan
+	 */
+	public static boolean scan(InputStream in, Visitor visitor) throws IOException {
+		Handler handler = new Handler(visitor);
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(false);
+			factory.setValidating(false);
+			factory.newSAXParser().parse(new InputSource(in), handler);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.toString());
+		} catch (SAXException e) {
+			if (e != Handler.STOP) {
+				throw new IOException("Malformed window dump: " + e.getMessage());
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the node a selector designates, reading the dump only up to it.
+	 * @return the node, or null if none matches
+	 */
+	public static Node find(File file, final NodeSelector selector) throws IOException {
+		final Node[] found = new Node[1];
+		scan(file, new Visitor() {
+			private int remaining = selector.getInstance();
+
+			@Override
+			public boolean visit(Node node) {
+				if (!selector.matches(node.getClassName(), node.getResourceId(),
+						node.getText(), node.getContentDescription())) {
+					return true;
+				}
+				if (remaining-- > 0) {
+					return true;
+				}
+				found[0] = node.copy();
+				return false;
+			}
+		});
+		return found[0];
+	}
+
+	private static class Handler extends DefaultHandler {
+
+		// Thrown to abort the parser; no stack trace is ever needed.
+		static final SAXException STOP = new SAXException("Scan stopped");
+
+		private final Visitor visitor;
+
+		private final Node node = new Node();
+
+		private int depth;
+
+		Handler(Visitor visitor) {
+			this.visitor = visitor;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes) throws SAXException {
+			String name = qName != null && qName.length() > 0 ? qName : localName;
+			if (!"node".equals(name)) {
+				return;
+			}
+			node.reset(attributes, depth++);
+			if (!visitor.visit(node)) {
+				throw STOP;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			String name = qName != null && qName.length() > 0 ? qName : localName;
+			if ("node".equals(name)) {
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,501 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+/**
+ * Compact, immutable copy of a window hierarchy dump.
+ *
+ * Nodes are numbered 0 .. size() - 1 in document (pre-)order and every field is
+ * kept in a parallel array, so a snapshot of a few thousand nodes is a handful
+ * of arrays instead of thousands of objects. The subtree of node i is the
+ * range [i, getSubtreeEnd(i)).
+ *
+ * Bounds are stored as left, top, right, bottom in one int array.
+ *
+ * Attribute and spatial indexes are built the first time a query needs them,
+ * see HierarchyIndex.
+ */
+public class HierarchySnapshot {
+
+	public static final int CHECKABLE = 1;
+
+	public static final int CHECKED = 1 << 1;
+
+	public static final int CLICKABLE = 1 << 2;
+
+	public static final int ENABLED = 1 << 3;
+
+	public static final int FOCUSABLE = 1 << 4;
+
+	public static final int FOCUSED = 1 << 5;
+
+	public static final int SCROLLABLE = 1 << 6;
+
+	public static final int LONG_CLICKABLE = 1 << 7;
+
+	public static final int PASSWORD = 1 << 8;
+
+	public static final int SELECTED = 1 << 9;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private int size;
+
+	private int rotation;
+
+	private int current = -1;
+
+	private int[] parent;
+
+	private int[] depth;
+
+	private int[] end;
+
+	private int[] childCount;
+
+	private int[] index;
+
+	private int[] flags;
+
+	private int[] bounds;
+
+	private String[] text;
+
+	private String[] resourceId;
+
+	private String[] className;
+
+	private String[] packageName;
+
+	private String[] contentDescription;
+
+	private HierarchyIndex lookup;
+
+	private long[] nodeHash;
+
+	private long[] subtreeHash;
+
+	HierarchySnapshot(int capacity) {
+		allocate(Math.max(16, capacity));
+	}
+
+	/**
+	 * Append a node as the last child of the currently open node and open it.
+	 * @return the new node
+	 */
+	int openNode(int nodeIndex, String nodeText, String nodeResourceId,
+			String nodeClassName, String nodePackageName,
+			String nodeContentDescription, int nodeFlags, int left, int top,
+			int right, int bottom) {
+		if (size == parent.length) {
+			allocate(size * 2);
+		}
+		int node = size++;
+		parent[node] = current;
+		depth[node] = current < 0 ? 0 : depth[current] + 1;
+		end[node] = node + 1;
+		childCount[node] = 0;
+		index[node] = nodeIndex;
+		flags[node] = nodeFlags;
+		bounds[node * 4] = left;
+		bounds[node * 4 + 1] = top;
+		bounds[node * 4 + 2] = right;
+		bounds[node * 4 + 3] = bottom;
+		text[node] = nodeText;
+		resourceId[node] = nodeResourceId;
+		className[node] = nodeClassName;
+		packageName[node] = nodePackageName;
+		contentDescription[node] = nodeContentDescription;
+		if (current >= 0) {
+			childCount[current]++;
+		}
+		current = node;
+		return node;
+	}
+
+	/**
+	 * Close the currently open node.
+	 */
+	void closeNode() {
+		if (current < 0) {
+			throw new IllegalStateException("No open node");
+		}
+		end[current] = size;
+		current = parent[current];
+	}
+
+	void setRotation(int rotation) {
+		this.rotation = rotation;
+	}
+
+	private void allocate(int capacity) {
+		parent = grow(parent, capacity);
+		depth = grow(depth, capacity);
+		end = grow(end, capacity);
+		childCount = grow(childCount, capacity);
+		index = grow(index, capacity);
+		flags = grow(flags, capacity);
+		bounds = grow(bounds, capacity * 4);
+		text = grow(text, capacity);
+		resourceId = grow(resourceId, capacity);
+		className = grow(className, capacity);
+		packageName = grow(packageName, capacity);
+		contentDescription = grow(contentDescription, capacity);
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] copy = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, capacity));
+		}
+		return copy;
+	}
+
+	private static String[] grow(String[] array, int capacity) {
+		String[] copy = new String[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, capacity));
+		}
+		return copy;
+	}
+
+	/** Number of nodes. */
+	public int size() {
+		return size;
+	}
+
+	/** Display rotation recorded in the dump. */
+	public int getRotation() {
+		return rotation;
+	}
+
+	/** Parent node, -1 for a root. */
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	/** Depth of the node, 0 for a root. */
+	public int getDepth(int node) {
+		return depth[node];
+	}
+
+	/** First node after the subtree of node. */
+	public int getSubtreeEnd(int node) {
+		return end[node];
+	}
+
+	public int getChildCount(int node) {
+		return childCount[node];
+	}
+
+	/** First child, -1 if the node has no children. */
+	public int getFirstChild(int node) {
+		return childCount[node] > 0 ? node + 1 : -1;
+	}
+
+	/** Next sibling, -1 if node is the last child. */
+	public int getNextSibling(int node) {
+		int next = end[node];
+		int p = parent[node];
+		if (next >= size || parent[next] != p) {
+			return -1;
+		}
+		return next;
+	}
+
+	/** True if node lies in the subtree of ancestor, ancestor itself included. */
+	public boolean isInSubtree(int node, int ancestor) {
+		return node >= ancestor && node < end[ancestor];
+	}
+
+	/** The index attribute, the position of the node among its siblings. */
+	public int getIndex(int node) {
+		return index[node];
+	}
+
+	public String getText(int node) {
+		return text[node];
+	}
+
+	public String getResourceId(int node) {
+		return resourceId[node];
+	}
+
+	public String getClassName(int node) {
+		return className[node];
+	}
+
+	public String getPackageName(int node) {
+		return packageName[node];
+	}
+
+	public String getContentDescription(int node) {
+		return contentDescription[node];
+	}
+
+	/** All boolean attributes as a bit field of the constants above. */
+	public int getFlags(int node) {
+		return flags[node];
+	}
+
+	public boolean is(int node, int flag) {
+		return (flags[node] & flag) == flag;
+	}
+
+	public int getLeft(int node) {
+		return bounds[node * 4];
+	}
+
+	public int getTop(int node) {
+		return bounds[node * 4 + 1];
+	}
+
+	public int getRight(int node) {
+		return bounds[node * 4 + 2];
+	}
+
+	public int getBottom(int node) {
+		return bounds[node * 4 + 3];
+	}
+
+	public int getCenterX(int node) {
+		return (bounds[node * 4] + bounds[node * 4 + 2]) / 2;
+	}
+
+	public int getCenterY(int node) {
+		return (bounds[node * 4 + 1] + bounds[node * 4 + 3]) / 2;
+	}
+
+	/**
+	 * @return {left, top, right, bottom}
+	 */
+	public int[] getBounds(int node) {
+		int[] b = new int[4];
+		System.arraycopy(bounds, node * 4, b, 0, 4);
+		return b;
+	}
+
+	/** True if (x, y) is inside the bounds of node, right and bottom exclusive. */
+	public boolean contains(int node, int x, int y) {
+		int b = node * 4;
+		return x >= bounds[b] && x < bounds[b + 2] && y >= bounds[b + 1]
+				&& y < bounds[b + 3];
+	}
+
+	/**
+	 * Find the node matching selector, honouring its instance.
+	 * @return the node, -1 if there is none
+	 */
+	public int find(NodeSelector selector) {
+		int skip = selector.getInstance();
+		int[] candidates = candidates(selector);
+		if (candidates != null) {
+			for (int node : candidates) {
+				if (selector.matches(this, node) && skip-- == 0) {
+					return node;
+				}
+			}
+			return -1;
+		}
+		for (int node = 0; node < size; node++) {
+			if (selector.matches(this, node) && skip-- == 0) {
+				return node;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find every node matching selector, ignoring its instance.
+	 * @return matching nodes in document order
+	 */
+	public int[] findAll(NodeSelector selector) {
+		int[] candidates = candidates(selector);
+		int limit = candidates != null ? candidates.length : size;
+		int[] found = new int[Math.min(16, limit)];
+		int count = 0;
+		for (int i = 0; i < limit; i++) {
+			int node = candidates != null ? candidates[i] : i;
+			if (selector.matches(this, node)) {
+				if (count == found.length) {
+					found = grow(found, count * 2);
+				}
+				found[count++] = node;
+			}
+		}
+		return grow(found, count);
+	}
+
+	/**
+	 * Narrow a query down with the attribute indexes: of the exact attributes
+	 * set on the selector, the one with the fewest nodes wins.
+	 * @return candidate nodes in document order, null if the selector has no
+	 *         exact attribute and every node has to be checked
+	 */
+	private int[] candidates(NodeSelector selector) {
+		int[] best = null;
+		best = narrower(best, HierarchyIndex.RESOURCE_ID, selector.getResourceId());
+		best = narrower(best, HierarchyIndex.TEXT, selector.getText());
+		best = narrower(best, HierarchyIndex.DESCRIPTION, selector.getDescription());
+		best = narrower(best, HierarchyIndex.CLASS, selector.getClassName());
+		return best;
+	}
+
+	private int[] narrower(int[] best, int attribute, String value) {
+		if (value == null || (best != null && best.length == 0)) {
+			return best;
+		}
+		int[] nodes = index().lookup(attribute, value);
+		return best == null || nodes.length < best.length ? nodes : best;
+	}
+
+	/**
+	 * Nodes with the given resource id, in document order.
+	 */
+	public int[] findByResourceId(String resourceId) {
+		return index().lookup(HierarchyIndex.RESOURCE_ID, resourceId).clone();
+	}
+
+	/**
+	 * Nodes with the given text, in document order.
+	 */
+	public int[] findByText(String text) {
+		return index().lookup(HierarchyIndex.TEXT, text).clone();
+	}
+
+	/**
+	 * Nodes with the given content description, in document order.
+	 */
+	public int[] findByContentDescription(String description) {
+		return index().lookup(HierarchyIndex.DESCRIPTION, description).clone();
+	}
+
+	/**
+	 * Nodes with the given class name, in document order.
+	 */
+	public int[] findByClassName(String className) {
+		return index().lookup(HierarchyIndex.CLASS, className).clone();
+	}
+
+	/**
+	 * The element at (x, y): the deepest node whose bounds contain the point.
+	 * @return the node, -1 if no node contains the point
+	 */
+	public int nodeAt(int x, int y) {
+		return index().nodeAt(x, y);
+	}
+
+	/**
+	 * Nodes whose bounds lie entirely within the given rectangle.
+	 * @return the nodes in document order
+	 */
+	public int[] nodesInside(int left, int top, int right, int bottom) {
+		return index().nodesInside(left, top, right, bottom);
+	}
+
+	/**
+	 * Nodes laid out inside the bounds of container, whether or not they are
+	 * its descendants. The container itself is not included.
+	 * @return the nodes in document order
+	 */
+	public int[] nodesInside(int container) {
+		int[] nodes = nodesInside(getLeft(container), getTop(container),
+				getRight(container), getBottom(container));
+		int count = 0;
+		for (int node : nodes) {
+			if (node != container) {
+				nodes[count++] = node;
+			}
+		}
+		return grow(nodes, count);
+	}
+
+	/**
+	 * Hash of the attributes, flags and bounds of node alone.
+	 */
+	public long getNodeHash(int node) {
+		hashes();
+		return nodeHash[node];
+	}
+
+	/**
+	 * Hash of node and its whole subtree, children in order. Two subtrees with
+	 * the same hash can be taken as unchanged without walking them.
+	 */
+	public long getSubtreeHash(int node) {
+		hashes();
+		return subtreeHash[node];
+	}
+
+	/**
+	 * Hash of the whole window.
+	 */
+	public long getHash() {
+		long h = FNV_OFFSET ^ rotation;
+		for (int node = 0; node < size; node = end[node]) {
+			h = mix(h, getSubtreeHash(node));
+		}
+		return h;
+	}
+
+	private synchronized void hashes() {
+		if (subtreeHash != null) {
+			return;
+		}
+		long[] own = new long[size];
+		long[] tree = new long[size];
+		// Children come after their parent, so walking backwards sees every
+		// child before its parent.
+		for (int node = size - 1; node >= 0; node--) {
+			long h = FNV_OFFSET;
+			h = mix(h, index[node]);
+			h = mix(h, flags[node]);
+			for (int i = 0; i < 4; i++) {
+				h = mix(h, bounds[node * 4 + i]);
+			}
+			h = mix(h, text[node]);
+			h = mix(h, resourceId[node]);
+			h = mix(h, className[node]);
+			h = mix(h, packageName[node]);
+			h = mix(h, contentDescription[node]);
+			own[node] = h;
+			for (int child = getFirstChild(node); child >= 0; child = getNextSibling(child)) {
+				h = mix(h, tree[child]);
+			}
+			tree[node] = mix(h, childCount[node]);
+		}
+		nodeHash = own;
+		subtreeHash = tree;
+	}
+
+	private static long mix(long h, long v) {
+		for (int i = 0; i < 8; i++) {
+			h ^= v & 0xff;
+			h *= FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	private static long mix(long h, String s) {
+		if (s == null) {
+			return mix(h, -1L);
+		}
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix(h, s.length());
+	}
+
+	private synchronized HierarchyIndex index() {
+		if (lookup == null) {
+			lookup = new HierarchyIndex(this);
+		}
+		return lookup;
+	}
+
+	public boolean exists(NodeSelector selector) {
+		return find(selector) >= 0;
+	}
+}
@@ -0,0 +1,212 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes a window hierarchy in the compact binary format read by
+ * {@link HierarchyReader}, one node at a time.
+ *
+ * <pre>
+ * file    := 'U' 'I' 'H' VERSION varint(rotation) record* END_DOCUMENT
+ * record  := START_NODE node | END_NODE
+ * node    := varint(index) varint(flags)
+ *            string(text) string(resource-id) string(class) string(package)
+ *            string(content-desc)
+ *            zigzag(left - parent left) zigzag(top - parent top)
+ *            zigzag(right - left) zigzag(bottom - top)
+ * string  := varint(0)                        null
+ *          | varint(1) varint(length) utf-8   new string, added to the table
+ *          | varint(2 + n)                    n-th string of the table
+ * </pre>
+ *
+ * Every distinct string is written once; flags are the
+ * {@link HierarchySnapshot} bits. A typical dump shrinks about ten times
+ * compared with its XML.
+ */
+public class HierarchyWriter {
+
+	static final byte[] MAGIC = { 'U', 'I', 'H' };
+
+	static final int VERSION = 1;
+
+	static final int END_DOCUMENT = 0;
+
+	static final int START_NODE = 1;
+
+	static final int END_NODE = 2;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final OutputStream out;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int position;
+
+	private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+
+	// Left and top of the open nodes, bounds are written relative to the parent.
+	private int[] origins = new int[64];
+
+	private int depth;
+
+	private boolean finished;
+
+	/**
+	 * Write the header. The stream is not closed by this writer.
+	 * @param out      destination
+	 * @param rotation display rotation of the dump
+	 */
+	public HierarchyWriter(OutputStream out, int rotation) throws IOException {
+		this.out = out;
+		for (byte b : MAGIC) {
+			writeByte(b);
+		}
+		writeByte(VERSION);
+		writeVarint(rotation);
+	}
+
+	/**
+	 * Write a snapshot to a stream.
+	 */
+	public static void write(HierarchySnapshot snapshot, OutputStream out)
+			throws IOException {
+		HierarchyWriter writer = new HierarchyWriter(out, snapshot.getRotation());
+		int size = snapshot.size();
+		for (int node = 0; node < size; node++) {
+			writer.startNode(snapshot.getIndex(node), snapshot.getText(node),
+					snapshot.getResourceId(node), snapshot.getClassName(node),
+					snapshot.getPackageName(node),
+					snapshot.getContentDescription(node), snapshot.getFlags(node),
+					snapshot.getLeft(node), snapshot.getTop(node),
+					snapshot.getRight(node), snapshot.getBottom(node));
+			// Close every node whose subtree ends here.
+			int open = node;
+			while (open >= 0 && snapshot.getSubtreeEnd(open) == node + 1) {
+				writer.endNode();
+				open = snapshot.getParent(open);
+			}
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Open a node as the last child of the currently open node.
+	 */
+	public void startNode(int index, String text, String resourceId,
+			String className, String packageName, String contentDescription,
+			int flags, int left, int top, int right, int bottom) throws IOException {
+		checkNotFinished();
+		int originX = depth == 0 ? 0 : origins[depth * 2 - 2];
+		int originY = depth == 0 ? 0 : origins[depth * 2 - 1];
+		writeByte(START_NODE);
+		writeVarint(index);
+		writeVarint(flags);
+		writeString(text);
+		writeString(resourceId);
+		writeString(className);
+		writeString(packageName);
+		writeString(contentDescription);
+		writeVarint(zigzag(left - originX));
+		writeVarint(zigzag(top - originY));
+		writeVarint(zigzag(right - left));
+		writeVarint(zigzag(bottom - top));
+		if (depth * 2 + 2 > origins.length) {
+			origins = Arrays.copyOf(origins, origins.length * 2);
+		}
+		origins[depth * 2] = left;
+		origins[depth * 2 + 1] = top;
+		depth++;
+	}
+
+	/**
+	 * Close the currently open node.
+	 */
+	public void endNode() throws IOException {
+		checkNotFinished();
+		if (depth == 0) {
+			throw new IllegalStateException("No open node");
+		}
+		writeByte(END_NODE);
+		depth--;
+	}
+
+	/**
+	 * Close any open node, write the end marker and flush.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		while (depth > 0) {
+			endNode();
+		}
+		writeByte(END_DOCUMENT);
+		flush();
+		finished = true;
+	}
+
+	private void checkNotFinished() {
+		if (finished) {
+			throw new IllegalStateException("Writer is finished");
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			writeVarint(0);
+			return;
+		}
+		Integer n = strings.get(s);
+		if (n != null) {
+			writeVarint(2 + n);
+			return;
+		}
+		strings.put(s, strings.size());
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(1);
+		writeVarint(bytes.length);
+		if (bytes.length > buffer.length - position) {
+			flush();
+		}
+		if (bytes.length > buffer.length) {
+			out.write(bytes);
+		} else {
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private void writeVarint(int v) throws IOException {
+		if (buffer.length - position < 5) {
+			flush();
+		}
+		while ((v & ~0x7f) != 0) {
+			buffer[position++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buffer[position++] = (byte) v;
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	private void flush() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+}
@@ -0,0 +1,158 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.util.regex.Pattern;
+
+/**
+ * A UiSelector look-alike evaluated against a {@link HierarchySnapshot}
+ * instead of the live accessibility tree.
+ *
+ * <pre>
+ * HierarchySnapshot s = getHierarchySnapshot();
+ * s.exists(new NodeSelector().resourceId("android:id/title").text("Bluetooth"));
+ * </pre>
+ *
+ * Attributes combine with AND; instance(n) picks the n-th (0 based) matching
+ * node in document order, like UiSelector.instance.
+ */
+public class NodeSelector {
+
+	private String text;
+
+	private String textContains;
+
+	private String resourceId;
+
+	private Pattern resourceIdMatches;
+
+	private String className;
+
+	private String description;
+
+	private int instance = 0;
+
+	public NodeSelector text(String text) {
+		this.text = text;
+		return this;
+	}
+
+	public NodeSelector textContains(String text) {
+		this.textContains = text;
+		return this;
+	}
+
+	public NodeSelector resourceId(String id) {
+		this.resourceId = id;
+		return this;
+	}
+
+	/**
+	 * @param regex matched against the whole resource id
+	 */
+	public NodeSelector resourceIdMatches(String regex) {
+		this.resourceIdMatches = Pattern.compile(regex);
+		return this;
+	}
+
+	public NodeSelector resourceIdMatches(Pattern pattern) {
+		this.resourceIdMatches = pattern;
+		return this;
+	}
+
+	public NodeSelector className(String className) {
+		this.className = className;
+		return this;
+	}
+
+	public NodeSelector description(String description) {
+		this.description = description;
+		return this;
+	}
+
+	public NodeSelector instance(int instance) {
+		this.instance = instance;
+		return this;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String getTextContains() {
+		return textContains;
+	}
+
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public Pattern getResourceIdMatches() {
+		return resourceIdMatches;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public int getInstance() {
+		return instance;
+	}
+
+	/**
+	 * True if node satisfies every attribute of this selector; instance is not
+	 * taken into account.
+	 */
+	public boolean matches(HierarchySnapshot snapshot, int node) {
+		return matches(snapshot.getClassName(node), snapshot.getResourceId(node),
+				snapshot.getText(node), snapshot.getContentDescription(node));
+	}
+
+	boolean matches(String nodeClassName, String nodeResourceId, String nodeText,
+			String nodeDescription) {
+		if (className != null && !className.equals(nodeClassName))
+			return false;
+		if (resourceId != null && !resourceId.equals(nodeResourceId))
+			return false;
+		if (text != null && !text.equals(nodeText))
+			return false;
+		if (description != null && !description.equals(nodeDescription))
+			return false;
+		if (textContains != null) {
+			if (nodeText == null || !nodeText.contains(textContains))
+				return false;
+		}
+		if (resourceIdMatches != null) {
+			if (nodeResourceId == null || !resourceIdMatches.matcher(nodeResourceId).matches())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("NodeSelector[");
+		append(sb, "TEXT", text);
+		append(sb, "CONTAINS_TEXT", textContains);
+		append(sb, "RESOURCE_ID", resourceId);
+		append(sb, "RESOURCE_ID_REGEX",
+				resourceIdMatches == null ? null : resourceIdMatches.pattern());
+		append(sb, "CLASS", className);
+		append(sb, "DESCRIPTION", description);
+		if (instance != 0) {
+			append(sb, "INSTANCE", String.valueOf(instance));
+		}
+		if (sb.charAt(sb.length() - 1) == ' ') {
+			sb.setLength(sb.length() - 2);
+		}
+		return sb.append(']').toString();
+	}
+
+	private static void append(StringBuilder sb, String name, String value) {
+		if (value != null) {
+			sb.append(name).append('=').append(value).append(", ");
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.uiautomation.framework.engine.pixel;
+
+/**
+ * Summed-area table over an ARGB pixel buffer. Once built, the sum of any
+ * rectangular window is answered with four table lookups.
+ *
+ * The table may cover only part of the image, see
+ * {@link #build(int[], int, int, int, int, int)}; coordinates passed to
+ * {@link #sum(int, int, int, int)} are always image coordinates.
+ *
+ * The backing table is kept between builds so repeated searches on screens of
+ * the same size don't allocate.
+ */
+public class IntegralImage {
+
+	private long[] table = new long[0];
+
+	private int originX;
+
+	private int originY;
+
+	private int width;
+
+	private int height;
+
+	private int stride;
+
+	/**
+	 * Build the table for the given pixels.
+	 * @param pixels row-major ARGB pixels, at least width * height long
+	 * @param width  image width
+	 * @param height image height
+	 */
+	public void build(int[] pixels, int width, int height) {
+		build(pixels, width, 0, 0, width, height);
+	}
+
+	/**
+	 * Build the table for the sub-rectangle [left, right) x [top, bottom).
+	 * @param pixels     row-major ARGB pixels
+	 * @param imageWidth width of a row in pixels
+	 */
+	public void build(int[] pixels, int imageWidth, int left, int top,
+			int right, int bottom) {
+		int width = right - left;
+		int height = bottom - top;
+		int stride = width + 1;
+		int size = stride * (height + 1);
+		if (table.length < size) {
+			table = new long[size];
+		}
+		long[] t = table;
+		for (int x = 0; x < stride; x++) {
+			t[x] = 0L;
+		}
+		for (int y = 0; y < height; y++) {
+			int row = (y + 1) * stride;
+			int prev = y * stride;
+			int src = (top + y) * imageWidth + left;
+			long rowSum = 0L;
+			t[row] = 0L;
+			for (int x = 0; x < width; x++) {
+				rowSum += pixels[src + x];
+				t[row + x + 1] = t[prev + x + 1] + rowSum;
+			}
+		}
+		this.originX = left;
+		this.originY = top;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+	}
+
+	/**
+	 * Sum of the pixels in the half-open window [left, right) x [top, bottom).
+	 */
+	public long sum(int left, int top, int right, int bottom) {
+		long[] t = table;
+		int a = (top - originY) * stride;
+		int b = (bottom - originY) * stride;
+		left -= originX;
+		right -= originX;
+		return t[b + right] - t[a + right] - t[b + left] + t[a + left];
+	}
+
+	public int getOriginX() {
+		return originX;
+	}
+
+	public int getOriginY() {
+		return originY;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	int getStride() {
+		return stride;
+	}
+
+	long[] getTable() {
+		return table;
+	}
+}
@@ -0,0 +1,490 @@
+package com.uiautomation.framework.engine.pixel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.uiautomation.framework.engine.Rect;
+
+/**
+ * Locates the window whose pixel checksum equals a given value.
+ *
+ * The checksum of (x, y) is the sum of the 3 x (2 * DEVIATION + 1) pixels
+ * centred on it, see {@link #checksum(int[], int, int, int)}. Window sums are
+ * read from an {@link IntegralImage}, so each candidate costs O(1) instead of
+ * 63 additions. Candidates are visited in the same row-major order as the
+ * original scan and the first hit is returned, so results are identical.
+ *
+ * Several checksums can be looked up in the same pass, see
+ * {@link #find(int[], int, int, Set)}, and a search can be limited to a region
+ * or visited nearest-first, see {@link PixelSearchOptions}.
+ *
+ * With a parallelism greater than one the rows are split into bands scanned
+ * concurrently; the hit from the lowest band wins and higher bands stop as
+ * soon as a lower one has found everything.
+ */
+public class PixelChecksumSearcher {
+
+	/** Horizontal half width of the checksum window. */
+	public static final int DEVIATION = 10;
+
+	/** Returned when no window matches. */
+	public static final int[] NOT_FOUND = new int[] { -1, -1 };
+
+	private static final int BANDS_PER_THREAD = 4;
+
+	private static final int MIN_BAND_ROWS = 16;
+
+	// Milliseconds a scan thread stays idle before it exits.
+	private static final long IDLE_TIMEOUT = 30000;
+
+	private final int parallelism;
+
+	private final IntegralImage integral = new IntegralImage();
+
+	private ExecutorService executor;
+
+	/**
+	 * @param parallelism number of threads used to scan, 1 for a plain sequential scan
+	 */
+	public PixelChecksumSearcher(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Checksum of the window centred on (x, y).
+	 * @param pixels row-major ARGB pixels
+	 * @param width  image width
+	 * @param x      window centre x, DEVIATION &lt;= x &lt; width - DEVIATION
+	 * @param y      window centre y, 1 &lt;= y &lt; height - 1
+	 * @return sum of the window pixels
+	 */
+	public static long checksum(int[] pixels, int width, int x, int y) {
+		long sum = 0;
+		for (int row = y - 1; row <= y + 1; row++) {
+			int from = row * width + x - DEVIATION;
+			int to = row * width + x + DEVIATION;
+			for (int i = from; i <= to; i++) {
+				sum += pixels[i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Find the first window, in row-major order, whose checksum equals checkSum.
+	 * @param pixels   row-major ARGB pixels
+	 * @param width    image width
+	 * @param height   image height
+	 * @param checkSum checksum to look for
+	 * @return {x, y} of the window centre, or {-1, -1} if not found
+	 */
+	public int[] find(int[] pixels, int width, int height, long checkSum)
+			throws InterruptedException {
+		int[] hit = search(pixels, width, area(width, height, null), 1,
+				new long[] { checkSum })[0];
+		return hit != null ? hit : NOT_FOUND.clone();
+	}
+
+	/**
+	 * Find a checksum within the region, order and stride given by options.
+	 * Only the part of the image around the region is summed, so the cost is
+	 * proportional to the region size.
+	 * @param pixels   row-major ARGB pixels
+	 * @param width    image width
+	 * @param height   image height
+	 * @param checkSum checksum to look for
+	 * @param options  search options, null for a full row-major search
+	 * @return {x, y} of the window centre, or {-1, -1} if not found
+	 */
+	public int[] find(int[] pixels, int width, int height, long checkSum,
+			PixelSearchOptions options) throws InterruptedException {
+		if (options == null) {
+			return find(pixels, width, height, checkSum);
+		}
+		int[] area = area(width, height, options.getRegion());
+		int step = options.getStride();
+		int[] hit;
+		if (options.isEarlyExit()
+				&& options.getOrder() == PixelSearchOptions.ScanOrder.ROW_MAJOR) {
+			hit = search(pixels, width, area, step, new long[] { checkSum })[0];
+		} else {
+			int hx = options.hasHint() ? options.getHintX() : (area[0] + area[1]) / 2;
+			int hy = options.hasHint() ? options.getHintY() : (area[2] + area[3]) / 2;
+			hit = searchAround(pixels, width, area, step, checkSum, hx, hy,
+					options.isEarlyExit());
+		}
+		return hit != null ? hit : NOT_FOUND.clone();
+	}
+
+	/**
+	 * Find several checksums in a single pass. Each candidate window is probed
+	 * against a hash table of the wanted sums, and the scan stops once every
+	 * checksum has been seen.
+	 * @param pixels    row-major ARGB pixels
+	 * @param width     image width
+	 * @param height    image height
+	 * @param checkSums checksums to look for
+	 * @return map of checksum to the {x, y} of its first window in row-major
+	 *         order, {-1, -1} for checksums that were not found
+	 */
+	public Map<Long, int[]> find(int[] pixels, int width, int height,
+			Set<Long> checkSums) throws InterruptedException {
+		long[] wanted = new long[checkSums.size()];
+		int i = 0;
+		for (Long checkSum : checkSums) {
+			wanted[i++] = checkSum;
+		}
+		int[][] hits = search(pixels, width, area(width, height, null), 1, wanted);
+		Map<Long, int[]> result = new HashMap<Long, int[]>();
+		for (i = 0; i < wanted.length; i++) {
+			result.put(wanted[i], hits[i] != null ? hits[i] : NOT_FOUND.clone());
+		}
+		return result;
+	}
+
+	/**
+	 * Valid window centres inside region, as {xFrom, xTo, yFrom, yTo} with
+	 * exclusive ends. The area is empty when xFrom &gt;= xTo or yFrom &gt;= yTo.
+	 */
+	private static int[] area(int width, int height, Rect region) {
+		int xFrom = DEVIATION;
+		int xTo = width - DEVIATION;
+		int yFrom = 1;
+		int yTo = height - 1;
+		if (region != null) {
+			xFrom = Math.max(xFrom, region.getLeft());
+			xTo = Math.min(xTo, region.getRight());
+			yFrom = Math.max(yFrom, region.getTop());
+			yTo = Math.min(yTo, region.getBottom());
+		}
+		return new int[] { xFrom, xTo, yFrom, yTo };
+	}
+
+	private static boolean isEmpty(int[] area) {
+		return area[0] >= area[1] || area[2] >= area[3];
+	}
+
+	/**
+	 * Sum only the pixels that windows centred in area can touch.
+	 */
+	private void buildIntegral(int[] pixels, int width, int[] area) {
+		integral.build(pixels, width, area[0] - DEVIATION, area[2] - 1,
+				area[1] + DEVIATION, area[3] + 1);
+	}
+
+	/**
+	 * Row-major search of the lattice of area with the given step.
+	 * @return hits aligned with checkSums, null where not found
+	 */
+	private synchronized int[][] search(int[] pixels, int width, final int[] area,
+			final int step, long[] checkSums) throws InterruptedException {
+		final ChecksumTable wanted = new ChecksumTable(checkSums);
+		if (checkSums.length == 0 || isEmpty(area)) {
+			return new int[checkSums.length][];
+		}
+		buildIntegral(pixels, width, area);
+
+		int rows = (area[3] - area[2] + step - 1) / step;
+		int bands = Math.min(parallelism * BANDS_PER_THREAD, rows / MIN_BAND_ROWS);
+		if (parallelism == 1 || bands <= 1) {
+			return scan(wanted, area, step, area[2], area[3], -1, null);
+		}
+
+		// A band that has found every checksum makes all higher bands moot,
+		// since the lowest band always wins.
+		final AtomicInteger firstCompleteBand = new AtomicInteger(Integer.MAX_VALUE);
+		final int bandRows = (rows + bands - 1) / bands;
+		List<Future<int[][]>> futures = new ArrayList<Future<int[][]>>(bands);
+		ExecutorService pool = executor();
+		for (int b = 0; b < bands; b++) {
+			final int band = b;
+			final int from = area[2] + b * bandRows * step;
+			final int to = Math.min(area[3], from + bandRows * step);
+			futures.add(pool.submit(new Callable<int[][]>() {
+				@Override
+				public int[][] call() {
+					return scan(wanted, area, step, from, to, band, firstCompleteBand);
+				}
+			}));
+		}
+
+		int[][] result = new int[checkSums.length][];
+		int remaining = wanted.size();
+		try {
+			for (Future<int[][]> f : futures) {
+				if (remaining == 0) {
+					f.cancel(true);
+					continue;
+				}
+				int[][] hits = f.get();
+				for (int i = 0; i < hits.length; i++) {
+					if (result[i] == null && hits[i] != null) {
+						result[i] = hits[i];
+						remaining--;
+					}
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for (Future<int[][]> f : futures) {
+				f.cancel(true);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Scan lattice rows [yFrom, yTo) of area in row-major order.
+	 */
+	private int[][] scan(ChecksumTable wanted, int[] area, int step, int yFrom,
+			int yTo, int band, AtomicInteger firstCompleteBand) {
+		int[][] hits = new int[wanted.length()][];
+		int remaining = wanted.size();
+		long[] t = integral.getTable();
+		int stride = integral.getStride();
+		int ox = integral.getOriginX();
+		int oy = integral.getOriginY();
+		int xFrom = area[0];
+		int xTo = area[1];
+		for (int y = yFrom; y < yTo; y += step) {
+			if (firstCompleteBand != null && firstCompleteBand.get() < band) {
+				return hits;
+			}
+			int top = (y - 1 - oy) * stride;
+			int bottom = (y + 2 - oy) * stride;
+			for (int x = xFrom; x < xTo; x += step) {
+				int left = x - DEVIATION - ox;
+				int right = x + DEVIATION + 1 - ox;
+				long sum = t[bottom + right] - t[top + right]
+						- t[bottom + left] + t[top + left];
+				int slot = wanted.indexOf(sum);
+				if (slot < 0 || hits[slot] != null) {
+					continue;
+				}
+				int[] hit = new int[] { x, y };
+				for (int i = slot; i < hits.length; i++) {
+					if (hits[i] == null && wanted.get(i) == sum) {
+						hits[i] = hit;
+					}
+				}
+				if (--remaining == 0) {
+					if (firstCompleteBand != null) {
+						int current;
+						while ((current = firstCompleteBand.get()) > band
+								&& !firstCompleteBand.compareAndSet(current, band)) {
+						}
+					}
+					return hits;
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Visit the lattice of area in square rings of growing size around (hx, hy).
+	 * With earlyExit the first hit is returned, otherwise the hit with the
+	 * smallest euclidean distance to (hx, hy); rings that cannot hold anything
+	 * closer than the best hit so far are not visited.
+	 */
+	private synchronized int[] searchAround(int[] pixels, int width, int[] area,
+			int step, long checkSum, int hx, int hy, boolean earlyExit) {
+		if (isEmpty(area)) {
+			return null;
+		}
+		buildIntegral(pixels, width, area);
+
+		// Snap the centre onto the lattice so every order sees the same candidates.
+		int cx = Math.min(Math.max(hx, area[0]), area[1] - 1);
+		int cy = Math.min(Math.max(hy, area[2]), area[3] - 1);
+		cx = area[0] + Math.round((cx - area[0]) / (float) step) * step;
+		cy = area[2] + Math.round((cy - area[2]) / (float) step) * step;
+		int reach = Math.max(Math.max(cx - area[0], area[1] - 1 - cx),
+				Math.max(cy - area[2], area[3] - 1 - cy));
+		int rings = (reach + step - 1) / step;
+
+		long offset = distance(cx, cy, hx, hy);
+		int[] best = null;
+		long bestDistance = Long.MAX_VALUE;
+		int[] candidate = new int[2];
+		for (int r = 0; r <= rings; r++) {
+			if (best != null) {
+				// Candidates on ring r are r * step from (cx, cy), so at least
+				// that minus the snapping offset from (hx, hy).
+				long near = (long) r * step - offset;
+				if (near > 0 && near * near > bestDistance) {
+					break;
+				}
+			}
+			for (int j = -r; j <= r; j++) {
+				int y = cy + j * step;
+				if (y < area[2] || y >= area[3]) {
+					continue;
+				}
+				boolean edge = j == -r || j == r;
+				int i = -r;
+				while (i <= r) {
+					int x = cx + i * step;
+					if (x >= area[0] && x < area[1] && windowSum(x, y) == checkSum) {
+						if (earlyExit) {
+							return new int[] { x, y };
+						}
+						long dx = x - hx;
+						long dy = y - hy;
+						long dist = dx * dx + dy * dy;
+						if (dist < bestDistance) {
+							bestDistance = dist;
+							candidate[0] = x;
+							candidate[1] = y;
+							best = candidate;
+						}
+					}
+					// Inner rows only have their two ends on the ring.
+					i = edge || i == r ? i + 1 : r;
+				}
+			}
+		}
+		return best != null ? new int[] { best[0], best[1] } : null;
+	}
+
+	private static long distance(int x1, int y1, int x2, int y2) {
+		long dx = x1 - x2;
+		long dy = y1 - y2;
+		return (long) Math.ceil(Math.sqrt(dx * dx + dy * dy));
+	}
+
+	private long windowSum(int x, int y) {
+		return integral.sum(x - DEVIATION, y - 1, x + DEVIATION + 1, y + 2);
+	}
+
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism,
+					IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "pixel-search-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			// Idle threads exit, a searcher shared by the whole run costs nothing
+			// between searches.
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Stop the worker threads. The searcher may still be used afterwards, a new
+	 * pool is created on demand.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Open-addressing hash table of wanted checksums, so probing a window sum
+	 * doesn't box it.
+	 */
+	private static final class ChecksumTable {
+
+		private final long[] checkSums;
+
+		private final long[] keys;
+
+		private final int[] slots;
+
+		private final int mask;
+
+		private int size;
+
+		private long min = Long.MAX_VALUE;
+
+		private long max = Long.MIN_VALUE;
+
+		ChecksumTable(long[] checkSums) {
+			this.checkSums = checkSums;
+			int capacity = 2;
+			while (capacity < checkSums.length * 2) {
+				capacity <<= 1;
+			}
+			keys = new long[capacity];
+			slots = new int[capacity];
+			Arrays.fill(slots, -1);
+			mask = capacity - 1;
+			for (int i = 0; i < checkSums.length; i++) {
+				if (indexOf(checkSums[i]) >= 0) {
+					continue;
+				}
+				int p = hash(checkSums[i]) & mask;
+				while (slots[p] != -1) {
+					p = (p + 1) & mask;
+				}
+				keys[p] = checkSums[i];
+				slots[p] = i;
+				size++;
+				min = Math.min(min, checkSums[i]);
+				max = Math.max(max, checkSums[i]);
+			}
+		}
+
+		/**
+		 * @return index of the first occurrence of sum in the checksum list, or -1
+		 */
+		int indexOf(long sum) {
+			if (sum < min || sum > max) {
+				return -1;
+			}
+			int p = hash(sum) & mask;
+			int slot;
+			while ((slot = slots[p]) != -1) {
+				if (keys[p] == sum) {
+					return slot;
+				}
+				p = (p + 1) & mask;
+			}
+			return -1;
+		}
+
+		long get(int i) {
+			return checkSums[i];
+		}
+
+		/** Number of checksums, duplicates included. */
+		int length() {
+			return checkSums.length;
+		}
+
+		/** Number of distinct checksums. */
+		int size() {
+			return size;
+		}
+
+		private static int hash(long v) {
+			long h = v * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.uiautomation.framework.engine.pixel;
+
+import com.uiautomation.framework.engine.Rect;
+
+/**
+ * Narrows a pixel checksum search.
+ *
+ * <pre>
+ * new PixelSearchOptions().region(rect).nearest(540, 1200).stride(2)
+ * </pre>
+ */
+public class PixelSearchOptions {
+
+	/**
+	 * Order in which candidate windows are visited.
+	 */
+	public enum ScanOrder {
+		/** Left to right, top to bottom, like the full screen search. */
+		ROW_MAJOR,
+		/** Rings of growing distance around the hint point. */
+		NEAREST_FIRST
+	}
+
+	private Rect region;
+
+	private ScanOrder order = ScanOrder.ROW_MAJOR;
+
+	private int hintX = -1;
+
+	private int hintY = -1;
+
+	private int stride = 1;
+
+	private boolean earlyExit = true;
+
+	/**
+	 * Only consider window centres inside this rectangle. Right and bottom are
+	 * exclusive. null searches the whole screen.
+	 */
+	public PixelSearchOptions region(Rect region) {
+		this.region = region;
+		return this;
+	}
+
+	/**
+	 * Visit candidates nearest to (x, y) first.
+	 */
+	public PixelSearchOptions nearest(int x, int y) {
+		this.order = ScanOrder.NEAREST_FIRST;
+		this.hintX = x;
+		this.hintY = y;
+		return this;
+	}
+
+	public PixelSearchOptions order(ScanOrder order) {
+		this.order = order;
+		return this;
+	}
+
+	/**
+	 * Only test every stride-th column and row. Anything above 1 can miss a
+	 * window that is not aligned with the grid.
+	 */
+	public PixelSearchOptions stride(int stride) {
+		this.stride = Math.max(1, stride);
+		return this;
+	}
+
+	/**
+	 * true (default) returns the first match in scan order. false scans the
+	 * whole region and returns the match closest to the hint point, or to the
+	 * centre of the region when there is no hint.
+	 */
+	public PixelSearchOptions earlyExit(boolean earlyExit) {
+		this.earlyExit = earlyExit;
+		return this;
+	}
+
+	public Rect getRegion() {
+		return region;
+	}
+
+	public ScanOrder getOrder() {
+		return order;
+	}
+
+	public int getHintX() {
+		return hintX;
+	}
+
+	public int getHintY() {
+		return hintY;
+	}
+
+	public boolean hasHint() {
+		return hintX >= 0 && hintY >= 0;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	public boolean isEarlyExit() {
+		return earlyExit;
+	}
+}
@@ -0,0 +1,170 @@
+package com.uiautomation.framework.engine.pixel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.uiautomator.core.UiDevice;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Captures the screen into a reusable in-memory pixel buffer.
+ *
+ * On API 18+ the bitmap is taken straight from the UiAutomation instance held
+ * by uiautomator, so nothing touches the disk. Older devices, devices where
+ * the reflection fails, and captures that fail in memory fall back to a PNG
+ * under the given directory; the file is decoded as soon as it is complete
+ * rather than after a fixed sleep.
+ *
+ * The pixel array is reused between captures: the buffer returned by
+ * {@link #getPixels()} is only valid until the next call to {@link #capture()}.
+ */
+public class ScreenCapture {
+
+	private static final long FILE_TIMEOUT = 5000;
+
+	private static final long FILE_POLL_INTERVAL = 50;
+
+	private final File fallbackFile;
+
+	private int[] pixels = new int[0];
+
+	private int width;
+
+	private int height;
+
+	private boolean reflectionFailed = false;
+
+	private Method screenshotMethod;
+
+	private Object uiAutomation;
+
+	/**
+	 * @param directory directory used for the PNG fallback
+	 */
+	public ScreenCapture(String directory) {
+		this.fallbackFile = new File(directory, "screenshot.png");
+	}
+
+	/**
+	 * Capture the current screen into the pixel buffer.
+	 * @throws IOException if the screen could not be captured
+	 */
+	public synchronized void capture() throws IOException {
+		Bitmap bitmap = captureInMemory();
+		if (bitmap == null) {
+			bitmap = captureToFile();
+		}
+		try {
+			width = bitmap.getWidth();
+			height = bitmap.getHeight();
+			int size = width * height;
+			if (pixels.length < size) {
+				pixels = new int[size];
+			}
+			bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		} finally {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Pixels of the last capture, row-major with a stride of {@link #getWidth()}.
+	 * The array may be longer than width * height.
+	 */
+	public synchronized int[] getPixels() {
+		return pixels;
+	}
+
+	public synchronized int getWidth() {
+		return width;
+	}
+
+	public synchronized int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Take the screen as a bitmap, without going through a file. The caller
+	 * owns the bitmap and should recycle it.
+	 * @return the bitmap, null below API 18, if the reflection failed or if
+	 *         this capture failed
+	 */
+	public synchronized Bitmap captureBitmap() {
+		return captureInMemory();
+	}
+
+	private Bitmap captureInMemory() {
+		if (reflectionFailed || Build.VERSION.SDK_INT < 18) {
+			return null;
+		}
+		if (screenshotMethod == null) {
+			try {
+				Method getBridge = UiDevice.class.getDeclaredMethod("getAutomatorBridge");
+				getBridge.setAccessible(true);
+				Object bridge = getBridge.invoke(UiDevice.getInstance());
+				Field field = findField(bridge.getClass(), "mUiAutomation");
+				field.setAccessible(true);
+				uiAutomation = field.get(bridge);
+				screenshotMethod = uiAutomation.getClass().getMethod("takeScreenshot");
+			} catch (Exception e) {
+				// This uiautomator doesn't have what we look for, it won't later.
+				Log.d(Constant.LOG_TAG, "In-memory screenshot unavailable: " + e);
+				reflectionFailed = true;
+				uiAutomation = null;
+				return null;
+			}
+		}
+		try {
+			return (Bitmap) screenshotMethod.invoke(uiAutomation);
+		} catch (Exception e) {
+			// Only this capture falls back to a file, the next one tries again.
+			Log.d(Constant.LOG_TAG, "In-memory screenshot failed: " + e);
+			return null;
+		}
+	}
+
+	private Bitmap captureToFile() throws IOException {
+		if (fallbackFile.exists() && !fallbackFile.delete()) {
+			throw new IOException("Could not delete " + fallbackFile);
+		}
+		if (!UiDevice.getInstance().takeScreenshot(fallbackFile, 1.0f, 100)) {
+			throw new IOException("Could not take a screenshot to " + fallbackFile);
+		}
+
+		// Decode as soon as the file is complete: its size has stopped
+		// growing and it decodes to a bitmap.
+		long deadline = SystemClock.uptimeMillis() + FILE_TIMEOUT;
+		long lastLength = -1;
+		while (SystemClock.uptimeMillis() < deadline) {
+			long length = fallbackFile.length();
+			if (length > 0 && length == lastLength) {
+				Bitmap bitmap = BitmapFactory.decodeFile(fallbackFile.getAbsolutePath());
+				if (bitmap != null) {
+					return bitmap;
+				}
+			}
+			lastLength = length;
+			SystemClock.sleep(FILE_POLL_INTERVAL);
+		}
+		throw new IOException("Timed out waiting for " + fallbackFile);
+	}
+
+	private static Field findField(Class<?> clz, String name) throws NoSuchFieldException {
+		for (Class<?> c = clz; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				// keep looking in the super class
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+}
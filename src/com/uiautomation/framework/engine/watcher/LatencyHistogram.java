@@ -0,0 +1,75 @@
+package com.uiautomation.framework.engine.watcher;
+
+/**
+ * Counts durations in power of two microsecond buckets, so percentiles come
+ * in constant memory whatever the number of samples. A percentile is
+ * reported as the upper bound of its bucket, at most twice the true value.
+ * Not thread safe.
+ */
+class LatencyHistogram {
+
+	// Bucket i holds durations below 2^i microseconds, the last one the rest.
+	private static final int BUCKETS = 32;
+
+	private final long[] counts = new long[BUCKETS];
+
+	private long count;
+
+	private long total;
+
+	private long max;
+
+	/**
+	 * @param nanos a duration in nanoseconds
+	 */
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts[bucket]++;
+		count++;
+		total += nanos;
+		max = Math.max(max, nanos);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	/** Sum of the durations in nanoseconds. */
+	long getTotal() {
+		return total;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return an upper bound in nanoseconds of the given percentile, never
+	 *         above the largest duration recorded; 0 without samples
+	 */
+	long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(max, (1L << i) * 1000);
+			}
+		}
+		return max;
+	}
+
+	void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+}
@@ -23,5 +23,9 @@ public abstract class SelectorWatcher implements UiWatcher {
 		return true;
 	}
 
+	public UiSelector[] getConditions() {
+		return conditions.clone();
+	}
+
 	public abstract void action();
 }
@@ -0,0 +1,446 @@
+package com.uiautomation.framework.engine.watcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiSelector;
+import com.android.uiautomator.core.UiWatcher;
+import com.uiautomation.framework.engine.Selectors;
+import com.uiautomation.framework.engine.hierarchy.HierarchyCache;
+import com.uiautomation.framework.engine.hierarchy.HierarchySnapshot;
+import com.uiautomation.framework.engine.hierarchy.NodeSelector;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Runs many {@link SelectorWatcher}s as a single UiWatcher.
+ *
+ * A check cycle dumps the window once and evaluates the watchers' conditions
+ * against that snapshot instead of one UiObject lookup per condition. Each
+ * watcher is indexed by one discriminating attribute of its conditions
+ * (resource id, text, description or class name, in that order of
+ * preference); a cycle looks each indexed value up in the snapshot and only
+ * evaluates the watchers whose value is on screen. Watchers without such an
+ * attribute are evaluated on every cycle.
+ *
+ * A watcher's conditions are evaluated most selective first (resource id,
+ * text, description, then looser attributes) and evaluation stops at the
+ * first one that fails. Conditions that can't be expressed as a
+ * {@link NodeSelector} (child, parent, boolean states...) are checked on the
+ * live device, after the watcher's other conditions have matched.
+ *
+ * Watchers are checked by descending priority, then registration order.
+ * Watchers cooling down after a trigger or out of fires (see
+ * {@link WatcherOptions}) are skipped without evaluating anything.
+ *
+ * Every evaluation and action is timed, see {@link #getMetrics()}.
+ */
+public class WatcherEngine implements UiWatcher {
+
+	private static final int RESOURCE_ID = 0;
+
+	private static final int TEXT = 1;
+
+	private static final int DESCRIPTION = 2;
+
+	private static final int CLASS = 3;
+
+	private static final int UNINDEXED = -1;
+
+	private final HierarchyCache hierarchy;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	// "attribute:value" -> watchers keyed on it
+	private final HashMap<String, List<Entry>> index = new HashMap<String, List<Entry>>();
+
+	private final List<Entry> unindexed = new ArrayList<Entry>();
+
+	private long sequence;
+
+	static class Entry {
+
+		final String name;
+
+		final SelectorWatcher watcher;
+
+		// null where a condition has to be checked on the device
+		final NodeSelector[] selectors;
+
+		final UiSelector[] conditions;
+
+		// Indexes of the conditions, most selective first.
+		final int[] evaluation;
+
+		final long order;
+
+		final int priority;
+
+		final long cooldown;
+
+		final int maxFires;
+
+		int fires;
+
+		long lastFired;
+
+		final LatencyHistogram evaluations = new LatencyHistogram();
+
+		final LatencyHistogram actions = new LatencyHistogram();
+
+		int attribute = UNINDEXED;
+
+		String value;
+
+		boolean triggered;
+
+		Entry(String name, SelectorWatcher watcher, WatcherOptions options, long order) {
+			this.name = name;
+			this.watcher = watcher;
+			this.order = order;
+			this.priority = options.getPriority();
+			this.cooldown = options.getCooldown();
+			this.maxFires = options.getMaxFires();
+			this.conditions = watcher.getConditions();
+			this.selectors = new NodeSelector[conditions.length];
+			for (int i = 0; i < conditions.length; i++) {
+				selectors[i] = Selectors.fromUiSelector(conditions[i]);
+			}
+			this.evaluation = evaluationOrder(selectors);
+		}
+
+		/**
+		 * @return false while cooling down or once out of fires
+		 */
+		boolean isEnabled(long now) {
+			if (maxFires > 0 && fires >= maxFires) {
+				return false;
+			}
+			return fires == 0 || now - lastFired >= cooldown;
+		}
+	}
+
+	private static final Comparator<Entry> CHECK_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if (a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return a.order < b.order ? -1 : a.order == b.order ? 0 : 1;
+		}
+	};
+
+	/**
+	 * @param hierarchy where the window snapshots come from; it is invalidated
+	 *                  at the start of every cycle and after every action
+	 */
+	public WatcherEngine(HierarchyCache hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Add a watcher with default options, replacing any watcher with the same
+	 * name.
+	 */
+	public void register(String name, SelectorWatcher watcher) {
+		register(name, watcher, new WatcherOptions());
+	}
+
+	/**
+	 * Add a watcher, replacing any watcher with the same name.
+	 */
+	public synchronized void register(String name, SelectorWatcher watcher,
+			WatcherOptions options) {
+		remove(name);
+		Entry e = new Entry(name, watcher, options, sequence++);
+		choose(e);
+		entries.put(name, e);
+		if (e.attribute == UNINDEXED) {
+			unindexed.add(e);
+		} else {
+			String key = key(e.attribute, e.value);
+			List<Entry> list = index.get(key);
+			if (list == null) {
+				list = new ArrayList<Entry>(2);
+				index.put(key, list);
+			}
+			list.add(e);
+		}
+	}
+
+	/**
+	 * @return true if a watcher with this name was registered
+	 */
+	public synchronized boolean remove(String name) {
+		Entry e = entries.remove(name);
+		if (e == null) {
+			return false;
+		}
+		if (e.attribute == UNINDEXED) {
+			unindexed.remove(e);
+		} else {
+			String key = key(e.attribute, e.value);
+			List<Entry> list = index.get(key);
+			list.remove(e);
+			if (list.isEmpty()) {
+				index.remove(key);
+			}
+		}
+		return true;
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public synchronized boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	public synchronized boolean hasTriggered(String name) {
+		Entry e = entries.get(name);
+		return e != null && e.triggered;
+	}
+
+	public synchronized boolean hasAnyTriggered() {
+		for (Entry e : entries.values()) {
+			if (e.triggered) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Clear the triggered flags, cooldowns and fire counts.
+	 */
+	public synchronized void resetTriggers() {
+		for (Entry e : entries.values()) {
+			e.triggered = false;
+			e.fires = 0;
+		}
+	}
+
+	/**
+	 * @return the metrics of every registered watcher, in registration order
+	 */
+	public synchronized List<WatcherMetrics> getMetrics() {
+		List<WatcherMetrics> metrics = new ArrayList<WatcherMetrics>(entries.size());
+		for (Entry e : entries.values()) {
+			metrics.add(new WatcherMetrics(e.name, e.evaluations, e.actions));
+		}
+		return metrics;
+	}
+
+	public synchronized void resetMetrics() {
+		for (Entry e : entries.values()) {
+			e.evaluations.clear();
+			e.actions.clear();
+		}
+	}
+
+	/**
+	 * Run one check cycle: every watcher whose conditions all hold performs
+	 * its action.
+	 * @return true if any watcher acted
+	 */
+	@Override
+	public synchronized boolean checkForCondition() {
+		if (entries.isEmpty()) {
+			return false;
+		}
+		HierarchySnapshot snapshot = load();
+		if (snapshot == null) {
+			return false;
+		}
+		boolean acted = false;
+		for (Entry e : candidates(snapshot)) {
+			// An earlier action in this cycle may have taken time.
+			if (!e.isEnabled(now())) {
+				continue;
+			}
+			long start = System.nanoTime();
+			boolean matched = matches(e, snapshot);
+			e.evaluations.record(System.nanoTime() - start);
+			if (!matched) {
+				continue;
+			}
+			Log.d(Constant.LOG_TAG, "Watcher " + e.name + " triggered");
+			start = System.nanoTime();
+			try {
+				e.watcher.action();
+			} finally {
+				e.actions.record(System.nanoTime() - start);
+			}
+			e.triggered = true;
+			e.fires++;
+			e.lastFired = now();
+			acted = true;
+			// The action changed the screen, later watchers need a new snapshot.
+			snapshot = load();
+			if (snapshot == null) {
+				break;
+			}
+		}
+		return acted;
+	}
+
+	/**
+	 * @return the enabled watchers worth evaluating on this snapshot, in check
+	 *         order
+	 */
+	private List<Entry> candidates(HierarchySnapshot snapshot) {
+		long now = now();
+		List<Entry> candidates = new ArrayList<Entry>();
+		for (Entry e : unindexed) {
+			if (e.isEnabled(now)) {
+				candidates.add(e);
+			}
+		}
+		for (Map.Entry<String, List<Entry>> k : index.entrySet()) {
+			List<Entry> list = k.getValue();
+			List<Entry> enabled = null;
+			for (Entry e : list) {
+				if (e.isEnabled(now)) {
+					if (enabled == null) {
+						enabled = new ArrayList<Entry>(list.size());
+					}
+					enabled.add(e);
+				}
+			}
+			// Skip the lookup when every watcher on this key is disabled.
+			if (enabled != null && isOnScreen(snapshot, list.get(0).attribute,
+					list.get(0).value)) {
+				candidates.addAll(enabled);
+			}
+		}
+		Collections.sort(candidates, CHECK_ORDER);
+		return candidates;
+	}
+
+	private static boolean matches(Entry e, HierarchySnapshot snapshot) {
+		for (int i : e.evaluation) {
+			NodeSelector s = e.selectors[i];
+			if (s != null ? !snapshot.exists(s) : !new UiObject(e.conditions[i]).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sort condition indexes by how few nodes they are likely to match, so the
+	 * first failing one is reached early; live checks go last.
+	 */
+	private static int[] evaluationOrder(final NodeSelector[] selectors) {
+		Integer[] order = new Integer[selectors.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// Stable, so equally selective conditions keep their declared order.
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return selectivity(selectors[a]) - selectivity(selectors[b]);
+			}
+		});
+		int[] evaluation = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			evaluation[i] = order[i];
+		}
+		return evaluation;
+	}
+
+	/**
+	 * @return a rank, lower for selectors matching fewer nodes
+	 */
+	private static int selectivity(NodeSelector s) {
+		if (s == null) {
+			return 7;
+		} else if (s.getResourceId() != null) {
+			return 0;
+		} else if (s.getText() != null) {
+			return 1;
+		} else if (s.getDescription() != null) {
+			return 2;
+		} else if (s.getTextContains() != null) {
+			return 3;
+		} else if (s.getResourceIdMatches() != null) {
+			return 4;
+		} else if (s.getClassName() != null) {
+			return 5;
+		}
+		return 6;
+	}
+
+	private HierarchySnapshot load() {
+		hierarchy.invalidate();
+		try {
+			return hierarchy.get();
+		} catch (IOException e) {
+			Log.w(Constant.LOG_TAG, "Watchers skipped: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Pick the attribute the watcher is indexed by. Every condition must hold,
+	 * so any one of their attributes rules the watcher out when absent.
+	 */
+	private static void choose(Entry e) {
+		for (int attribute = RESOURCE_ID; attribute <= CLASS; attribute++) {
+			for (NodeSelector s : e.selectors) {
+				String value = s == null ? null : value(s, attribute);
+				if (value != null) {
+					e.attribute = attribute;
+					e.value = value;
+					return;
+				}
+			}
+		}
+	}
+
+	private static String value(NodeSelector s, int attribute) {
+		switch (attribute) {
+		case RESOURCE_ID:
+			return s.getResourceId();
+		case TEXT:
+			return s.getText();
+		case DESCRIPTION:
+			return s.getDescription();
+		default:
+			return s.getClassName();
+		}
+	}
+
+	private static boolean isOnScreen(HierarchySnapshot snapshot, int attribute,
+			String value) {
+		switch (attribute) {
+		case RESOURCE_ID:
+			return snapshot.findByResourceId(value).length > 0;
+		case TEXT:
+			return snapshot.findByText(value).length > 0;
+		case DESCRIPTION:
+			return snapshot.findByContentDescription(value).length > 0;
+		default:
+			return snapshot.findByClassName(value).length > 0;
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	private static String key(int attribute, String value) {
+		return attribute + ":" + value;
+	}
+}
@@ -0,0 +1,149 @@
+package com.uiautomation.framework.engine.watcher;
+
+import java.util.List;
+
+/**
+ * What one watcher has cost so far: how often its conditions were evaluated
+ * and how long that took, how often it acted and how long its action took.
+ * Times are in milliseconds; percentiles are upper bounds, see
+ * {@link LatencyHistogram}. A snapshot, it does not change afterwards.
+ */
+public class WatcherMetrics {
+
+	private final String name;
+
+	private final long checks;
+
+	private final long triggers;
+
+	private final double evaluationTime;
+
+	private final double evaluationP50;
+
+	private final double evaluationP90;
+
+	private final double evaluationP99;
+
+	private final double evaluationMax;
+
+	private final double actionTime;
+
+	private final double actionMax;
+
+	WatcherMetrics(String name, LatencyHistogram evaluations, LatencyHistogram actions) {
+		this.name = name;
+		this.checks = evaluations.getCount();
+		this.triggers = actions.getCount();
+		this.evaluationTime = millis(evaluations.getTotal());
+		this.evaluationP50 = millis(evaluations.getPercentile(50));
+		this.evaluationP90 = millis(evaluations.getPercentile(90));
+		this.evaluationP99 = millis(evaluations.getPercentile(99));
+		this.evaluationMax = millis(evaluations.getMax());
+		this.actionTime = millis(actions.getTotal());
+		this.actionMax = millis(actions.getMax());
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Number of times the conditions were evaluated. */
+	public long getChecks() {
+		return checks;
+	}
+
+	/** Number of times the action ran. */
+	public long getTriggers() {
+		return triggers;
+	}
+
+	/** Total time spent evaluating the conditions. */
+	public double getEvaluationTime() {
+		return evaluationTime;
+	}
+
+	public double getEvaluationP50() {
+		return evaluationP50;
+	}
+
+	public double getEvaluationP90() {
+		return evaluationP90;
+	}
+
+	public double getEvaluationP99() {
+		return evaluationP99;
+	}
+
+	public double getEvaluationMax() {
+		return evaluationMax;
+	}
+
+	/** Total time spent in the action. */
+	public double getActionTime() {
+		return actionTime;
+	}
+
+	public double getActionMax() {
+		return actionMax;
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(256);
+		appendJson(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * @return a JSON array of the metrics
+	 */
+	public static String toJson(List<WatcherMetrics> metrics) {
+		StringBuilder sb = new StringBuilder(256 * metrics.size() + 2);
+		sb.append('[');
+		for (int i = 0; i < metrics.size(); i++) {
+			if (i > 0) {
+				sb.append(",\n");
+			}
+			metrics.get(i).appendJson(sb);
+		}
+		return sb.append(']').toString();
+	}
+
+	private void appendJson(StringBuilder sb) {
+		sb.append("{\"name\":");
+		quote(sb, name);
+		sb.append(",\"checks\":").append(checks);
+		sb.append(",\"triggers\":").append(triggers);
+		sb.append(",\"evaluationMs\":").append(evaluationTime);
+		sb.append(",\"evaluationP50Ms\":").append(evaluationP50);
+		sb.append(",\"evaluationP90Ms\":").append(evaluationP90);
+		sb.append(",\"evaluationP99Ms\":").append(evaluationP99);
+		sb.append(",\"evaluationMaxMs\":").append(evaluationMax);
+		sb.append(",\"actionMs\":").append(actionTime);
+		sb.append(",\"actionMaxMs\":").append(actionMax);
+		sb.append('}');
+	}
+
+	private static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
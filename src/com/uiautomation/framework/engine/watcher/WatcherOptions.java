@@ -0,0 +1,56 @@
+package com.uiautomation.framework.engine.watcher;
+
+/**
+ * How often and in which order a watcher may run.
+ *
+ * <pre>
+ * new WatcherOptions().priority(10).cooldown(2000).maxFires(3)
+ * </pre>
+ */
+public class WatcherOptions {
+
+	private int priority;
+
+	private long cooldown;
+
+	private int maxFires;
+
+	/**
+	 * Watchers with a higher priority are checked first in every cycle, those
+	 * with the same priority in registration order. Default 0.
+	 */
+	public WatcherOptions priority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * Milliseconds after a trigger during which the watcher is not checked,
+	 * for pop-ups that take a while to go away. Default 0.
+	 */
+	public WatcherOptions cooldown(long cooldown) {
+		this.cooldown = Math.max(0, cooldown);
+		return this;
+	}
+
+	/**
+	 * Number of times the watcher may act, after which it is no longer
+	 * checked until its triggers are reset. 0 (default) for no limit.
+	 */
+	public WatcherOptions maxFires(int maxFires) {
+		this.maxFires = Math.max(0, maxFires);
+		return this;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public long getCooldown() {
+		return cooldown;
+	}
+
+	public int getMaxFires() {
+		return maxFires;
+	}
+}
@@ -0,0 +1,291 @@
+package com.uiautomation.framework.engine.watcher;
+
+import java.util.Random;
+
+import android.util.Log;
+
+import com.android.uiautomator.core.UiWatcher;
+import com.uiautomation.framework.utils.Constant;
+
+/**
+ * Runs a {@link UiWatcher} periodically on a background thread, so pop-ups
+ * are dismissed before the test trips over them rather than after a selector
+ * lookup failed.
+ *
+ * Every cycle waits interval milliseconds plus up to jitter more. While cycles
+ * find nothing to do the interval doubles, up to maxInterval; it drops back to
+ * interval as soon as a watcher acts or input is injected.
+ *
+ * The test brackets every input with {@link #beginInput()} and
+ * {@link #endInput()}. No cycle starts while an input is in flight, nor less
+ * than quietPeriod milliseconds after the last one ended, so a long swipe or
+ * drag is never interleaved with a watcher's clicks. An input that begins
+ * while a cycle runs waits for that cycle to finish.
+ */
+public class WatcherScheduler {
+
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	public static final long DEFAULT_MAX_INTERVAL = 8000;
+
+	public static final long DEFAULT_JITTER = 200;
+
+	public static final long DEFAULT_QUIET_PERIOD = 500;
+
+	// Longest time beginInput() waits for a running cycle, in case a watcher
+	// hangs.
+	private static final long CYCLE_WAIT = 10000;
+
+	private final UiWatcher watcher;
+
+	private final Random random = new Random();
+
+	private volatile long interval = DEFAULT_INTERVAL;
+
+	private volatile long maxInterval = DEFAULT_MAX_INTERVAL;
+
+	private volatile long jitter = DEFAULT_JITTER;
+
+	private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+	private long lastInput;
+
+	// Inputs begun and not yet ended.
+	private int inputs;
+
+	private Thread thread;
+
+	// The thread running a cycle, null between cycles.
+	private Thread cycleThread;
+
+	private long delay;
+
+	private long cycles;
+
+	private long triggers;
+
+	private long lastCycleTime;
+
+	private long totalCycleTime;
+
+	private long maxCycleTime;
+
+	/**
+	 * @param watcher checked on every cycle, typically a {@link WatcherEngine}
+	 */
+	public WatcherScheduler(UiWatcher watcher) {
+		this.watcher = watcher;
+	}
+
+	/**
+	 * Start the background thread, does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		delay = interval;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "watcher-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the background thread and wait for a cycle in progress to finish.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		if (t == null || t == Thread.currentThread()) {
+			return;
+		}
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * Tell the scheduler input is about to be injected. No cycle starts until
+	 * the matching {@link #endInput()}; a cycle in progress is waited for, up
+	 * to CYCLE_WAIT milliseconds. Resets the backoff, since the screen is about
+	 * to change. Inputs may nest.
+	 */
+	public synchronized void beginInput() {
+		inputs++;
+		delay = interval;
+		Thread self = Thread.currentThread();
+		long deadline = now() + CYCLE_WAIT;
+		boolean interrupted = false;
+		// A watcher injecting input from the cycle itself must not wait for it.
+		while (cycleThread != null && cycleThread != self) {
+			long wait = deadline - now();
+			if (wait <= 0) {
+				Log.w(Constant.LOG_TAG, "Watcher cycle still running after " + CYCLE_WAIT + "ms");
+				break;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			self.interrupt();
+		}
+	}
+
+	/**
+	 * Tell the scheduler the input begun by {@link #beginInput()} is over. The
+	 * next cycle starts quietPeriod milliseconds after the last input ends.
+	 */
+	public synchronized void endInput() {
+		if (inputs > 0) {
+			inputs--;
+		}
+		lastInput = now();
+		notifyAll();
+	}
+
+	private void loop() {
+		Thread self = Thread.currentThread();
+		while (true) {
+			synchronized (this) {
+				long wakeUp = now() + delay + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+				while (thread == self) {
+					long wait = 0;
+					if (inputs == 0) {
+						wait = Math.max(wakeUp, lastInput + quietPeriod) - now();
+						if (wait <= 0) {
+							break;
+						}
+					}
+					try {
+						// 0 waits for endInput().
+						wait(wait);
+					} catch (InterruptedException e) {
+						thread = null;
+					}
+				}
+				if (thread != self) {
+					return;
+				}
+				cycleThread = self;
+			}
+			long start = now();
+			boolean acted = false;
+			try {
+				acted = watcher.checkForCondition();
+			} catch (RuntimeException e) {
+				Log.w(Constant.LOG_TAG, "Watcher cycle failed: " + e);
+			} finally {
+				synchronized (this) {
+					cycleThread = null;
+					notifyAll();
+				}
+			}
+			long elapsed = now() - start;
+			synchronized (this) {
+				cycles++;
+				lastCycleTime = elapsed;
+				totalCycleTime += elapsed;
+				maxCycleTime = Math.max(maxCycleTime, elapsed);
+				if (acted) {
+					triggers++;
+					delay = interval;
+				} else {
+					delay = Math.min(Math.max(delay, 1) * 2, Math.max(interval, maxInterval));
+				}
+			}
+		}
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param interval milliseconds between cycles while watchers keep acting
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	/**
+	 * @param maxInterval upper bound of the backoff, equal to interval
+	 *                    disables it
+	 */
+	public void setMaxInterval(long maxInterval) {
+		this.maxInterval = maxInterval;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @param jitter random milliseconds added to every wait, 0 for none
+	 */
+	public void setJitter(long jitter) {
+		this.jitter = jitter;
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * @param quietPeriod milliseconds after the end of an input during which
+	 *                    no cycle starts
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		this.quietPeriod = quietPeriod;
+	}
+
+	/** Number of cycles run since construction. */
+	public synchronized long getCycleCount() {
+		return cycles;
+	}
+
+	/** Number of cycles in which a watcher acted. */
+	public synchronized long getTriggerCount() {
+		return triggers;
+	}
+
+	/** Duration of the last cycle in milliseconds. */
+	public synchronized long getLastCycleTime() {
+		return lastCycleTime;
+	}
+
+	/** Mean cycle duration in milliseconds, 0 before the first cycle. */
+	public synchronized long getAverageCycleTime() {
+		return cycles == 0 ? 0 : totalCycleTime / cycles;
+	}
+
+	/** Longest cycle duration in milliseconds. */
+	public synchronized long getMaxCycleTime() {
+		return maxCycleTime;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
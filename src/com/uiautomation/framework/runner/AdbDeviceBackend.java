@@ -0,0 +1,181 @@
+package com.uiautomation.framework.runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.uiautomation.framework.utils.ProcessExecutor;
+import com.uiautomation.framework.utils.ProcessResult;
+
+/**
+ * Runs tests with uiautomator on a device reached through adb.
+ *
+ * <pre>
+ * new AdbDeviceBackend("0123456789ABCDEF", "uiautotest.jar").extra("retrytimes", "1")
+ * </pre>
+ *
+ * runs each test as
+ * {@code adb -s 0123456789ABCDEF shell uiautomator runtest uiautotest.jar -c Class#method -e retrytimes 1}.
+ * A test that times out is killed on the device as well as on the host.
+ */
+public class AdbDeviceBackend implements DeviceBackend {
+
+	private static final long DEFAULT_TIMEOUT = 30 * 60 * 1000;
+
+	// Longest wait for the command killing a timed out test on the device.
+	private static final long KILL_TIMEOUT = 10000;
+
+	// Toybox has pkill; older toolboxes only have pidof.
+	private static final String KILL_UIAUTOMATOR = "pkill -9 uiautomator"
+			+ " || kill -9 $(pidof uiautomator)";
+
+	private final String serial;
+
+	private final String jar;
+
+	private final List<String> extras = new ArrayList<String>();
+
+	private String adb = "adb";
+
+	private long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * @param serial device serial, as listed by adb devices
+	 * @param jar    test jar already pushed to /data/local/tmp
+	 */
+	public AdbDeviceBackend(String serial, String jar) {
+		this.serial = serial;
+		this.jar = jar;
+	}
+
+	/**
+	 * @param adb path of the adb executable, "adb" by default
+	 */
+	public AdbDeviceBackend adb(String adb) {
+		this.adb = adb;
+		return this;
+	}
+
+	/**
+	 * @param timeout milliseconds a single test may take before it is killed
+	 *                and reported as an error
+	 */
+	public AdbDeviceBackend timeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Pass -e key value to every test.
+	 */
+	public AdbDeviceBackend extra(String key, String value) {
+		extras.add("-e");
+		extras.add(key);
+		extras.add(value);
+		return this;
+	}
+
+	@Override
+	public String getSerial() {
+		return serial;
+	}
+
+	@Override
+	public TestResult run(TestMethod test) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(adb);
+		command.add("-s");
+		command.add(serial);
+		command.add("shell");
+		command.add("uiautomator");
+		command.add("runtest");
+		command.add(jar);
+		command.add("-c");
+		command.add(test.toString());
+		command.addAll(extras);
+		ProcessResult r = new ProcessExecutor().timeout(timeout).execute(
+				command.toArray(new String[command.size()]));
+		for (String line : r.errors) {
+			// adb itself failed, the test never reached the device.
+			if (line.startsWith("error:")) {
+				throw new IOException(serial + ": " + line);
+			}
+		}
+
+		TestResult result = new TestResult();
+		result.test = test;
+		result.serial = serial;
+		result.duration = r.duration;
+		result.output = r.outPuts;
+		if (r.timedOut) {
+			// Killing adb leaves the test running on the device, where it
+			// would overlap with the next one.
+			killTest();
+			result.status = TestResult.Status.ERROR;
+			result.message = "Timed out after " + timeout + "ms";
+			return result;
+		}
+		parse(r.outPuts, result);
+		return result;
+	}
+
+	/**
+	 * Kill the uiautomator process on the device.
+	 */
+	private void killTest() {
+		try {
+			ProcessResult r = new ProcessExecutor().timeout(KILL_TIMEOUT).execute(adb, "-s",
+					serial, "shell", KILL_UIAUTOMATOR);
+			if (r.timedOut) {
+				System.err.println(serial + ": timed out killing uiautomator");
+			}
+		} catch (IOException e) {
+			System.err.println(serial + ": can't kill uiautomator: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the outcome from the JUnit text report uiautomator prints, and the
+	 * duration the test printed before it.
+	 */
+	static void parse(List<String> lines, TestResult result) {
+		result.status = TestResult.Status.ERROR;
+		boolean failures = false;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.startsWith("OK (")) {
+				result.status = TestResult.Status.PASSED;
+				result.message = null;
+				return;
+			} else if (line.startsWith("FAILURES!!!")) {
+				failures = true;
+			} else if (line.startsWith("Tests run:") && failures) {
+				// "Tests run: 1,  Failures: 1,  Errors: 0"
+				result.status = line.contains("Failures: 0") ? TestResult.Status.ERROR
+						: TestResult.Status.FAILED;
+			} else if (line.startsWith("1) ") && result.message == null && i + 1 < lines.size()) {
+				result.message = lines.get(i + 1).trim();
+			} else if (line.startsWith("INSTRUMENTATION_RESULT: shortMsg=")
+					&& result.message == null) {
+				result.message = line.substring("INSTRUMENTATION_RESULT: shortMsg=".length());
+			} else if (line.startsWith(DurationHistory.REPORT_PREFIX)) {
+				result.testDuration = parseDuration(line);
+			}
+		}
+		if (result.message == null) {
+			result.message = "No test report";
+		}
+	}
+
+	/**
+	 * @return the milliseconds of a "TEST_DURATION: Class.method=1234" line,
+	 *         -1 if garbled
+	 */
+	private static long parseDuration(String line) {
+		try {
+			return Long.parseLong(line.substring(line.lastIndexOf('=') + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.uiautomation.framework.runner;
+
+import java.io.IOException;
+
+/**
+ * A device the runner can run tests on. Each backend is used by one runner
+ * thread at a time.
+ */
+public interface DeviceBackend {
+
+	String getSerial();
+
+	/**
+	 * Run one test method and wait for its outcome.
+	 * @throws IOException if the device can no longer run tests; the runner
+	 *                     stops using it and hands the test to another device
+	 */
+	TestResult run(TestMethod test) throws IOException;
+}
@@ -0,0 +1,114 @@
+package com.uiautomation.framework.runner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * How long each test took in past runs, keyed by {@link TestMethod#getName()}.
+ * Stored as a properties file of milliseconds. A new duration is averaged
+ * with the one on record, so a single slow run does not reshuffle the next
+ * plan. Thread safe.
+ *
+ * UiAutoTestCase times each test on the device, without retries and their
+ * backoff, and both prints the duration as a {@link #REPORT_PREFIX} line and
+ * records it in /data/local/tmp/uiAutoTest/durations.properties.
+ */
+public class DurationHistory {
+
+	/**
+	 * Starts the "Class.method=milliseconds" line a test prints with its
+	 * duration.
+	 */
+	public static final String REPORT_PREFIX = "TEST_DURATION: ";
+
+	// Weight of the new duration in the average.
+	private static final double SMOOTHING = 0.5;
+
+	private final Map<String, Long> durations = new HashMap<String, Long>();
+
+	/**
+	 * @return the history stored in file, empty if the file does not exist
+	 */
+	public static DurationHistory load(File file) throws IOException {
+		DurationHistory history = new DurationHistory();
+		if (!file.exists()) {
+			return history;
+		}
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		for (String name : p.stringPropertyNames()) {
+			try {
+				history.durations.put(name, Long.parseLong(p.getProperty(name).trim()));
+			} catch (NumberFormatException e) {
+				// Ignore a corrupted entry, the test is re-timed on its next run.
+			}
+		}
+		return history;
+	}
+
+	public synchronized void save(File file) throws IOException {
+		Properties p = new Properties();
+		for (Map.Entry<String, Long> e : durations.entrySet()) {
+			p.setProperty(e.getKey(), Long.toString(e.getValue()));
+		}
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			p.store(out, "Test durations in milliseconds");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the recorded duration in milliseconds, -1 if unknown
+	 */
+	public synchronized long get(String name) {
+		Long d = durations.get(name);
+		return d != null ? d : -1;
+	}
+
+	/**
+	 * Record a run of the test.
+	 */
+	public synchronized void record(String name, long duration) {
+		Long old = durations.get(name);
+		durations.put(name, old == null ? duration
+				: Math.round(old * (1 - SMOOTHING) + duration * SMOOTHING));
+	}
+
+	/**
+	 * Record every run of another history.
+	 */
+	public void recordAll(DurationHistory other) {
+		for (Map.Entry<String, Long> e : other.toMap().entrySet()) {
+			record(e.getKey(), e.getValue());
+		}
+	}
+
+	public synchronized int size() {
+		return durations.size();
+	}
+
+	/**
+	 * @return a copy of the durations
+	 */
+	public synchronized Map<String, Long> toMap() {
+		return new HashMap<String, Long>(durations);
+	}
+}
@@ -0,0 +1,111 @@
+package com.uiautomation.framework.runner;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A device that only pretends to run tests: it sleeps for the test's
+ * configured duration and reports the configured outcome. For trying the
+ * runner, the sharding and the reports without a device farm.
+ *
+ * <pre>
+ * new FakeDeviceBackend("fake-1").duration("com.example.FooTest.testBar", 600000)
+ *         .fail("com.example.FooTest.testBaz").speed(0.001)
+ * </pre>
+ */
+public class FakeDeviceBackend implements DeviceBackend {
+
+	private final String serial;
+
+	private final Map<String, Long> durations = new HashMap<String, Long>();
+
+	private final Set<String> failures = new HashSet<String>();
+
+	private long defaultDuration = 100;
+
+	private double speed = 1;
+
+	private int disconnectAfter = -1;
+
+	private int runs;
+
+	public FakeDeviceBackend(String serial) {
+		this.serial = serial;
+	}
+
+	/**
+	 * @param name     test name, see {@link TestMethod#getName()}
+	 * @param duration milliseconds the test takes
+	 */
+	public FakeDeviceBackend duration(String name, long duration) {
+		durations.put(name, duration);
+		return this;
+	}
+
+	public FakeDeviceBackend defaultDuration(long duration) {
+		this.defaultDuration = duration;
+		return this;
+	}
+
+	/**
+	 * Make a test fail.
+	 */
+	public FakeDeviceBackend fail(String name) {
+		failures.add(name);
+		return this;
+	}
+
+	/**
+	 * @param speed factor applied to every sleep, below 1 to replay real
+	 *              durations faster; the reported durations are the
+	 *              configured ones
+	 */
+	public FakeDeviceBackend speed(double speed) {
+		this.speed = speed;
+		return this;
+	}
+
+	/**
+	 * Go offline after running this many tests: later runs throw
+	 * IOException.
+	 */
+	public FakeDeviceBackend disconnectAfter(int tests) {
+		this.disconnectAfter = tests;
+		return this;
+	}
+
+	@Override
+	public String getSerial() {
+		return serial;
+	}
+
+	@Override
+	public TestResult run(TestMethod test) throws IOException {
+		if (disconnectAfter >= 0 && runs >= disconnectAfter) {
+			throw new IOException(serial + ": device offline");
+		}
+		runs++;
+		Long configured = durations.get(test.getName());
+		long duration = configured != null ? configured : defaultDuration;
+		try {
+			Thread.sleep((long) (duration * speed));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		TestResult result = new TestResult();
+		result.test = test;
+		result.serial = serial;
+		result.duration = duration;
+		if (failures.contains(test.getName())) {
+			result.status = TestResult.Status.FAILED;
+			result.message = "junit.framework.AssertionFailedError: fake failure";
+		} else {
+			result.status = TestResult.Status.PASSED;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,404 @@
+package com.uiautomation.framework.runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs test methods across several devices at once, from the host.
+ *
+ * <pre>
+ * RunReport report = new ParallelRunner(devices).history(history).run(tests);
+ * </pre>
+ *
+ * Every device gets its own queue, filled with one of the balanced shards a
+ * {@link ShardPlanner} cuts using the {@link DurationHistory}. Each device
+ * then takes tests from the head of its own queue and, once that is empty,
+ * steals from the tail of the queue with the most estimated work left, so
+ * devices finish close together even when the estimates are off. A device
+ * whose backend throws IOException is dropped and its test goes back to a
+ * queue for another device. A device with nothing left to take waits until
+ * every test in flight is done, so it can pick up such a test.
+ *
+ * Only depends on the JDK, it runs on the host:
+ *
+ * <pre>
+ * java -cp uiautotest.jar com.uiautomation.framework.runner.ParallelRunner \
+ *     -s SERIAL1,SERIAL2 -j uiautotest.jar -t tests.txt -h durations.properties
+ * </pre>
+ */
+public class ParallelRunner {
+
+	/**
+	 * Told about every test as it starts and finishes. Called from the device
+	 * threads, possibly concurrently.
+	 */
+	public interface Listener {
+		void testStarted(TestMethod test, String serial);
+
+		void testFinished(TestResult result);
+	}
+
+	// A test that takes down this many devices is reported instead of retried.
+	private static final int MAX_DEVICE_FAILURES = 2;
+
+	private final List<DeviceBackend> devices;
+
+	private DurationHistory history = new DurationHistory();
+
+	private long defaultDuration = ShardPlanner.DEFAULT_DURATION;
+
+	private Listener listener;
+
+	private class Worker implements Runnable {
+
+		final DeviceBackend device;
+
+		final LinkedList<TestMethod> queue = new LinkedList<TestMethod>();
+
+		// Estimated milliseconds of the tests in queue.
+		long work;
+
+		Worker(DeviceBackend device) {
+			this.device = device;
+		}
+
+		@Override
+		public void run() {
+			TestMethod test;
+			while ((test = next(this)) != null) {
+				// Every test taken ends through finished or requeue, else the
+				// other workers wait for it forever.
+				boolean ended = false;
+				try {
+					if (listener != null) {
+						listener.testStarted(test, device.getSerial());
+					}
+					TestResult result;
+					try {
+						result = device.run(test);
+					} catch (RuntimeException e) {
+						result = error(test, device.getSerial(), e.toString());
+					}
+					ended = true;
+					finished(result);
+				} catch (IOException e) {
+					System.err.println(device.getSerial() + " dropped: " + e.getMessage());
+					ended = true;
+					requeue(this, test, e.getMessage());
+					return;
+				} finally {
+					if (!ended) {
+						// The listener or the backend threw something else, the
+						// thread dies: hand its tests to the other devices.
+						requeue(this, test, "Runner thread of " + device.getSerial() + " failed");
+					}
+				}
+			}
+		}
+	}
+
+	private final Object lock = new Object();
+
+	private ShardPlanner planner;
+
+	private List<Worker> workers;
+
+	// Tests taken by a device and not yet finished or requeued.
+	private int running;
+
+	private Map<TestMethod, Integer> deviceFailures;
+
+	private Map<TestMethod, TestResult> results;
+
+	public ParallelRunner(List<? extends DeviceBackend> devices) {
+		if (devices.isEmpty()) {
+			throw new IllegalArgumentException("No device");
+		}
+		this.devices = new ArrayList<DeviceBackend>(devices);
+	}
+
+	/**
+	 * @param history past durations used to balance the queues
+	 */
+	public ParallelRunner history(DurationHistory history) {
+		this.history = history;
+		return this;
+	}
+
+	/**
+	 * @param duration milliseconds assumed for tests missing from the history
+	 */
+	public ParallelRunner defaultDuration(long duration) {
+		this.defaultDuration = duration;
+		return this;
+	}
+
+	public ParallelRunner listener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Run every test once and wait for all of them. A runner runs one
+	 * suite at a time.
+	 */
+	public synchronized RunReport run(List<TestMethod> tests) throws InterruptedException {
+		workers = new ArrayList<Worker>(devices.size());
+		for (DeviceBackend device : devices) {
+			workers.add(new Worker(device));
+		}
+		running = 0;
+		deviceFailures = new HashMap<TestMethod, Integer>();
+		results = new HashMap<TestMethod, TestResult>();
+		planner = new ShardPlanner(history, defaultDuration);
+		deal(tests);
+
+		long start = System.currentTimeMillis();
+		List<Thread> threads = new ArrayList<Thread>(workers.size());
+		for (Worker w : workers) {
+			threads.add(new Thread(w, "runner-" + w.device.getSerial()));
+		}
+		// Started workers may already remove themselves from workers.
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		long wallTime = System.currentTimeMillis() - start;
+
+		List<TestResult> merged = new ArrayList<TestResult>(tests.size());
+		synchronized (lock) {
+			for (TestMethod test : tests) {
+				TestResult r = results.get(test);
+				merged.add(r != null ? r : error(test, null, "No device left to run the test"));
+			}
+		}
+		return new RunReport(merged, wallTime);
+	}
+
+	/**
+	 * Fill the queues with balanced shards, each longest first.
+	 */
+	private void deal(List<TestMethod> tests) {
+		List<List<TestMethod>> shards = planner.shard(tests, workers.size());
+		for (int i = 0; i < shards.size(); i++) {
+			Worker w = workers.get(i);
+			w.queue.addAll(shards.get(i));
+			w.work = planner.estimate(shards.get(i));
+		}
+	}
+
+	private long estimate(TestMethod test) {
+		return planner.estimate(test);
+	}
+
+	/**
+	 * @return the next test for the worker, its own or stolen, null when
+	 *         every queue is empty and no test is in flight
+	 */
+	private TestMethod next(Worker self) {
+		synchronized (lock) {
+			while (true) {
+				if (!self.queue.isEmpty()) {
+					TestMethod test = self.queue.removeFirst();
+					self.work -= estimate(test);
+					running++;
+					return test;
+				}
+				Worker victim = null;
+				for (Worker w : workers) {
+					if (!w.queue.isEmpty() && (victim == null || w.work > victim.work)) {
+						victim = w;
+					}
+				}
+				if (victim != null) {
+					TestMethod test = victim.queue.removeLast();
+					victim.work -= estimate(test);
+					running++;
+					return test;
+				}
+				if (running == 0) {
+					return null;
+				}
+				// A device running a test may still drop it, stay available.
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					workers.remove(self);
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give the test of a dropped device back to the device with the least
+	 * work left, unless it already took down too many devices or no device is
+	 * left.
+	 */
+	private void requeue(Worker dropped, TestMethod test, String reason) {
+		TestResult result = null;
+		synchronized (lock) {
+			running--;
+			lock.notifyAll();
+			workers.remove(dropped);
+			Integer failures = deviceFailures.get(test);
+			failures = failures == null ? 1 : failures + 1;
+			deviceFailures.put(test, failures);
+			// Whatever was queued for the dropped device moves along with the test.
+			Worker least = null;
+			for (Worker w : workers) {
+				if (least == null || w.work < least.work) {
+					least = w;
+				}
+			}
+			if (least != null) {
+				for (TestMethod t : dropped.queue) {
+					least.queue.addLast(t);
+				}
+				least.work += dropped.work;
+				dropped.queue.clear();
+				if (failures < MAX_DEVICE_FAILURES) {
+					least.queue.addFirst(test);
+					least.work += estimate(test);
+					return;
+				}
+			}
+			if (failures >= MAX_DEVICE_FAILURES) {
+				result = error(test, dropped.device.getSerial(), reason);
+				results.put(test, result);
+			}
+		}
+		if (result != null && listener != null) {
+			listener.testFinished(result);
+		}
+	}
+
+	private void finished(TestResult result) {
+		synchronized (lock) {
+			results.put(result.test, result);
+			running--;
+			lock.notifyAll();
+		}
+		if (listener != null) {
+			listener.testFinished(result);
+		}
+	}
+
+	private static TestResult error(TestMethod test, String serial, String message) {
+		TestResult r = new TestResult();
+		r.test = test;
+		r.serial = serial;
+		r.status = TestResult.Status.ERROR;
+		r.message = message;
+		return r;
+	}
+
+	/**
+	 * Command line entry point, see the class comment. Options:
+	 * <ul>
+	 * <li>-s serials, comma separated</li>
+	 * <li>-j test jar on the devices</li>
+	 * <li>-t file listing Class#method tests, one per line, # for comments</li>
+	 * <li>-h durations file, read to plan and updated after the run</li>
+	 * <li>-e key value, passed to every test, repeatable</li>
+	 * <li>--timeout milliseconds per test</li>
+	 * </ul>
+	 * Exits with 0 if every test passed, 1 otherwise.
+	 */
+	public static void main(String[] args) throws Exception {
+		String[] serials = null;
+		String jar = null;
+		String testsFile = null;
+		String historyFile = null;
+		long timeout = -1;
+		List<String[]> extras = new ArrayList<String[]>();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if ("-s".equals(a)) {
+				serials = args[++i].split(",");
+			} else if ("-j".equals(a)) {
+				jar = args[++i];
+			} else if ("-t".equals(a)) {
+				testsFile = args[++i];
+			} else if ("-h".equals(a)) {
+				historyFile = args[++i];
+			} else if ("-e".equals(a)) {
+				extras.add(new String[] { args[++i], args[++i] });
+			} else if ("--timeout".equals(a)) {
+				timeout = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + a);
+			}
+		}
+		if (serials == null || jar == null || testsFile == null) {
+			System.err.println("Usage: ParallelRunner -s SERIAL[,SERIAL...] -j JAR -t TESTS_FILE"
+					+ " [-h DURATIONS_FILE] [-e KEY VALUE]... [--timeout MS]");
+			System.exit(2);
+		}
+
+		List<DeviceBackend> devices = new ArrayList<DeviceBackend>();
+		for (String serial : serials) {
+			AdbDeviceBackend device = new AdbDeviceBackend(serial.trim(), jar);
+			if (timeout > 0) {
+				device.timeout(timeout);
+			}
+			for (String[] e : extras) {
+				device.extra(e[0], e[1]);
+			}
+			devices.add(device);
+		}
+		DurationHistory history = historyFile != null ? DurationHistory.load(new File(historyFile))
+				: new DurationHistory();
+
+		RunReport report = new ParallelRunner(devices).history(history).listener(new Listener() {
+			@Override
+			public void testStarted(TestMethod test, String serial) {
+				System.out.println(serial + " started " + test);
+			}
+
+			@Override
+			public void testFinished(TestResult result) {
+				System.out.println(result);
+			}
+		}).run(readTests(new File(testsFile)));
+
+		if (historyFile != null) {
+			report.recordDurations(history);
+			history.save(new File(historyFile));
+		}
+		System.out.println(report);
+		System.exit(report.isSuccessful() ? 0 : 1);
+	}
+
+	/**
+	 * @return the Class#method lines of the file
+	 */
+	static List<TestMethod> readTests(File file) throws IOException {
+		List<TestMethod> tests = new ArrayList<TestMethod>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					tests.add(TestMethod.parse(line));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return tests;
+	}
+}
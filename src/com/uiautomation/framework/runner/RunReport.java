@@ -0,0 +1,103 @@
+package com.uiautomation.framework.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merged results of a parallel run, in the order the tests were given.
+ */
+public class RunReport {
+
+	private final List<TestResult> results;
+
+	private final long wallTime;
+
+	RunReport(List<TestResult> results, long wallTime) {
+		this.results = Collections.unmodifiableList(results);
+		this.wallTime = wallTime;
+	}
+
+	public List<TestResult> getResults() {
+		return results;
+	}
+
+	/** Milliseconds from the first test started to the last one finished. */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	public int count(TestResult.Status status) {
+		int n = 0;
+		for (TestResult r : results) {
+			if (r.status == status) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public boolean isSuccessful() {
+		return count(TestResult.Status.PASSED) == results.size();
+	}
+
+	public List<TestResult> getFailures() {
+		List<TestResult> failures = new ArrayList<TestResult>();
+		for (TestResult r : results) {
+			if (!r.isPassed()) {
+				failures.add(r);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return total test time per device serial; tests no device could run
+	 *         are left out
+	 */
+	public Map<String, Long> getBusyTime() {
+		Map<String, Long> busy = new LinkedHashMap<String, Long>();
+		for (TestResult r : results) {
+			if (r.serial != null) {
+				Long t = busy.get(r.serial);
+				busy.put(r.serial, (t != null ? t : 0) + r.duration);
+			}
+		}
+		return busy;
+	}
+
+	/**
+	 * Add the durations of the tests that ran to a history, for the next
+	 * run's plan. The duration a test reported from the device is used when
+	 * there is one, so instrumentation start-up and retries don't count; the
+	 * host-measured one otherwise, e.g. for a test that timed out.
+	 */
+	public void recordDurations(DurationHistory history) {
+		for (TestResult r : results) {
+			if (r.serial != null) {
+				history.record(r.test.getName(), r.testDuration >= 0 ? r.testDuration
+						: r.duration);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Tests run: ").append(results.size());
+		sb.append(", Passed: ").append(count(TestResult.Status.PASSED));
+		sb.append(", Failed: ").append(count(TestResult.Status.FAILED));
+		sb.append(", Errors: ").append(count(TestResult.Status.ERROR));
+		sb.append(", Time: ").append(wallTime).append("ms\n");
+		for (Map.Entry<String, Long> e : getBusyTime().entrySet()) {
+			sb.append("  ").append(e.getKey()).append(": busy ").append(e.getValue())
+					.append("ms\n");
+		}
+		for (TestResult r : getFailures()) {
+			sb.append(r).append('\n');
+		}
+		return sb.toString();
+	}
+}
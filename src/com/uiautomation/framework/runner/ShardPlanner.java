@@ -0,0 +1,190 @@
+package com.uiautomation.framework.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders and splits tests by how long they took before, so long tests start
+ * first and don't pile up on the same device.
+ *
+ * Splitting uses the longest processing time rule: each test, longest first,
+ * goes to the shard with the least work so far. The longest shard ends up
+ * within a third of the optimum, and usually much closer.
+ *
+ * Durations come from a {@link DurationHistory}. UiAutoTestCase measures
+ * each test on the device, without retries and their backoff;
+ * {@link ParallelRunner} records what its tests report after each run, and
+ * the shell loops merge the durations files the devices keep, see
+ * {@link #main(String[])}. Tests without a duration are assumed to take the
+ * default duration.
+ */
+public class ShardPlanner {
+
+	public static final long DEFAULT_DURATION = 60000;
+
+	private final DurationHistory history;
+
+	private final long defaultDuration;
+
+	public ShardPlanner(DurationHistory history) {
+		this(history, DEFAULT_DURATION);
+	}
+
+	/**
+	 * @param defaultDuration milliseconds assumed for tests missing from the
+	 *                        history
+	 */
+	public ShardPlanner(DurationHistory history, long defaultDuration) {
+		this.history = history;
+		this.defaultDuration = defaultDuration;
+	}
+
+	/**
+	 * @return the expected duration of the test in milliseconds
+	 */
+	public long estimate(TestMethod test) {
+		long d = history.get(test.getName());
+		return d >= 0 ? d : defaultDuration;
+	}
+
+	/**
+	 * @return the tests longest first; equally long tests keep their order
+	 */
+	public List<TestMethod> order(List<TestMethod> tests) {
+		List<TestMethod> sorted = new ArrayList<TestMethod>(tests);
+		Collections.sort(sorted, new Comparator<TestMethod>() {
+			@Override
+			public int compare(TestMethod a, TestMethod b) {
+				long da = estimate(a);
+				long db = estimate(b);
+				return da > db ? -1 : da == db ? 0 : 1;
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Split the tests into balanced shards.
+	 * @return count shards, each ordered longest first; some are empty when
+	 *         there are fewer tests than shards
+	 */
+	public List<List<TestMethod>> shard(List<TestMethod> tests, int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Shard count " + count);
+		}
+		List<List<TestMethod>> shards = new ArrayList<List<TestMethod>>(count);
+		long[] work = new long[count];
+		for (int i = 0; i < count; i++) {
+			shards.add(new ArrayList<TestMethod>());
+		}
+		for (TestMethod test : order(tests)) {
+			int least = 0;
+			for (int i = 1; i < count; i++) {
+				if (work[i] < work[least]) {
+					least = i;
+				}
+			}
+			shards.get(least).add(test);
+			work[least] += estimate(test);
+		}
+		return shards;
+	}
+
+	/**
+	 * @param index from 0 to count - 1
+	 * @return the index-th of count shards; every caller with the same tests
+	 *         and history gets the same split
+	 */
+	public List<TestMethod> shard(List<TestMethod> tests, int count, int index) {
+		if (index < 0 || index >= count) {
+			throw new IllegalArgumentException("Shard " + index + " of " + count);
+		}
+		return shard(tests, count).get(index);
+	}
+
+	/**
+	 * @return the expected duration of the tests in milliseconds
+	 */
+	public long estimate(List<TestMethod> tests) {
+		long total = 0;
+		for (TestMethod test : tests) {
+			total += estimate(test);
+		}
+		return total;
+	}
+
+	/**
+	 * Print one shard of a test list, longest first, one Class#method per
+	 * line, for the shell loops driving devices one by one:
+	 *
+	 * <pre>
+	 * java -cp uiautotest.jar com.uiautomation.framework.runner.ShardPlanner \
+	 *     -t tests.txt -h durations.properties -n 4 -i 0
+	 * </pre>
+	 *
+	 * Without -n the whole list is printed longest first.
+	 *
+	 * After a run, merge the durations each device recorded into the history
+	 * with -m, repeatable, and clear them on the device so the next run
+	 * doesn't merge them again:
+	 *
+	 * <pre>
+	 * adb -s SERIAL pull /data/local/tmp/uiAutoTest/durations.properties SERIAL.properties
+	 * adb -s SERIAL shell rm /data/local/tmp/uiAutoTest/durations.properties
+	 * java -cp uiautotest.jar com.uiautomation.framework.runner.ShardPlanner \
+	 *     -h durations.properties -m SERIAL1.properties -m SERIAL2.properties
+	 * </pre>
+	 *
+	 * The history file is then saved and, without -t, nothing is printed.
+	 */
+	public static void main(String[] args) throws Exception {
+		String testsFile = null;
+		String historyFile = null;
+		List<String> mergeFiles = new ArrayList<String>();
+		int count = 1;
+		int index = 0;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if ("-t".equals(a)) {
+				testsFile = args[++i];
+			} else if ("-h".equals(a)) {
+				historyFile = args[++i];
+			} else if ("-m".equals(a)) {
+				mergeFiles.add(args[++i]);
+			} else if ("-n".equals(a)) {
+				count = Integer.parseInt(args[++i]);
+			} else if ("-i".equals(a)) {
+				index = Integer.parseInt(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + a);
+			}
+		}
+		if (testsFile == null && (historyFile == null || mergeFiles.isEmpty())) {
+			System.err.println("Usage: ShardPlanner -t TESTS_FILE [-h DURATIONS_FILE]"
+					+ " [-n SHARDS -i INDEX]");
+			System.err.println("       ShardPlanner -h DURATIONS_FILE -m DEVICE_DURATIONS_FILE...");
+			System.exit(2);
+		}
+		DurationHistory history = historyFile != null ? DurationHistory.load(new File(historyFile))
+				: new DurationHistory();
+		if (!mergeFiles.isEmpty()) {
+			if (historyFile == null) {
+				throw new IllegalArgumentException("-m needs -h");
+			}
+			for (String file : mergeFiles) {
+				history.recordAll(DurationHistory.load(new File(file)));
+			}
+			history.save(new File(historyFile));
+		}
+		if (testsFile == null) {
+			return;
+		}
+		List<TestMethod> tests = ParallelRunner.readTests(new File(testsFile));
+		for (TestMethod test : new ShardPlanner(history).shard(tests, count, index)) {
+			System.out.println(test);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.uiautomation.framework.runner;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One test method of a test class, the unit the runner distributes.
+ */
+public class TestMethod {
+
+	private final String className;
+
+	private final String methodName;
+
+	public TestMethod(String className, String methodName) {
+		this.className = className;
+		this.methodName = methodName;
+	}
+
+	/**
+	 * @param test "com.example.FooTest#testBar", the syntax of uiautomator's
+	 *             -c option
+	 * @throws IllegalArgumentException if there is no method name
+	 */
+	public static TestMethod parse(String test) {
+		int hash = test.indexOf('#');
+		if (hash <= 0 || hash == test.length() - 1) {
+			throw new IllegalArgumentException("Expected Class#method: " + test);
+		}
+		return new TestMethod(test.substring(0, hash).trim(), test.substring(hash + 1).trim());
+	}
+
+	/**
+	 * List the test methods of a class the way JUnit 3 does: public, void,
+	 * no parameters, name starting with "test", inherited ones included.
+	 * Loading the class does not initialize it, so a device-only test class
+	 * can be inspected on the host as long as its dependencies are on the
+	 * class path.
+	 * @return the methods sorted by name
+	 */
+	public static List<TestMethod> discover(Class<?> testClass) {
+		List<String> names = new ArrayList<String>();
+		for (Method m : testClass.getMethods()) {
+			if (m.getName().startsWith("test") && m.getParameterTypes().length == 0
+					&& m.getReturnType() == Void.TYPE
+					&& !Modifier.isStatic(m.getModifiers())) {
+				names.add(m.getName());
+			}
+		}
+		Collections.sort(names);
+		List<TestMethod> tests = new ArrayList<TestMethod>(names.size());
+		for (String name : names) {
+			tests.add(new TestMethod(testClass.getName(), name));
+		}
+		return tests;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * @return "com.example.FooTest.testBar", the name runTest logs and
+	 *         durations are keyed by
+	 */
+	public String getName() {
+		return className + "." + methodName;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TestMethod)) {
+			return false;
+		}
+		TestMethod t = (TestMethod) o;
+		return className.equals(t.className) && methodName.equals(t.methodName);
+	}
+
+	@Override
+	public int hashCode() {
+		return className.hashCode() * 31 + methodName.hashCode();
+	}
+
+	/**
+	 * @return "com.example.FooTest#testBar", see {@link #parse(String)}
+	 */
+	@Override
+	public String toString() {
+		return className + "#" + methodName;
+	}
+}
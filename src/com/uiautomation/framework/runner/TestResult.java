@@ -0,0 +1,49 @@
+package com.uiautomation.framework.runner;
+
+import java.util.List;
+
+/**
+ * Outcome of one test method on one device.
+ */
+public class TestResult {
+
+	public enum Status {
+		PASSED,
+		/** An assertion failed. */
+		FAILED,
+		/** The test threw, crashed, timed out or could not be run. */
+		ERROR
+	}
+
+	public TestMethod test;
+
+	/** Serial of the device that ran the test, null if none could. */
+	public String serial;
+
+	public Status status;
+
+	/** Milliseconds the run took, including the device round trip. */
+	public long duration;
+
+	/**
+	 * Milliseconds the test took on the device, retries excluded, -1 if the
+	 * test did not report it.
+	 */
+	public long testDuration = -1;
+
+	/** First line of the failure, null when passed. */
+	public String message;
+
+	/** Whatever the run printed, may be null. */
+	public List<String> output;
+
+	public boolean isPassed() {
+		return status == Status.PASSED;
+	}
+
+	@Override
+	public String toString() {
+		return test + " " + status + " on " + serial + " in " + duration + "ms"
+				+ (message != null ? ": " + message : "");
+	}
+}
@@ -0,0 +1,244 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A shell command running in the background.
+ *
+ * <pre>
+ * AsyncCommand top = AsyncCommand.start("top -d 1", new AsyncCommand.LineListener() {
+ *     public void onLine(String line) { ... }
+ * }, 60000);
+ * ... drive the UI ...
+ * top.cancel(true);
+ * </pre>
+ *
+ * Output lines are passed to the listener as they arrive; without a listener
+ * they are kept in the result instead, as are the lines after the listener
+ * threw. The process and the processes it started are killed when the
+ * timeout expires or the command is cancelled, see {@link ProcessTree}.
+ * Stderr lines are always kept.
+ */
+public class AsyncCommand implements Future<CmdResult> {
+
+	/**
+	 * Receives the stdout lines of a command, on the command's reader thread.
+	 */
+	public interface LineListener {
+		void onLine(String line);
+	}
+
+	private static final long READER_GRACE = 500;
+
+	// java.util.logging reaches logcat on a device and stderr on a desktop.
+	private static final Logger LOG = Logger.getLogger(Constant.LOG_TAG);
+
+	private static ScheduledExecutorService timer;
+
+	private final Process process;
+
+	private final LineListener listener;
+
+	private final CmdResult result = new CmdResult();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private ScheduledFuture<?> timeoutTask;
+
+	private volatile boolean cancelled;
+
+	private volatile boolean timedOut;
+
+	private AsyncCommand(Process process, LineListener listener) {
+		this.process = process;
+		this.listener = listener;
+		result.returnValue = -1;
+		result.outPuts = Collections.synchronizedList(new ArrayList<String>());
+		result.errors = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	/**
+	 * Start a command.
+	 * @param cmd      shell command line
+	 * @param listener receives stdout lines, null to keep them in the result
+	 * @param timeout  milliseconds before the process is killed, 0 for none
+	 * @throws IOException if the shell could not be started
+	 */
+	public static AsyncCommand start(String cmd, LineListener listener, long timeout)
+			throws IOException {
+		Process p = new ProcessBuilder(Constant.SHELL, "-c", cmd).start();
+		final AsyncCommand command = new AsyncCommand(p, listener);
+		command.startReaders();
+		if (timeout > 0) {
+			synchronized (command) {
+				command.timeoutTask = timer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						command.timedOut = true;
+						ProcessTree.destroy(command.process);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		return command;
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "async-command-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	private void startReaders() {
+		final Thread output = reader(process.getInputStream(), listener,
+				result.outPuts, "stdout");
+		final Thread errors = reader(process.getErrorStream(), null, result.errors,
+				"stderr");
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int code = process.waitFor();
+					// A child left running in the background can keep the pipes
+					// open after the shell exits, don't wait for it.
+					long deadline = System.currentTimeMillis() + READER_GRACE;
+					output.join(READER_GRACE);
+					errors.join(Math.max(1, deadline - System.currentTimeMillis()));
+					result.returnValue = code;
+				} catch (InterruptedException e) {
+					ProcessTree.destroy(process);
+				} finally {
+					synchronized (AsyncCommand.this) {
+						if (timeoutTask != null) {
+							timeoutTask.cancel(false);
+						}
+					}
+					done.countDown();
+				}
+			}
+		}, "async-command-waiter");
+		waiter.setDaemon(true);
+		output.start();
+		errors.start();
+		waiter.start();
+	}
+
+	private static Thread reader(final InputStream in, final LineListener listener,
+			final List<String> lines, String name) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read(in, listener, lines);
+			}
+		}, "async-command-" + name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	private static void read(InputStream in, LineListener listener, List<String> lines) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (listener == null) {
+					lines.add(line);
+					continue;
+				}
+				try {
+					listener.onLine(line);
+				} catch (RuntimeException e) {
+					// Keep draining, a blocked pipe would stall the command.
+					LOG.log(Level.WARNING, "Line listener failed, keeping the lines", e);
+					listener = null;
+				}
+			}
+		} catch (IOException e) {
+			// The process was killed.
+		}
+	}
+
+	/**
+	 * Kill the process and the processes it started.
+	 * @return false if the command had already finished
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) {
+			return false;
+		}
+		cancelled = true;
+		ProcessTree.destroy(process);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * True if the process was killed because the timeout expired.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the command to finish.
+	 * @return the exit code, stdout lines (none if a listener was set) and
+	 *         stderr lines
+	 * @throws CancellationException if the command was cancelled
+	 */
+	@Override
+	public CmdResult get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public CmdResult get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("Command still running");
+		}
+		return result();
+	}
+
+	private CmdResult result() {
+		if (cancelled) {
+			throw new CancellationException("Command cancelled");
+		}
+		return result;
+	}
+}
@@ -5,4 +5,5 @@ import java.util.List;
 public class CmdResult {
 	public int returnValue;
 	public List<String> outPuts;
+	public List<String> errors;
 }
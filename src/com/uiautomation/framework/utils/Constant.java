@@ -8,6 +8,8 @@ public class Constant {
 
     public static String LOGS_PATH = "uiAutoTest";
 
+    public static String SHELL = "sh";
+
     public static final String HOME = "home";
 
     public static final String BACK = "back";
@@ -0,0 +1,65 @@
+package com.uiautomation.framework.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last capacity lines added to it. Older lines are overwritten and
+ * counted as dropped, so a chatty process can't exhaust memory. Thread safe.
+ */
+public class LineRingBuffer {
+
+	private final String[] lines;
+
+	private int next;
+
+	private long added;
+
+	public LineRingBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		lines = new String[capacity];
+	}
+
+	public synchronized void add(String line) {
+		lines[next] = line;
+		next = next + 1 == lines.length ? 0 : next + 1;
+		added++;
+	}
+
+	/**
+	 * @return the kept lines, oldest first
+	 */
+	public synchronized List<String> toList() {
+		int size = size();
+		List<String> list = new ArrayList<String>(size);
+		int start = size < lines.length ? 0 : next;
+		for (int i = 0; i < size; i++) {
+			list.add(lines[(start + i) % lines.length]);
+		}
+		return list;
+	}
+
+	/** Number of lines kept. */
+	public synchronized int size() {
+		return (int) Math.min(added, lines.length);
+	}
+
+	/** Number of lines overwritten since the buffer was created or cleared. */
+	public synchronized long getDropped() {
+		return added - size();
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = null;
+		}
+		next = 0;
+		added = 0;
+	}
+
+	public int getCapacity() {
+		return lines.length;
+	}
+}
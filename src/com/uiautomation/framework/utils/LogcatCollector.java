@@ -0,0 +1,219 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams logcat into memory while a test runs, and writes it to a file only
+ * when asked, typically when the test failed.
+ *
+ * <pre>
+ * LogcatCollector logcat = new LogcatCollector(5000).filter("ActivityManager", 'I')
+ *         .filter("MyApp", 'V');
+ * logcat.start();
+ * ...
+ * logcat.stop();
+ * logcat.save(new File("/data/local/tmp/uiAutoTest/testFoo_logcat.txt"));
+ * </pre>
+ *
+ * Only the last capacity lines are kept, see {@link LineRingBuffer}. logcat
+ * first prints what its buffers already hold; lines stamped before
+ * {@link #start()} are skipped, so the buffer holds this test's lines only.
+ */
+public class LogcatCollector {
+
+	public static final int DEFAULT_CAPACITY = 5000;
+
+	// After the process is killed, time allowed for the reader to finish.
+	private static final long STOP_GRACE = 500;
+
+	// "-v time" lines start with "MM-dd HH:mm:ss.SSS", fixed width, so they
+	// order the same as strings.
+	private static final int STAMP_LENGTH = 18;
+
+	private final LineRingBuffer lines;
+
+	private final List<String> filters = new ArrayList<String>();
+
+	private String logcat = "logcat";
+
+	private Process process;
+
+	private CountDownLatch finished;
+
+	public LogcatCollector() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity lines kept in memory
+	 */
+	public LogcatCollector(int capacity) {
+		lines = new LineRingBuffer(capacity);
+	}
+
+	/**
+	 * Keep the lines of tag at priority or above. Once a filter is set, tags
+	 * without one are silenced; filter("*", 'W') keeps warnings of every tag.
+	 * @param priority one of V, D, I, W, E, F
+	 */
+	public LogcatCollector filter(String tag, char priority) {
+		filters.add(tag + ":" + Character.toUpperCase(priority));
+		return this;
+	}
+
+	/**
+	 * Add filters in logcat syntax, "ActivityManager:I MyApp:V".
+	 */
+	public LogcatCollector filters(String filterSpecs) {
+		for (String spec : filterSpecs.trim().split("\\s+")) {
+			if (spec.length() > 0) {
+				filters.add(spec);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param logcat the logcat executable, "logcat" by default
+	 */
+	public LogcatCollector executable(String logcat) {
+		this.logcat = logcat;
+		return this;
+	}
+
+	/**
+	 * Start streaming, clearing what a previous run collected.
+	 * @throws IllegalStateException if already started
+	 */
+	public synchronized void start() throws IOException {
+		if (process != null) {
+			throw new IllegalStateException("Already started");
+		}
+		lines.clear();
+		List<String> command = new ArrayList<String>();
+		command.add(logcat);
+		command.add("-v");
+		command.add("time");
+		command.addAll(filters);
+		if (!filters.isEmpty() && !hasDefaultFilter()) {
+			command.add("*:S");
+		}
+		final String since = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US)
+				.format(new Date());
+		final Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		final CountDownLatch done = new CountDownLatch(1);
+		ProcessExecutor.threads().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(
+							p.getInputStream(), "UTF-8"));
+					String line;
+					boolean caughtUp = false;
+					while ((line = reader.readLine()) != null) {
+						if (!caughtUp) {
+							if (line.length() < STAMP_LENGTH
+									|| line.substring(0, STAMP_LENGTH).compareTo(since) < 0) {
+								continue;
+							}
+							caughtUp = true;
+						}
+						lines.add(line);
+					}
+				} catch (IOException e) {
+					// Closed by stop().
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		process = p;
+		finished = done;
+	}
+
+	private boolean hasDefaultFilter() {
+		for (String f : filters) {
+			if (f.startsWith("*:")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop streaming. The lines collected so far stay available.
+	 */
+	public synchronized void stop() {
+		if (process == null) {
+			return;
+		}
+		process.destroy();
+		try {
+			finished.await(STOP_GRACE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ProcessExecutor.closeQuietly(process);
+		process = null;
+		finished = null;
+	}
+
+	public synchronized boolean isRunning() {
+		return process != null;
+	}
+
+	/**
+	 * @return the kept lines, oldest first
+	 */
+	public List<String> getLines() {
+		return lines.toList();
+	}
+
+	/**
+	 * @return lines collected but no longer kept
+	 */
+	public long getDropped() {
+		return lines.getDropped();
+	}
+
+	/**
+	 * Write the kept lines to a file, creating its directory.
+	 * @return the number of lines written
+	 */
+	public int save(File file) throws IOException {
+		List<String> kept = lines.toList();
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				"UTF-8"));
+		try {
+			long dropped = lines.getDropped();
+			if (dropped > 0) {
+				out.write("--------- " + dropped + " earlier lines dropped\n");
+			}
+			for (String line : kept) {
+				out.write(line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		return kept.size();
+	}
+}
@@ -0,0 +1,192 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a command until one of its stdout lines matches, then kills it.
+ *
+ * <pre>
+ * OutputMatcher.Match m = new OutputMatcher()
+ *         .contains("Displayed com.android.settings")
+ *         .matches("ANR in (\\S+)")
+ *         .timeout(10000)
+ *         .find("logcat -v brief");
+ * </pre>
+ *
+ * Patterns are tried in the order they were added and the first line matching
+ * any of them ends the search. Whatever the outcome (match, end of output or
+ * timeout) the process is destroyed and its streams closed before returning,
+ * so a never-ending command such as logcat can't outlive the call.
+ */
+public class OutputMatcher {
+
+	private static final long DEFAULT_TIMEOUT = 60000;
+
+	// Reader threads put this in the queue when the output ends.
+	private static final String END = new String("end");
+
+	/**
+	 * A matching line.
+	 */
+	public static class Match {
+
+		private final int pattern;
+
+		private final String line;
+
+		private final Matcher matcher;
+
+		Match(int pattern, String line, Matcher matcher) {
+			this.pattern = pattern;
+			this.line = line;
+			this.matcher = matcher;
+		}
+
+		/** Index of the pattern that matched, in the order they were added. */
+		public int getPattern() {
+			return pattern;
+		}
+
+		public String getLine() {
+			return line;
+		}
+
+		/**
+		 * @return a group of a regular expression match, null for a literal
+		 *         pattern or a group that did not participate
+		 */
+		public String group(int group) {
+			return matcher == null ? null : matcher.group(group);
+		}
+	}
+
+	private final List<Object> patterns = new ArrayList<Object>();
+
+	private long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Match lines containing text.
+	 */
+	public OutputMatcher contains(String text) {
+		patterns.add(text);
+		return this;
+	}
+
+	/**
+	 * Match lines in which the regular expression is found.
+	 */
+	public OutputMatcher matches(String regex) {
+		return matches(Pattern.compile(regex));
+	}
+
+	public OutputMatcher matches(Pattern pattern) {
+		patterns.add(pattern);
+		return this;
+	}
+
+	/**
+	 * @param timeout milliseconds before the search is abandoned, 0 for none
+	 */
+	public OutputMatcher timeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Match one line against the patterns.
+	 * @return the match, or null
+	 */
+	public Match match(String line) {
+		for (int i = 0; i < patterns.size(); i++) {
+			Object p = patterns.get(i);
+			if (p instanceof Pattern) {
+				Matcher m = ((Pattern) p).matcher(line);
+				if (m.find()) {
+					return new Match(i, line, m);
+				}
+			} else if (line.indexOf((String) p) != -1) {
+				return new Match(i, line, null);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Run a command line split on white space, like Runtime.exec(String).
+	 * @return the first matching line, null if the output ended or the
+	 *         timeout expired first
+	 */
+	public Match find(String commandLine) throws IOException {
+		return find(ProcessExecutor.tokenize(commandLine));
+	}
+
+	public Match find(String... command) throws IOException {
+		if (command.length == 0) {
+			throw new IOException("Empty command");
+		}
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		Process process = new ProcessBuilder(command).start();
+		BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+		try {
+			ProcessExecutor.threads().execute(read(process.getInputStream(), lines));
+			ProcessExecutor.threads().execute(read(process.getErrorStream(), null));
+			while (true) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return null;
+				}
+				String line = lines.poll(left, TimeUnit.MILLISECONDS);
+				if (line == null || line == END) {
+					return null;
+				}
+				Match m = match(line);
+				if (m != null) {
+					return m;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			process.destroy();
+			ProcessExecutor.closeQuietly(process);
+		}
+	}
+
+	/**
+	 * @param lines where to put the lines, null to discard them
+	 */
+	private static Runnable read(final InputStream in, final BlockingQueue<String> lines) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+							"UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (lines != null) {
+							lines.add(line);
+						}
+					}
+				} catch (IOException e) {
+					// Closed once the search is over.
+				} finally {
+					if (lines != null) {
+						lines.add(END);
+					}
+				}
+			}
+		};
+	}
+}
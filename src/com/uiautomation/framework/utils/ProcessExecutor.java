@@ -0,0 +1,197 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a process to completion.
+ *
+ * <pre>
+ * ProcessResult r = new ProcessExecutor().timeout(5000).execute("pm list packages");
+ * </pre>
+ *
+ * Stdout and stderr are drained concurrently from the moment the process
+ * starts, so neither pipe can fill up and block the process. Only the last
+ * maxLines lines of each are kept. The wait ends when the process exits or the
+ * deadline passes; in the latter case the process is killed along with the
+ * processes it started, see {@link ProcessTree}, and the result is flagged as
+ * timed out.
+ */
+public class ProcessExecutor {
+
+	private static final long DEFAULT_TIMEOUT = 60000;
+
+	private static final int DEFAULT_MAX_LINES = 10000;
+
+	// After exit, time allowed for the readers to reach the end of the pipes.
+	private static final long DRAIN_GRACE = 500;
+
+	private static ExecutorService threads;
+
+	private long timeout = DEFAULT_TIMEOUT;
+
+	private int maxLines = DEFAULT_MAX_LINES;
+
+	/**
+	 * @param timeout milliseconds before the process is killed, 0 for none
+	 */
+	public ProcessExecutor timeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * @param maxLines lines kept from each of stdout and stderr
+	 */
+	public ProcessExecutor maxLines(int maxLines) {
+		this.maxLines = maxLines;
+		return this;
+	}
+
+	/**
+	 * Run a command line split on white space, like Runtime.exec(String).
+	 */
+	public ProcessResult execute(String commandLine) throws IOException {
+		return execute(tokenize(commandLine));
+	}
+
+	static String[] tokenize(String commandLine) {
+		StringTokenizer st = new StringTokenizer(commandLine);
+		String[] command = new String[st.countTokens()];
+		for (int i = 0; st.hasMoreTokens(); i++) {
+			command[i] = st.nextToken();
+		}
+		return command;
+	}
+
+	/**
+	 * Run a command line through the shell, see {@link Constant#SHELL}.
+	 */
+	public ProcessResult executeShell(String cmd) throws IOException {
+		return execute(Constant.SHELL, "-c", cmd);
+	}
+
+	public ProcessResult execute(String... command) throws IOException {
+		if (command.length == 0) {
+			throw new IOException("Empty command");
+		}
+		long start = System.currentTimeMillis();
+		final Process process = new ProcessBuilder(command).start();
+		final LineRingBuffer out = new LineRingBuffer(maxLines);
+		final LineRingBuffer err = new LineRingBuffer(maxLines);
+		final CountDownLatch drained = new CountDownLatch(2);
+		final CountDownLatch exited = new CountDownLatch(1);
+		final int[] exitCode = { -1 };
+		ExecutorService pool = threads();
+		pool.execute(drain(process.getInputStream(), out, drained));
+		pool.execute(drain(process.getErrorStream(), err, drained));
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int code = process.waitFor();
+					synchronized (exitCode) {
+						exitCode[0] = code;
+					}
+				} catch (InterruptedException e) {
+				} finally {
+					exited.countDown();
+				}
+			}
+		});
+
+		ProcessResult result = new ProcessResult();
+		try {
+			boolean finished = timeout > 0 ? exited.await(timeout, TimeUnit.MILLISECONDS)
+					: await(exited);
+			if (!finished) {
+				result.timedOut = true;
+				ProcessTree.destroy(process);
+				exited.await(DRAIN_GRACE, TimeUnit.MILLISECONDS);
+			}
+			// A child left running in the background can keep the pipes open.
+			drained.await(DRAIN_GRACE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			ProcessTree.destroy(process);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			closeQuietly(process);
+		}
+		synchronized (exitCode) {
+			result.returnValue = exitCode[0];
+		}
+		result.duration = System.currentTimeMillis() - start;
+		result.outPuts = out.toList();
+		result.outPutsDropped = out.getDropped();
+		result.errors = err.toList();
+		result.errorsDropped = err.getDropped();
+		return result;
+	}
+
+	private static boolean await(CountDownLatch latch) throws InterruptedException {
+		latch.await();
+		return true;
+	}
+
+	private static Runnable drain(final InputStream in, final LineRingBuffer lines,
+			final CountDownLatch drained) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+							"UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						lines.add(line);
+					}
+				} catch (IOException e) {
+					// The stream was closed after the deadline.
+				} finally {
+					drained.countDown();
+				}
+			}
+		};
+	}
+
+	static void closeQuietly(Process process) {
+		try {
+			process.getOutputStream().close();
+		} catch (IOException e) {
+		}
+		try {
+			process.getInputStream().close();
+		} catch (IOException e) {
+		}
+		try {
+			process.getErrorStream().close();
+		} catch (IOException e) {
+		}
+	}
+
+	static synchronized ExecutorService threads() {
+		if (threads == null) {
+			threads = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "process-executor-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return threads;
+	}
+}
@@ -0,0 +1,29 @@
+package com.uiautomation.framework.utils;
+
+/**
+ * Outcome of a command run by {@link ProcessExecutor}. outPuts and errors hold
+ * the last lines of stdout and stderr.
+ */
+public class ProcessResult extends CmdResult {
+
+	/** True if the process was killed because the deadline passed. */
+	public boolean timedOut;
+
+	/** Stdout lines dropped from the start of outPuts to bound memory. */
+	public long outPutsDropped;
+
+	/** Stderr lines dropped from the start of errors to bound memory. */
+	public long errorsDropped;
+
+	/** Milliseconds from start to exit. */
+	public long duration;
+
+	@Override
+	public String toString() {
+		return "ProcessResult[returnValue=" + returnValue + ", timedOut=" + timedOut
+				+ ", duration=" + duration + "ms, outPuts=" + outPuts.size()
+				+ (outPutsDropped > 0 ? " (+" + outPutsDropped + " dropped)" : "")
+				+ ", errors=" + errors.size()
+				+ (errorsDropped > 0 ? " (+" + errorsDropped + " dropped)" : "") + "]";
+	}
+}
@@ -0,0 +1,160 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kills a process together with the processes it started.
+ *
+ * Process.destroy() only signals the process itself. When that process is a
+ * shell, the command it runs is left behind, re-parented to init, and keeps
+ * running. {@link #destroy(Process)} walks /proc for the descendants first,
+ * since they can't be found once their parent is gone, then kills the
+ * process and its descendants at once.
+ *
+ * Works wherever /proc is, on a device and on Linux; elsewhere only the
+ * process itself is destroyed.
+ */
+public class ProcessTree {
+
+	private ProcessTree() {
+	}
+
+	/**
+	 * Kill the process and its descendants.
+	 */
+	public static void destroy(Process process) {
+		int pid = pid(process);
+		if (pid > 0) {
+			List<Integer> descendants = descendants(pid);
+			if (!descendants.isEmpty()) {
+				// The process goes first, so a shell can't run the next command
+				// once its current one is killed.
+				descendants.add(0, pid);
+				kill(descendants);
+			}
+		}
+		process.destroy();
+	}
+
+	/**
+	 * @return the pid of the process, -1 if it can't be read
+	 */
+	static int pid(Process process) {
+		try {
+			// Java 9 and later.
+			return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+		} catch (Exception e) {
+			// Not available, try the implementation's field.
+		}
+		try {
+			// UNIXProcess before Java 9, ProcessManager.ProcessImpl on Android.
+			Field f = process.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(process);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the pids of the processes below root, parents first; empty
+	 *         without /proc
+	 */
+	static List<Integer> descendants(int root) {
+		Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+		File[] entries = new File("/proc").listFiles();
+		if (entries != null) {
+			for (File dir : entries) {
+				int pid = parseInt(dir.getName());
+				if (pid <= 0) {
+					continue;
+				}
+				int ppid = parentOf(new File(dir, "stat"));
+				if (ppid <= 0) {
+					continue;
+				}
+				List<Integer> siblings = children.get(ppid);
+				if (siblings == null) {
+					siblings = new ArrayList<Integer>();
+					children.put(ppid, siblings);
+				}
+				siblings.add(pid);
+			}
+		}
+		List<Integer> found = new ArrayList<Integer>();
+		List<Integer> parents = new ArrayList<Integer>();
+		parents.add(root);
+		for (int i = 0; i < parents.size(); i++) {
+			List<Integer> below = children.get(parents.get(i));
+			if (below != null) {
+				found.addAll(below);
+				parents.addAll(below);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the parent pid in a /proc/PID/stat file, -1 if the process is
+	 *         gone
+	 */
+	private static int parentOf(File stat) {
+		String line;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(stat), "UTF-8"));
+			try {
+				line = reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+		// "pid (comm) state ppid ...", comm may hold spaces and parentheses.
+		int end = line != null ? line.lastIndexOf(')') : -1;
+		if (end < 0) {
+			return -1;
+		}
+		String[] fields = line.substring(end + 1).trim().split(" ");
+		return fields.length > 1 ? parseInt(fields[1]) : -1;
+	}
+
+	private static int parseInt(String s) {
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void kill(List<Integer> pids) {
+		List<String> command = new ArrayList<String>();
+		command.add("kill");
+		command.add("-9");
+		for (Integer pid : pids) {
+			command.add(pid.toString());
+		}
+		try {
+			Process kill = new ProcessBuilder(command).redirectErrorStream(true).start();
+			try {
+				kill.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				ProcessExecutor.closeQuietly(kill);
+			}
+		} catch (IOException e) {
+			// No kill command, the descendants are left running.
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.uiautomation.framework.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-lived shell that runs commands written to its stdin, so running a
+ * command costs no process creation from the Java side.
+ *
+ * Each command runs in a subshell, then a sentinel is printed to stdout with
+ * the exit code and to stderr, which delimits the command's output on both
+ * streams:
+ *
+ * <pre>
+ * ( eval 'command' ) &lt;/dev/null; __r=$?
+ * printf '%s%d\n' MARK $__r; printf '%s\n' MARK &gt;&amp;2
+ * </pre>
+ *
+ * Like a fresh process per command, nothing a command does to the shell
+ * state (cd, export, set -e, exit) is seen by the next one, whichever
+ * session of a pool it lands on. The command is passed quoted to eval, so a
+ * syntax error such as an unbalanced quote fails that command alone instead
+ * of swallowing the sentinel.
+ *
+ * A command that does not finish within its timeout is killed along with
+ * the shell and whatever it started, see {@link ProcessTree}; one that kills
+ * the shell itself reports the shell's exit code. Either way the next
+ * command starts a new shell.
+ *
+ * Only depends on the JDK, so it runs against /bin/sh on a desktop too.
+ * Not thread safe, see {@link ShellSessionPool}.
+ */
+public class ShellSession {
+
+	private static final String MARKER_PREFIX = "__shell_session_";
+
+	// Stream readers put this in their queue when the stream closes.
+	private static final String CLOSED = new String("closed");
+
+	private final String shell;
+
+	private final String marker;
+
+	private Process process;
+
+	private OutputStream stdin;
+
+	private BlockingQueue<String> stdout;
+
+	private BlockingQueue<String> stderr;
+
+	/**
+	 * @param shell the shell executable, "sh" on a device, "/bin/sh" on Linux
+	 */
+	public ShellSession(String shell) {
+		this.shell = shell;
+		this.marker = MARKER_PREFIX + Long.toHexString(System.nanoTime())
+				+ Integer.toHexString(System.identityHashCode(this)) + "_";
+	}
+
+	/**
+	 * Run a command and collect its output.
+	 * @param cmd     shell command line, may span several lines
+	 * @param timeout milliseconds to wait for the command to finish
+	 * @return the exit code, stdout lines and stderr lines of the command
+	 * @throws IOException      if the shell could not be started or did not
+	 *                          accept the command; the command did not run
+	 * @throws TimeoutException if the command did not finish in time; the
+	 *                          command and the shell are killed
+	 */
+	public CmdResult run(String cmd, long timeout) throws IOException,
+			TimeoutException {
+		start();
+		long deadline = System.currentTimeMillis() + timeout;
+		send(script(cmd));
+		return result(deadline);
+	}
+
+	/**
+	 * Run several commands in one write to the shell, one after the other.
+	 * @param cmds    shell command lines
+	 * @param timeout milliseconds to wait for all the commands to finish
+	 * @return one result per command. If a command times out or kills the
+	 *         shell, the commands after it don't run and their returnValue is
+	 *         -1; a timed out command reports -1 too.
+	 * @throws IOException if the shell could not be started or did not accept
+	 *                     the commands; none of them ran
+	 */
+	public List<CmdResult> runAll(List<String> cmds, long timeout) throws IOException {
+		start();
+		long deadline = System.currentTimeMillis() + timeout;
+		StringBuilder sb = new StringBuilder();
+		for (String cmd : cmds) {
+			sb.append(script(cmd));
+		}
+		send(sb.toString());
+		List<CmdResult> results = new ArrayList<CmdResult>(cmds.size());
+		boolean alive = true;
+		for (int i = 0; i < cmds.size(); i++) {
+			if (alive) {
+				try {
+					results.add(result(deadline));
+					alive = process != null;
+					continue;
+				} catch (TimeoutException e) {
+					alive = false;
+				}
+			}
+			results.add(notRun());
+		}
+		return results;
+	}
+
+	private String script(String cmd) {
+		return "( eval " + quote(cmd) + " ) </dev/null; __r=$?; printf '%s%d\\n' " + marker
+				+ " $__r; printf '%s\\n' " + marker + " >&2\n";
+	}
+
+	/**
+	 * @return s single quoted for sh, as one word
+	 */
+	static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private void send(String script) throws IOException {
+		try {
+			stdin.write(script.getBytes("UTF-8"));
+			stdin.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Collect the output of the next command.
+	 */
+	private CmdResult result(long deadline) throws TimeoutException {
+		CmdResult result = new CmdResult();
+		result.outPuts = new ArrayList<String>();
+		result.errors = new ArrayList<String>();
+		boolean ok = false;
+		try {
+			Integer code = collect(stdout, result.outPuts, deadline);
+			collect(stderr, result.errors, deadline);
+			if (code != null) {
+				result.returnValue = code;
+				ok = true;
+			} else {
+				// The command exited the shell, report the shell's exit code.
+				result.returnValue = exitCode(deadline);
+			}
+		} finally {
+			if (!ok) {
+				close();
+			}
+		}
+		return result;
+	}
+
+	static CmdResult notRun() {
+		CmdResult result = new CmdResult();
+		result.returnValue = -1;
+		result.outPuts = new ArrayList<String>();
+		result.errors = new ArrayList<String>();
+		return result;
+	}
+
+	/**
+	 * Read lines until the marker or the end of the stream.
+	 * @return the number following the marker, 0 if there is none, null if
+	 *         the stream ended
+	 */
+	private Integer collect(BlockingQueue<String> queue, List<String> lines,
+			long deadline) throws TimeoutException {
+		while (true) {
+			String line = poll(queue, deadline);
+			if (line == CLOSED) {
+				return null;
+			}
+			int at = line.indexOf(marker);
+			if (at < 0) {
+				lines.add(line);
+				continue;
+			}
+			// Output without a trailing newline ends right before the marker.
+			if (at > 0) {
+				lines.add(line.substring(0, at));
+			}
+			String code = line.substring(at + marker.length());
+			try {
+				return code.length() == 0 ? 0 : Integer.parseInt(code);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+
+	private static String poll(BlockingQueue<String> queue, long deadline)
+			throws TimeoutException {
+		String line;
+		try {
+			line = queue.poll(deadline - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TimeoutException("Interrupted");
+		}
+		if (line == null) {
+			throw new TimeoutException("Command timed out");
+		}
+		return line;
+	}
+
+	private int exitCode(long deadline) throws TimeoutException {
+		while (true) {
+			try {
+				return process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				// Streams close slightly before the process is reaped.
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new TimeoutException("Shell did not exit");
+			}
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TimeoutException("Interrupted");
+			}
+		}
+	}
+
+	/**
+	 * True if the shell process is running.
+	 */
+	public synchronized boolean isAlive() {
+		if (process == null) {
+			return false;
+		}
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	private void start() throws IOException {
+		if (process != null && isAlive()) {
+			return;
+		}
+		close();
+		Process p = new ProcessBuilder(shell).start();
+		synchronized (this) {
+			process = p;
+		}
+		stdin = p.getOutputStream();
+		stdout = new LinkedBlockingQueue<String>();
+		stderr = new LinkedBlockingQueue<String>();
+		drain(p.getInputStream(), stdout, "stdout");
+		drain(p.getErrorStream(), stderr, "stderr");
+	}
+
+	private void drain(final InputStream in, final BlockingQueue<String> queue,
+			String name) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+							"UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						queue.add(line);
+					}
+				} catch (IOException e) {
+					// The shell was killed.
+				} finally {
+					queue.add(CLOSED);
+				}
+			}
+		}, "shell-session-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Kill the shell and any command still running. The next command starts a
+	 * new shell.
+	 */
+	public synchronized void close() {
+		if (process == null) {
+			return;
+		}
+		try {
+			stdin.close();
+		} catch (IOException e) {
+		}
+		ProcessTree.destroy(process);
+		process = null;
+	}
+}
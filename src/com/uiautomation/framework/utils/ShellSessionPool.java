@@ -0,0 +1,153 @@
+package com.uiautomation.framework.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A fixed number of {@link ShellSession}s shared by concurrent callers. Each
+ * command takes an idle session, so up to size commands run in parallel and
+ * the others wait. Sessions start their shell on first use.
+ */
+public class ShellSessionPool {
+
+	private final BlockingQueue<ShellSession> idle;
+
+	private final ShellSession[] sessions;
+
+	/**
+	 * @param shell the shell executable, "sh" on a device, "/bin/sh" on Linux
+	 * @param size  number of sessions
+	 */
+	public ShellSessionPool(String shell, int size) {
+		idle = new ArrayBlockingQueue<ShellSession>(size);
+		sessions = new ShellSession[size];
+		for (int i = 0; i < size; i++) {
+			sessions[i] = new ShellSession(shell);
+			idle.add(sessions[i]);
+		}
+	}
+
+	/**
+	 * Run a command on an idle session.
+	 * @param timeout milliseconds to wait for a session and for the command
+	 * @see ShellSession#run(String, long)
+	 */
+	public CmdResult run(String cmd, long timeout) throws IOException,
+			TimeoutException {
+		long deadline = System.currentTimeMillis() + timeout;
+		ShellSession session;
+		try {
+			session = idle.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		if (session == null) {
+			throw new TimeoutException("No idle shell session");
+		}
+		try {
+			return session.run(cmd, Math.max(0, deadline - System.currentTimeMillis()));
+		} finally {
+			idle.add(session);
+		}
+	}
+
+	/**
+	 * Run several commands, in as few writes to the shells as possible.
+	 * @param cmds       shell command lines
+	 * @param timeout    milliseconds to wait for all the commands to finish
+	 * @param concurrent false to run the commands one after the other on one
+	 *                   session, true to spread them over every session of the
+	 *                   pool; only for commands that don't depend on each other
+	 * @return one result per command, in the order of cmds; null for the
+	 *         commands that could not be sent because a shell failed to start
+	 * @see ShellSession#runAll(List, long)
+	 */
+	public List<CmdResult> runAll(List<String> cmds, long timeout, boolean concurrent)
+			throws IOException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		int chunks = concurrent ? Math.min(sessions.length, cmds.size()) : 1;
+		if (chunks <= 1) {
+			try {
+				return runChunk(cmds, deadline);
+			} catch (IOException e) {
+				return Arrays.asList(new CmdResult[cmds.size()]);
+			}
+		}
+		// Deal the commands round robin, so slow neighbours are spread out.
+		List<Future<List<CmdResult>>> futures = new ArrayList<Future<List<CmdResult>>>();
+		for (int c = 0; c < chunks; c++) {
+			final List<String> chunk = new ArrayList<String>();
+			for (int i = c; i < cmds.size(); i += chunks) {
+				chunk.add(cmds.get(i));
+			}
+			futures.add(ProcessExecutor.threads().submit(new Callable<List<CmdResult>>() {
+				@Override
+				public List<CmdResult> call() throws IOException {
+					return runChunk(chunk, deadline);
+				}
+			}));
+		}
+		CmdResult[] results = new CmdResult[cmds.size()];
+		for (int c = 0; c < chunks; c++) {
+			List<CmdResult> chunkResults = null;
+			try {
+				chunkResults = futures.get(c).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			} catch (ExecutionException e) {
+				// The chunk's commands were not sent, leave their results null.
+			}
+			for (int i = c, k = 0; i < cmds.size(); i += chunks, k++) {
+				results[i] = chunkResults != null ? chunkResults.get(k) : null;
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private List<CmdResult> runChunk(List<String> cmds, long deadline) throws IOException {
+		ShellSession session;
+		try {
+			session = idle.poll(Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		if (session == null) {
+			List<CmdResult> results = new ArrayList<CmdResult>(cmds.size());
+			for (int i = 0; i < cmds.size(); i++) {
+				results.add(ShellSession.notRun());
+			}
+			return results;
+		}
+		try {
+			return session.runAll(cmds, Math.max(0, deadline - System.currentTimeMillis()));
+		} finally {
+			idle.add(session);
+		}
+	}
+
+	public int size() {
+		return sessions.length;
+	}
+
+	/**
+	 * Kill every shell. The pool stays usable and restarts them on demand.
+	 */
+	public void close() {
+		for (ShellSession session : sessions) {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares test/data/settings.xml with settings_wifi_on.xml, the same screen
+ * after Wi-Fi was switched on: the switch changed, the search button is gone
+ * and a snackbar appeared.
+ */
+public class HierarchyDiffTest extends TestCase {
+
+	private static final File SETTINGS_WIFI_ON = new File("test/data/settings_wifi_on.xml");
+
+	private HierarchySnapshot before;
+
+	private HierarchySnapshot after;
+
+	@Override
+	protected void setUp() throws IOException {
+		before = HierarchyParser.parse(HierarchyParserTest.SETTINGS);
+		after = HierarchyParser.parse(SETTINGS_WIFI_ON);
+	}
+
+	public void testSameDumpHasNoDifference() throws IOException {
+		HierarchySnapshot again = HierarchyParser.parse(HierarchyParserTest.SETTINGS);
+		assertEquals(before.getHash(), again.getHash());
+		assertTrue(HierarchyDiff.compare(before, again).isEmpty());
+	}
+
+	public void testAddedRemovedAndChanged() {
+		HierarchyDiff diff = HierarchyDiff.compare(before, after);
+		assertFalse(diff.isEmpty());
+
+		int[] removed = diff.getRemoved();
+		assertEquals(1, removed.length);
+		assertEquals("com.android.settings:id/search", before.getResourceId(removed[0]));
+
+		int[] added = diff.getAdded();
+		assertEquals(1, added.length);
+		assertEquals("com.android.settings:id/snackbar", after.getResourceId(added[0]));
+
+		int[][] changed = diff.getChanged();
+		assertEquals(1, changed.length);
+		assertEquals("OFF", before.getText(changed[0][0]));
+		assertEquals("ON", after.getText(changed[0][1]));
+		assertTrue(after.is(changed[0][1], HierarchySnapshot.CHECKED));
+	}
+
+	public void testUnchangedSubtreesKeepTheirHash() {
+		int beforeBluetooth = before.find(new NodeSelector().text("Bluetooth"));
+		int afterBluetooth = after.find(new NodeSelector().text("Bluetooth"));
+		assertEquals(before.getSubtreeHash(before.getParent(beforeBluetooth)),
+				after.getSubtreeHash(after.getParent(afterBluetooth)));
+
+		int beforeWifi = before.getParent(before.find(new NodeSelector().text("Wi\u2011Fi")));
+		int afterWifi = after.getParent(after.find(new NodeSelector().text("Wi\u2011Fi")));
+		assertEquals(before.getNodeHash(beforeWifi), after.getNodeHash(afterWifi));
+		assertFalse(before.getSubtreeHash(beforeWifi) == after.getSubtreeHash(afterWifi));
+	}
+
+	public void testCompareSubtrees() {
+		NodeSelector list = new NodeSelector().resourceId("android:id/list");
+		HierarchyDiff diff = HierarchyDiff.compare(before, before.find(list), after,
+				after.find(list));
+		assertEquals(0, diff.getAdded().length);
+		assertEquals(0, diff.getRemoved().length);
+		assertEquals(1, diff.getChanged().length);
+
+		NodeSelector bar = new NodeSelector().resourceId("com.android.settings:id/action_bar");
+		diff = HierarchyDiff.compare(before, before.find(bar), after, after.find(bar));
+		assertTrue(Arrays.equals(new int[] { 3 }, diff.getRemoved()));
+		assertEquals(0, diff.getChanged().length);
+	}
+}
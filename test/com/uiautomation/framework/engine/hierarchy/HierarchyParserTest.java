@@ -0,0 +1,141 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Parses test/data/settings.xml, a Settings screen dumped by uiautomator, and
+ * looks nodes up with selectors. Run from the project directory.
+ */
+public class HierarchyParserTest extends TestCase {
+
+	static final File SETTINGS = new File("test/data/settings.xml");
+
+	private HierarchySnapshot snapshot;
+
+	@Override
+	protected void setUp() throws IOException {
+		snapshot = HierarchyParser.parse(SETTINGS);
+	}
+
+	public void testNodesInDocumentOrder() {
+		assertEquals(19, snapshot.size());
+		assertEquals(0, snapshot.getRotation());
+		assertEquals("android.widget.FrameLayout", snapshot.getClassName(0));
+		assertEquals(-1, snapshot.getParent(0));
+		assertEquals("com.android.settings:id/action_bar", snapshot.getResourceId(1));
+		assertEquals("Settings", snapshot.getText(2));
+		assertEquals("android:id/list", snapshot.getResourceId(4));
+	}
+
+	public void testTreeStructure() {
+		assertEquals(2, snapshot.getChildCount(0));
+		assertEquals(1, snapshot.getFirstChild(0));
+		assertEquals(4, snapshot.getNextSibling(1));
+		assertEquals(-1, snapshot.getNextSibling(4));
+		assertEquals(4, snapshot.getParent(5));
+		assertEquals(3, snapshot.getDepth(6));
+		assertEquals(9, snapshot.getSubtreeEnd(5));
+		assertEquals(19, snapshot.getSubtreeEnd(0));
+		assertTrue(snapshot.isInSubtree(8, 4));
+		assertFalse(snapshot.isInSubtree(3, 4));
+	}
+
+	public void testAttributes() {
+		assertEquals(2, snapshot.getIndex(8));
+		assertEquals("OFF", snapshot.getText(8));
+		assertEquals("android.widget.Switch", snapshot.getClassName(8));
+		assertEquals("com.android.settings", snapshot.getPackageName(8));
+		assertEquals("Search settings", snapshot.getContentDescription(3));
+		assertEquals("Wi\u2011Fi", snapshot.getText(6));
+		assertEquals("Sound & notification", snapshot.getText(17));
+	}
+
+	public void testFlags() {
+		assertTrue(snapshot.is(8, HierarchySnapshot.CHECKABLE));
+		assertFalse(snapshot.is(8, HierarchySnapshot.CHECKED));
+		assertTrue(snapshot.is(8, HierarchySnapshot.CLICKABLE));
+		assertTrue(snapshot.is(8, HierarchySnapshot.ENABLED));
+		assertTrue(snapshot.is(4, HierarchySnapshot.SCROLLABLE));
+		assertFalse(snapshot.is(6, HierarchySnapshot.CLICKABLE));
+	}
+
+	public void testBounds() {
+		assertTrue(Arrays.equals(new int[] { 900, 250, 1040, 338 }, snapshot.getBounds(8)));
+		assertEquals(970, snapshot.getCenterX(8));
+		assertEquals(294, snapshot.getCenterY(8));
+		assertTrue(snapshot.contains(8, 900, 250));
+		assertFalse(snapshot.contains(8, 1040, 338));
+	}
+
+	public void testParseStringMatchesFile() throws IOException {
+		HierarchySnapshot fromString = HierarchyParser.parse("<hierarchy rotation=\"1\">"
+				+ "<node index=\"0\" text=\"a\" class=\"android.widget.TextView\""
+				+ " bounds=\"[0,0][10,20]\" clickable=\"true\" /></hierarchy>");
+		assertEquals(1, fromString.size());
+		assertEquals(1, fromString.getRotation());
+		assertEquals("a", fromString.getText(0));
+		assertTrue(fromString.is(0, HierarchySnapshot.CLICKABLE));
+		assertEquals(20, fromString.getBottom(0));
+	}
+
+	public void testMalformedDump() {
+		try {
+			HierarchyParser.parse("<hierarchy><node index=\"0\"></hierarchy>");
+			fail("Parsed a malformed dump");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testFindByText() {
+		assertEquals(10, snapshot.find(new NodeSelector().text("Bluetooth")));
+		assertEquals(-1, snapshot.find(new NodeSelector().text("Battery")));
+	}
+
+	public void testFindByResourceIdAndInstance() {
+		NodeSelector titles = new NodeSelector().resourceId("android:id/title");
+		assertEquals(6, snapshot.find(titles));
+		assertEquals(14, snapshot.find(titles.instance(2)));
+		assertEquals(-1, snapshot.find(titles.instance(4)));
+		assertTrue(Arrays.equals(new int[] { 6, 10, 14, 17 }, snapshot.findAll(titles)));
+	}
+
+	public void testFindByCombinedAttributes() {
+		NodeSelector selector = new NodeSelector().className("android.widget.TextView")
+				.resourceId("android:id/summary").textContains("80%");
+		assertEquals(18, snapshot.find(selector));
+		assertEquals(-1, snapshot.find(new NodeSelector().className("android.widget.Switch")
+				.text("ON")));
+	}
+
+	public void testFindByRegexAndDescription() {
+		assertTrue(Arrays.equals(new int[] { 8, 12 }, snapshot.findAll(new NodeSelector()
+				.resourceIdMatches(".*switch_widget"))));
+		assertEquals(3, snapshot.find(new NodeSelector().description("Search settings")));
+		assertTrue(snapshot.exists(new NodeSelector().className("android.widget.ImageButton")));
+	}
+
+	public void testAttributeLookups() {
+		assertTrue(Arrays.equals(new int[] { 7, 11, 15, 18 },
+				snapshot.findByResourceId("android:id/summary")));
+		assertTrue(Arrays.equals(new int[] { 8, 12 }, snapshot.findByText("OFF")));
+		assertEquals(0, snapshot.findByContentDescription("nothing").length);
+		assertEquals(5, snapshot.findByClassName("android.widget.LinearLayout").length);
+	}
+
+	public void testNodeAt() {
+		assertEquals(8, snapshot.nodeAt(950, 300));
+		assertEquals(6, snapshot.nodeAt(200, 260));
+		assertEquals(5, snapshot.nodeAt(800, 220));
+		assertEquals(-1, snapshot.nodeAt(2000, 300));
+	}
+
+	public void testNodesInside() {
+		assertTrue(Arrays.equals(new int[] { 6, 7, 8 }, snapshot.nodesInside(5)));
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, snapshot.nodesInside(0, 63, 1080, 210)));
+	}
+}
@@ -0,0 +1,68 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Streams test/data/settings.xml and checks the nodes match what
+ * {@link HierarchyParser} builds from the same dump.
+ */
+public class HierarchyScannerTest extends TestCase {
+
+	private static final File SETTINGS = HierarchyParserTest.SETTINGS;
+
+	public void testVisitsEveryNodeInDocumentOrder() throws IOException {
+		final HierarchySnapshot snapshot = HierarchyParser.parse(SETTINGS);
+		final List<HierarchyScanner.Node> nodes = new ArrayList<HierarchyScanner.Node>();
+		assertTrue(HierarchyScanner.scan(SETTINGS, new HierarchyScanner.Visitor() {
+			@Override
+			public boolean visit(HierarchyScanner.Node node) {
+				nodes.add(node.copy());
+				return true;
+			}
+		}));
+		assertEquals(snapshot.size(), nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			HierarchyScanner.Node n = nodes.get(i);
+			assertEquals(snapshot.getDepth(i), n.getDepth());
+			assertEquals(snapshot.getIndex(i), n.getIndex());
+			assertEquals(snapshot.getText(i), n.getText());
+			assertEquals(snapshot.getResourceId(i), n.getResourceId());
+			assertEquals(snapshot.getClassName(i), n.getClassName());
+			assertEquals(snapshot.getPackageName(i), n.getPackageName());
+			assertEquals(snapshot.getContentDescription(i), n.getContentDescription());
+			assertEquals(snapshot.getFlags(i), n.getFlags());
+			assertTrue(Arrays.equals(snapshot.getBounds(i), n.getBounds()));
+		}
+	}
+
+	public void testVisitorStopsTheScan() throws IOException {
+		final int[] visited = new int[1];
+		assertFalse(HierarchyScanner.scan(SETTINGS, new HierarchyScanner.Visitor() {
+			@Override
+			public boolean visit(HierarchyScanner.Node node) {
+				visited[0]++;
+				return !"android:id/list".equals(node.getResourceId());
+			}
+		}));
+		assertEquals(5, visited[0]);
+	}
+
+	public void testFind() throws IOException {
+		HierarchyScanner.Node n = HierarchyScanner.find(SETTINGS, new NodeSelector()
+				.resourceId("android:id/switch_widget").instance(1));
+		assertNotNull(n);
+		assertEquals("OFF", n.getText());
+		assertEquals(3, n.getDepth());
+		assertTrue(n.is(HierarchySnapshot.CHECKABLE));
+		assertFalse(n.is(HierarchySnapshot.CHECKED));
+		assertEquals(970, n.getCenterX());
+		assertEquals(462, n.getCenterY());
+		assertNull(HierarchyScanner.find(SETTINGS, new NodeSelector().text("Battery")));
+	}
+}
@@ -0,0 +1,95 @@
+package com.uiautomation.framework.engine.hierarchy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips test/data/settings.xml through the binary format, directly and
+ * through {@link HierarchyConverter}.
+ */
+public class HierarchyWriterTest extends TestCase {
+
+	private HierarchySnapshot snapshot;
+
+	@Override
+	protected void setUp() throws IOException {
+		snapshot = HierarchyParser.parse(HierarchyParserTest.SETTINGS);
+	}
+
+	public void testSnapshotRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HierarchyWriter.write(snapshot, out);
+		assertSameNodes(snapshot, HierarchyReader.read(new ByteArrayInputStream(
+				out.toByteArray())));
+	}
+
+	public void testConverterRoundTrip() throws IOException {
+		File binary = File.createTempFile("settings", ".bin");
+		File xml = File.createTempFile("settings", ".xml");
+		try {
+			HierarchyConverter.xmlToBinary(HierarchyParserTest.SETTINGS, binary);
+			assertTrue(binary.length() < HierarchyParserTest.SETTINGS.length());
+			assertSameNodes(snapshot, HierarchyReader.read(binary));
+
+			HierarchyConverter.binaryToXml(binary, xml);
+			assertSameNodes(snapshot, HierarchyParser.parse(xml));
+		} finally {
+			binary.delete();
+			xml.delete();
+		}
+	}
+
+	public void testPullEvents() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HierarchyWriter writer = new HierarchyWriter(out, 3);
+		writer.startNode(0, "", "", "android.widget.FrameLayout", "p", "", 0, 0, 0, 100, 200);
+		writer.startNode(1, "OK", "android:id/button1", "android.widget.Button", "p", "",
+				HierarchySnapshot.CLICKABLE, 10, 150, 90, 190);
+		writer.endNode();
+		writer.finish();
+
+		HierarchyReader reader = new HierarchyReader(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(3, reader.getRotation());
+		assertEquals(HierarchyReader.START_NODE, reader.next());
+		assertEquals(HierarchyReader.START_NODE, reader.next());
+		assertEquals("OK", reader.getText());
+		assertTrue(reader.is(HierarchySnapshot.CLICKABLE));
+		assertEquals(10, reader.getLeft());
+		assertEquals(190, reader.getBottom());
+		assertEquals(HierarchyReader.END_NODE, reader.next());
+		assertEquals(HierarchyReader.END_NODE, reader.next());
+		assertEquals(HierarchyReader.END_DOCUMENT, reader.next());
+	}
+
+	public void testRejectsOtherData() {
+		try {
+			new HierarchyReader(new ByteArrayInputStream("<hierarchy/>".getBytes()));
+			fail("Read XML as a binary hierarchy");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	static void assertSameNodes(HierarchySnapshot expected, HierarchySnapshot actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getRotation(), actual.getRotation());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getParent(i), actual.getParent(i));
+			assertEquals(expected.getSubtreeEnd(i), actual.getSubtreeEnd(i));
+			assertEquals(expected.getIndex(i), actual.getIndex(i));
+			assertEquals(expected.getText(i), actual.getText(i));
+			assertEquals(expected.getResourceId(i), actual.getResourceId(i));
+			assertEquals(expected.getClassName(i), actual.getClassName(i));
+			assertEquals(expected.getPackageName(i), actual.getPackageName(i));
+			assertEquals(expected.getContentDescription(i), actual.getContentDescription(i));
+			assertEquals(expected.getFlags(i), actual.getFlags(i));
+			assertTrue(Arrays.equals(expected.getBounds(i), actual.getBounds(i)));
+		}
+		assertEquals(expected.getHash(), actual.getHash());
+	}
+}
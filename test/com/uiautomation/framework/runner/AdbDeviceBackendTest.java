@@ -0,0 +1,100 @@
+package com.uiautomation.framework.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link AdbDeviceBackend} against a fake adb script that logs its
+ * arguments and answers runtest like uiautomator would.
+ */
+public class AdbDeviceBackendTest extends TestCase {
+
+	private File dir;
+
+	private File log;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("fake-adb").toFile();
+		log = new File(dir, "calls.txt");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String fakeAdb(String runtest) throws IOException {
+		File adb = new File(dir, "adb");
+		OutputStream out = new FileOutputStream(adb);
+		try {
+			out.write(("#!/bin/sh\n"
+					+ "echo \"$*\" >> " + log.getAbsolutePath() + "\n"
+					+ "case \"$*\" in *runtest*) " + runtest + " ;; esac\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		adb.setExecutable(true);
+		return adb.getAbsolutePath();
+	}
+
+	private List<String> calls() throws IOException {
+		return Files.readAllLines(log.toPath(), Charset.forName("UTF-8"));
+	}
+
+	public void testPassedTest() throws IOException {
+		AdbDeviceBackend device = new AdbDeviceBackend("S1", "t.jar")
+				.adb(fakeAdb("echo; echo 'OK (1 test)'")).extra("retrytimes", "1");
+		TestResult r = device.run(new TestMethod("C", "t1"));
+		assertEquals(TestResult.Status.PASSED, r.status);
+		assertEquals("S1", r.serial);
+		List<String> calls = calls();
+		assertEquals(1, calls.size());
+		assertEquals("-s S1 shell uiautomator runtest t.jar -c C#t1 -e retrytimes 1", calls.get(0));
+	}
+
+	public void testDurationReportedByTheTestIsRecorded() throws IOException {
+		AdbDeviceBackend device = new AdbDeviceBackend("S1", "t.jar").adb(
+				fakeAdb("echo 'TEST_DURATION: C.t1=1234'; echo; echo 'OK (1 test)'"));
+		TestResult r = device.run(new TestMethod("C", "t1"));
+		assertEquals(TestResult.Status.PASSED, r.status);
+		assertEquals(1234, r.testDuration);
+		RunReport report = new RunReport(Collections.singletonList(r), r.duration);
+		DurationHistory history = new DurationHistory();
+		report.recordDurations(history);
+		assertEquals(1234, history.get("C.t1"));
+	}
+
+	public void testTimedOutTestIsKilledOnTheDevice() throws IOException {
+		AdbDeviceBackend device = new AdbDeviceBackend("S1", "t.jar").adb(fakeAdb("sleep 5"))
+				.timeout(300);
+		TestResult r = device.run(new TestMethod("C", "t1"));
+		assertEquals(TestResult.Status.ERROR, r.status);
+		assertTrue(r.message, r.message.startsWith("Timed out"));
+		List<String> calls = calls();
+		assertEquals(2, calls.size());
+		assertTrue(calls.get(1), calls.get(1).startsWith("-s S1 shell pkill -9 uiautomator"));
+	}
+
+	public void testAdbErrorDropsTheDevice() throws IOException {
+		AdbDeviceBackend device = new AdbDeviceBackend("S1", "t.jar").adb(
+				fakeAdb("echo 'error: device offline' >&2"));
+		try {
+			device.run(new TestMethod("C", "t1"));
+			fail("No IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("device offline"));
+		}
+	}
+}
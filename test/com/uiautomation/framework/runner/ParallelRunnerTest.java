@@ -0,0 +1,237 @@
+package com.uiautomation.framework.runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs suites on {@link FakeDeviceBackend}s, with test durations of a few
+ * tens of milliseconds.
+ */
+public class ParallelRunnerTest extends TestCase {
+
+	/**
+	 * Runs the test on the fake device, except the named test, which takes the
+	 * device down after a while.
+	 */
+	private static class DroppingBackend implements DeviceBackend {
+
+		private final FakeDeviceBackend device;
+
+		private final String drops;
+
+		private final long after;
+
+		DroppingBackend(String serial, String drops, long after) {
+			this.device = new FakeDeviceBackend(serial).defaultDuration(10);
+			this.drops = drops;
+			this.after = after;
+		}
+
+		@Override
+		public String getSerial() {
+			return device.getSerial();
+		}
+
+		@Override
+		public TestResult run(TestMethod test) throws IOException {
+			if (drops == null || drops.equals(test.getName())) {
+				try {
+					Thread.sleep(after);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IOException(getSerial() + ": device offline");
+			}
+			return device.run(test);
+		}
+	}
+
+	private static List<TestMethod> tests(int count) {
+		List<TestMethod> tests = new ArrayList<TestMethod>();
+		for (int i = 1; i <= count; i++) {
+			tests.add(new TestMethod("C", "t" + i));
+		}
+		return tests;
+	}
+
+	private static DurationHistory history(List<TestMethod> tests, long duration) {
+		DurationHistory history = new DurationHistory();
+		for (TestMethod t : tests) {
+			history.record(t.getName(), duration);
+		}
+		return history;
+	}
+
+	private static int ranOn(RunReport report, String serial) {
+		int count = 0;
+		for (TestResult r : report.getResults()) {
+			if (serial.equals(r.serial)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void testIdleDeviceStealsFromTheBusiestQueue() throws InterruptedException {
+		List<TestMethod> tests = tests(8);
+		// Planned 4 and 4, but every test is 20 times slower on B.
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(10),
+				new FakeDeviceBackend("B").defaultDuration(200));
+		RunReport report = new ParallelRunner(devices).history(history(tests, 100)).run(tests);
+		assertTrue(report.isSuccessful());
+		assertTrue(ranOn(report, "A") > 4);
+		assertEquals(8, ranOn(report, "A") + ranOn(report, "B"));
+	}
+
+	public void testDroppedTestGoesToAnIdleDevice() throws InterruptedException {
+		List<TestMethod> tests = tests(2);
+		// A is done long before B drops its test.
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(10),
+				new DroppingBackend("B", null, 300));
+		RunReport report = new ParallelRunner(devices).history(history(tests, 100)).run(tests);
+		assertTrue(report.toString(), report.isSuccessful());
+		assertEquals(2, ranOn(report, "A"));
+	}
+
+	public void testQueueOfDroppedDeviceMovesOn() throws InterruptedException {
+		List<TestMethod> tests = tests(6);
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(10),
+				new FakeDeviceBackend("B").defaultDuration(10).disconnectAfter(1));
+		RunReport report = new ParallelRunner(devices).history(history(tests, 100)).run(tests);
+		assertTrue(report.toString(), report.isSuccessful());
+		assertEquals(1, ranOn(report, "B"));
+		assertEquals(5, ranOn(report, "A"));
+	}
+
+	public void testTestTakingDownDevicesIsReported() throws InterruptedException {
+		List<TestMethod> tests = tests(4);
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new DroppingBackend("A", "C.t1", 10),
+				new DroppingBackend("B", "C.t1", 10),
+				new DroppingBackend("C", "C.t1", 10));
+		RunReport report = new ParallelRunner(devices).history(history(tests, 100))
+				.listener(new ParallelRunner.Listener() {
+					@Override
+					public void testStarted(TestMethod test, String serial) {
+						started.add(test.toString());
+					}
+
+					@Override
+					public void testFinished(TestResult result) {
+					}
+				}).run(tests);
+		TestResult t1 = report.getResults().get(0);
+		assertEquals(TestResult.Status.ERROR, t1.status);
+		assertEquals(2, Collections.frequency(started, "C#t1"));
+		assertEquals(1, report.count(TestResult.Status.ERROR));
+		assertEquals(3, report.count(TestResult.Status.PASSED));
+	}
+
+	public void testResultsKeepTheOrderOfTheSuite() throws InterruptedException {
+		List<TestMethod> tests = tests(6);
+		// Planned longest first, so the run order differs from the suite's.
+		DurationHistory history = new DurationHistory();
+		for (int i = 0; i < tests.size(); i++) {
+			history.record(tests.get(i).getName(), 10 * (i + 1));
+		}
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(5).fail("C.t4"),
+				new FakeDeviceBackend("B").defaultDuration(5).fail("C.t4"));
+		RunReport report = new ParallelRunner(devices).history(history).run(tests);
+		assertEquals(tests.size(), report.getResults().size());
+		for (int i = 0; i < tests.size(); i++) {
+			assertEquals(tests.get(i), report.getResults().get(i).test);
+		}
+		assertEquals(TestResult.Status.FAILED, report.getResults().get(3).status);
+		assertFalse(report.isSuccessful());
+	}
+
+	public void testErrorOnOneDeviceDoesNotHangTheRun() throws InterruptedException {
+		List<TestMethod> tests = tests(4);
+		DeviceBackend broken = new DeviceBackend() {
+			@Override
+			public String getSerial() {
+				return "A";
+			}
+
+			@Override
+			public TestResult run(TestMethod test) {
+				throw new AssertionError("backend bug");
+			}
+		};
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(broken,
+				new FakeDeviceBackend("B").defaultDuration(10));
+		RunReport report = runWithin(new ParallelRunner(devices).history(history(tests, 100)),
+				tests, 5000);
+		assertTrue(report.toString(), report.isSuccessful());
+		assertEquals(4, ranOn(report, "B"));
+	}
+
+	public void testThrowingListenerDoesNotHangTheRun() throws InterruptedException {
+		List<TestMethod> tests = tests(4);
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(10),
+				new FakeDeviceBackend("B").defaultDuration(10));
+		ParallelRunner runner = new ParallelRunner(devices).history(history(tests, 100))
+				.listener(new ParallelRunner.Listener() {
+					@Override
+					public void testStarted(TestMethod test, String serial) {
+						if ("A".equals(serial)) {
+							throw new IllegalStateException("listener bug");
+						}
+					}
+
+					@Override
+					public void testFinished(TestResult result) {
+					}
+				});
+		RunReport report = runWithin(runner, tests, 5000);
+		assertTrue(report.toString(), report.isSuccessful());
+		assertEquals(4, ranOn(report, "B"));
+	}
+
+	/**
+	 * Run the suite, failing instead of hanging if it takes longer than
+	 * timeout milliseconds.
+	 */
+	private static RunReport runWithin(final ParallelRunner runner, final List<TestMethod> tests,
+			long timeout) throws InterruptedException {
+		final RunReport[] report = new RunReport[1];
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					report[0] = runner.run(tests);
+				} catch (InterruptedException e) {
+					// Left hanging, reported below.
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		t.join(timeout);
+		assertFalse("Run did not return", t.isAlive());
+		return report[0];
+	}
+
+	public void testNoDeviceLeft() throws InterruptedException {
+		List<TestMethod> tests = tests(3);
+		List<DeviceBackend> devices = Arrays.<DeviceBackend> asList(
+				new FakeDeviceBackend("A").defaultDuration(5).disconnectAfter(1));
+		RunReport report = new ParallelRunner(devices).history(history(tests, 100)).run(tests);
+		assertEquals(1, report.count(TestResult.Status.PASSED));
+		assertEquals(2, report.count(TestResult.Status.ERROR));
+		TestResult last = report.getResults().get(2);
+		assertNull(last.serial);
+		assertEquals("No device left to run the test", last.message);
+	}
+}
@@ -0,0 +1,68 @@
+package com.uiautomation.framework.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link AsyncCommand} against the sh of the host.
+ */
+public class AsyncCommandTest extends TestCase {
+
+	public void testLinesWithoutListenerAreKept() throws Exception {
+		CmdResult r = AsyncCommand.start("echo a; echo b; echo e >&2; exit 2", null, 5000).get();
+		assertEquals(2, r.returnValue);
+		assertEquals(Arrays.asList("a", "b"), r.outPuts);
+		assertEquals(Arrays.asList("e"), r.errors);
+	}
+
+	public void testListenerGetsLinesAsTheyArrive() throws Exception {
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		CmdResult r = AsyncCommand.start("echo a; echo b", new AsyncCommand.LineListener() {
+			@Override
+			public void onLine(String line) {
+				seen.add(line);
+			}
+		}, 5000).get();
+		assertEquals(Arrays.asList("a", "b"), seen);
+		assertTrue(r.outPuts.isEmpty());
+	}
+
+	public void testLinesAfterAFailingListenerAreKept() throws Exception {
+		CmdResult r = AsyncCommand.start("echo a; echo b", new AsyncCommand.LineListener() {
+			@Override
+			public void onLine(String line) {
+				throw new IllegalStateException("listener bug");
+			}
+		}, 5000).get();
+		assertEquals(0, r.returnValue);
+		assertEquals(Arrays.asList("b"), r.outPuts);
+	}
+
+	public void testTimeoutKillsTheCommand() throws Exception {
+		AsyncCommand command = AsyncCommand.start("sleep 4444; echo x", null, 300);
+		CmdResult r = command.get();
+		assertTrue(command.isTimedOut());
+		assertTrue(r.outPuts.isEmpty());
+		assertFalse(ShellSessionTest.isRunning("sleep", "4444"));
+	}
+
+	public void testCancelKillsTheCommand() throws Exception {
+		AsyncCommand command = AsyncCommand.start("sleep 4445; echo x", null, 0);
+		Thread.sleep(100);
+		assertTrue(command.cancel(true));
+		assertTrue(command.isCancelled());
+		try {
+			command.get();
+			fail("Cancelled command returned a result");
+		} catch (CancellationException e) {
+			// expected
+		}
+		assertFalse(ShellSessionTest.isRunning("sleep", "4445"));
+		assertFalse(command.cancel(true));
+	}
+}
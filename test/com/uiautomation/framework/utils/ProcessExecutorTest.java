@@ -0,0 +1,38 @@
+package com.uiautomation.framework.utils;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link ProcessExecutor} against the sh of the host.
+ */
+public class ProcessExecutorTest extends TestCase {
+
+	public void testOutputAndExitCode() throws Exception {
+		ProcessResult r = new ProcessExecutor().timeout(5000)
+				.executeShell("echo out; echo err >&2; exit 3");
+		assertFalse(r.timedOut);
+		assertEquals(3, r.returnValue);
+		assertEquals(Arrays.asList("out"), r.outPuts);
+		assertEquals(Arrays.asList("err"), r.errors);
+	}
+
+	public void testOnlyLastLinesAreKept() throws Exception {
+		ProcessResult r = new ProcessExecutor().maxLines(2).executeShell("seq 1 5");
+		assertEquals(Arrays.asList("4", "5"), r.outPuts);
+		assertEquals(3, r.outPutsDropped);
+	}
+
+	public void testTimeoutKillsTheCommand() throws Exception {
+		ProcessResult r = new ProcessExecutor().timeout(300).executeShell("sleep 4343; echo done");
+		assertTrue(r.timedOut);
+		assertTrue(r.outPuts.isEmpty());
+		assertFalse(ShellSessionTest.isRunning("sleep", "4343"));
+	}
+
+	public void testTokenize() {
+		assertEquals(Arrays.asList("pm", "list", "packages"),
+				Arrays.asList(ProcessExecutor.tokenize(" pm  list\tpackages ")));
+	}
+}
@@ -0,0 +1,199 @@
+package com.uiautomation.framework.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link ShellSession} and {@link ShellSessionPool} against /bin/sh.
+ */
+public class ShellSessionTest extends TestCase {
+
+	private static final String SHELL = "/bin/sh";
+
+	private static final long TIMEOUT = 5000;
+
+	private ShellSession session;
+
+	@Override
+	protected void setUp() {
+		session = new ShellSession(SHELL);
+	}
+
+	@Override
+	protected void tearDown() {
+		session.close();
+	}
+
+	public void testOutputIsFramedPerCommand() throws Exception {
+		CmdResult r = session.run("echo one; echo two; echo err >&2", TIMEOUT);
+		assertEquals(0, r.returnValue);
+		assertEquals(Arrays.asList("one", "two"), r.outPuts);
+		assertEquals(Arrays.asList("err"), r.errors);
+
+		r = session.run("echo next", TIMEOUT);
+		assertEquals(Arrays.asList("next"), r.outPuts);
+		assertTrue(r.errors.isEmpty());
+	}
+
+	public void testOutputWithoutTrailingNewline() throws Exception {
+		CmdResult r = session.run("printf 'a\\nb'; printf 'e' >&2", TIMEOUT);
+		assertEquals(Arrays.asList("a", "b"), r.outPuts);
+		assertEquals(Arrays.asList("e"), r.errors);
+		assertEquals(Arrays.asList("c"), session.run("echo c", TIMEOUT).outPuts);
+	}
+
+	public void testNoOutput() throws Exception {
+		CmdResult r = session.run("true", TIMEOUT);
+		assertEquals(0, r.returnValue);
+		assertTrue(r.outPuts.isEmpty());
+		assertTrue(r.errors.isEmpty());
+	}
+
+	public void testExitCodes() throws Exception {
+		assertEquals(1, session.run("false", TIMEOUT).returnValue);
+		assertEquals(3, session.run("exit 3", TIMEOUT).returnValue);
+		assertEquals(127, session.run("no_such_command_here", TIMEOUT).returnValue);
+		// exit only ends the command's subshell.
+		assertTrue(session.isAlive());
+		assertEquals(0, session.run("true", TIMEOUT).returnValue);
+	}
+
+	public void testQuotesAndMultipleLines() throws Exception {
+		CmdResult r = session.run("echo 'it'\"'\"'s'; echo \"$((1 + 2))\"\necho last", TIMEOUT);
+		assertEquals(Arrays.asList("it's", "3", "last"), r.outPuts);
+	}
+
+	public void testUnbalancedQuoteFailsAtOnce() throws Exception {
+		long start = System.currentTimeMillis();
+		CmdResult r = session.run("echo 'unterminated", TIMEOUT);
+		assertTrue(r.returnValue != 0);
+		assertTrue(r.outPuts.isEmpty());
+		assertFalse(r.errors.isEmpty());
+		assertTrue(System.currentTimeMillis() - start < TIMEOUT / 2);
+		assertEquals(Arrays.asList("ok"), session.run("echo ok", TIMEOUT).outPuts);
+	}
+
+	public void testStateDoesNotLeak() throws Exception {
+		String home = session.run("pwd", TIMEOUT).outPuts.get(0);
+		session.run("cd /; export LEAKED=yes; LOCAL=yes; set -e", TIMEOUT);
+		CmdResult r = session.run("pwd; echo \"[$LEAKED][$LOCAL]\"; false; echo after",
+				TIMEOUT);
+		assertEquals(Arrays.asList(home, "[][]", "after"), r.outPuts);
+	}
+
+	public void testCommandDoesNotReadTheSessionInput() throws Exception {
+		CmdResult r = session.run("cat; echo done", TIMEOUT);
+		assertEquals(Arrays.asList("done"), r.outPuts);
+	}
+
+	public void testTimeoutKillsAndRestartsTheShell() throws Exception {
+		try {
+			session.run("sleep 10", 300);
+			fail("No timeout");
+		} catch (TimeoutException e) {
+			// expected
+		}
+		assertFalse(session.isAlive());
+		CmdResult r = session.run("echo back", TIMEOUT);
+		assertEquals(0, r.returnValue);
+		assertEquals(Arrays.asList("back"), r.outPuts);
+	}
+
+	public void testTimeoutKillsTheCommand() throws Exception {
+		try {
+			session.run("sleep 4242", 300);
+			fail("No timeout");
+		} catch (TimeoutException e) {
+			// expected
+		}
+		assertFalse(isRunning("sleep", "4242"));
+	}
+
+	public void testKilledShellReportsItsExitCode() throws Exception {
+		CmdResult r = session.run("kill -9 $$", TIMEOUT);
+		assertTrue(r.returnValue != 0);
+		assertEquals(Arrays.asList("again"), session.run("echo again", TIMEOUT).outPuts);
+	}
+
+	public void testRunAll() throws Exception {
+		String home = session.run("pwd", TIMEOUT).outPuts.get(0);
+		List<CmdResult> results = session.runAll(Arrays.asList("echo a", "cd /; exit 2",
+				"pwd"), TIMEOUT);
+		assertEquals(3, results.size());
+		assertEquals(Arrays.asList("a"), results.get(0).outPuts);
+		assertEquals(2, results.get(1).returnValue);
+		assertEquals(Arrays.asList(home), results.get(2).outPuts);
+	}
+
+	public void testRunAllStopsAtTimeout() throws IOException {
+		List<CmdResult> results = session.runAll(Arrays.asList("echo a", "sleep 10",
+				"echo c"), 500);
+		assertEquals(Arrays.asList("a"), results.get(0).outPuts);
+		assertEquals(-1, results.get(1).returnValue);
+		assertEquals(-1, results.get(2).returnValue);
+		assertTrue(results.get(2).outPuts.isEmpty());
+	}
+
+	public void testPoolSessionsDoNotShareState() throws Exception {
+		ShellSessionPool pool = new ShellSessionPool(SHELL, 2);
+		try {
+			pool.run("cd /tmp; export FOO=leaked", TIMEOUT);
+			for (int i = 0; i < 4; i++) {
+				CmdResult r = pool.run("echo \"[$FOO]\"", TIMEOUT);
+				assertEquals(Arrays.asList("[]"), r.outPuts);
+			}
+			List<CmdResult> results = pool.runAll(Arrays.asList("echo 1", "echo 2",
+					"echo 3"), TIMEOUT, true);
+			for (int i = 0; i < 3; i++) {
+				assertEquals(Arrays.asList(String.valueOf(i + 1)), results.get(i).outPuts);
+			}
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * @return true if a process with exactly these arguments is still alive
+	 *         after a short grace period for the kill to land
+	 */
+	static boolean isRunning(String... args) throws InterruptedException {
+		StringBuilder sb = new StringBuilder();
+		for (String arg : args) {
+			sb.append(arg).append('\0');
+		}
+		String cmdline = sb.toString();
+		for (int i = 0; i < 20; i++) {
+			if (!hasCmdline(cmdline)) {
+				return false;
+			}
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	private static boolean hasCmdline(String cmdline) {
+		File[] entries = new File("/proc").listFiles();
+		for (File dir : entries != null ? entries : new File[0]) {
+			try {
+				byte[] bytes = Files.readAllBytes(new File(dir, "cmdline").toPath());
+				if (cmdline.equals(new String(bytes, "UTF-8"))) {
+					return true;
+				}
+			} catch (IOException e) {
+				// Not a process, or it just exited.
+			}
+		}
+		return false;
+	}
+
+	public void testQuote() {
+		assertEquals("'a b'", ShellSession.quote("a b"));
+		assertEquals("'it'\\''s'", ShellSession.quote("it's"));
+	}
+}